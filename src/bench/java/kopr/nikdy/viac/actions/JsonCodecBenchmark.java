@@ -0,0 +1,107 @@
+package kopr.nikdy.viac.actions;
+
+import com.google.gson.Gson;
+import kopr.nikdy.viac.entities.ParkingLot;
+import kopr.nikdy.viac.entities.ParkingTicket;
+import kopr.nikdy.viac.persistance.TicketIds;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link JsonCodec} against a new reflective Gson per call, the way responses and requests were handled before the codec.
+ * Run with the gc profiler of the bench profile, its gc.alloc.rate.norm is the number of bytes allocated per operation:
+ * mvn -Pbench compile exec:exec@bench -Dbench.args="JsonCodecBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-opens", "java.base/java.time=ALL-UNNAMED", "--add-opens", "java.base/java.util=ALL-UNNAMED"})
+@State(Scope.Thread)
+public class JsonCodecBenchmark {
+
+    private ParkingTicket ticket;
+
+    private Map<Integer, Double> usages;
+
+    /**
+     * Ticket request in the shape Gson reads by reflection, with nested date and time objects
+     */
+    private String reflectiveTicketJson;
+
+    private String ticketJson;
+
+    private String parkingLotJson;
+
+    @Setup
+    public void setUp() {
+        ticket = new ParkingTicket();
+        ticket.setId(TicketIds.next(42));
+        ticket.setCarLicencePlate("KE-123AB");
+        ticket.setParkingLotId(42);
+        ticket.setArrivalTime(LocalDateTime.of(2019, 2, 7, 10, 15, 30, 123_000_000));
+
+        usages = new HashMap<>();
+        for (int id = 1; id <= 16; id++) {
+            usages.put(id, id * 6.25);
+        }
+
+        reflectiveTicketJson = new Gson().toJson(ticket);
+        ticketJson = JsonCodec.toJson(ticket);
+        parkingLotJson = "{\"name\":\"Main square\",\"capacity\":250}";
+    }
+
+    @Benchmark
+    public String ticketToJsonReflective() {
+        return new Gson().toJson(ticket);
+    }
+
+    @Benchmark
+    public String ticketToJsonCodec() {
+        return JsonCodec.toJson(ticket);
+    }
+
+    @Benchmark
+    public String usagesToJsonReflective() {
+        return new Gson().toJson(usages);
+    }
+
+    @Benchmark
+    public String usagesToJsonCodec() {
+        return JsonCodec.toJson(usages);
+    }
+
+    @Benchmark
+    public ParkingTicket ticketFromJsonReflective() {
+        return new Gson().fromJson(reflectiveTicketJson, ParkingTicket.class);
+    }
+
+    @Benchmark
+    public ParkingTicket ticketFromJsonCodec() {
+        return JsonCodec.parseTicket(ticketJson);
+    }
+
+    @Benchmark
+    public ParkingLot parkingLotFromJsonReflective() {
+        return new Gson().fromJson(parkingLotJson, ParkingLot.class);
+    }
+
+    @Benchmark
+    public ParkingLot parkingLotFromJsonCodec() {
+        return JsonCodec.parseParkingLot(parkingLotJson);
+    }
+
+}
@@ -0,0 +1,415 @@
+package kopr.nikdy.viac.endpoints;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load client comparing the binary gate protocol of {@link GateServer} with the HTTP API on a running server,
+ * started with kopr.gate-protocol.enabled. Every operation is run with each number of requests in flight,
+ * the report gives requests per second and bytes sent and received per request, HTTP headers included.
+ * <ul>
+ * <li>binary - requests are pipelined, up to 64 in flight on one connection</li>
+ * <li>HTTP - one request in flight on a keep-alive connection, so as many connections as requests in flight</li>
+ * </ul>
+ * Remaining capacity is read from memory while usage goes through the actors and the store,
+ * so that pair compares the two paths, not only the protocols.
+ * <p>
+ * mvn -Pbench compile exec:exec@bench -Dbench.main=kopr.nikdy.viac.endpoints.GateBenchmark
+ * -Dbench.args="localhost 4567 4568 20000 16 256"
+ */
+public class GateBenchmark {
+
+    private static final int MAX_PIPELINED = 64;
+
+    private static final byte ADD_TICKET = 1;
+
+    private static final byte REMOVE_TICKET = 2;
+
+    private static final byte REMAINING_CAPACITY = 3;
+
+    private static final Pattern TICKET_ID = Pattern.compile("\"id\":\"([0-9a-f-]{36})\"");
+
+    private static final Pattern PARKING_LOT_ID = Pattern.compile("\"id\":(\\d+)");
+
+    private final String host;
+
+    private final int httpPort;
+
+    private final int gatePort;
+
+    private int parkingLotId;
+
+    private GateBenchmark(String host, int httpPort, int gatePort) {
+        this.host = host;
+        this.httpPort = httpPort;
+        this.gatePort = gatePort;
+    }
+
+    /**
+     * @param args host, HTTP port, gate port, requests of every run, numbers of requests in flight
+     */
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int httpPort = args.length > 1 ? Integer.parseInt(args[1]) : 4567;
+        int gatePort = args.length > 2 ? Integer.parseInt(args[2]) : 4568;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+
+        List<Integer> inFlights = new ArrayList<>();
+        for (int i = 4; i < args.length; i++) {
+            inFlights.add(Integer.parseInt(args[i]));
+        }
+        if (inFlights.isEmpty()) {
+            inFlights.add(16);
+            inFlights.add(256);
+        }
+
+        GateBenchmark benchmark = new GateBenchmark(host, httpPort, gatePort);
+        benchmark.createParkingLot();
+
+        System.out.printf("%-10s %-8s %9s %12s %12s%n", "operation", "protocol", "in flight", "req/s", "bytes/req");
+        for (int inFlight : inFlights) {
+            // the ticket IDs of the adds are removed by the following run
+            List<UUID> binaryTickets = benchmark.runBinary("add", inFlight, requests, benchmark::binaryAdd);
+            List<UUID> httpTickets = benchmark.runHttp("add", inFlight, requests, benchmark::httpAdd);
+            benchmark.runBinary("remove", inFlight, binaryTickets.size(), i -> binaryRemove(binaryTickets.get(i)));
+            benchmark.runHttp("remove", inFlight, httpTickets.size(), (client, i) -> httpRemove(client, httpTickets.get(i)));
+            benchmark.runBinary("capacity", inFlight, requests, i -> benchmark.binaryCapacity());
+            benchmark.runHttp("usage", inFlight, requests, (client, i) -> benchmark.httpUsage(client));
+        }
+    }
+
+    /**
+     * Parking lot big enough for all the tickets of the runs, its name is new on every start
+     */
+    private void createParkingLot() throws IOException {
+        try (HttpClient client = new HttpClient()) {
+            String body = "{\"name\":\"benchmark-" + System.currentTimeMillis() + "\",\"capacity\":100000000}";
+            Matcher id = PARKING_LOT_ID.matcher(client.exchange("POST", "/parkingLot", body));
+            if (!id.find()) {
+                throw new IOException("Parking lot wasn't created");
+            }
+
+            parkingLotId = Integer.parseInt(id.group(1));
+        }
+    }
+
+    /**
+     * Pipeline the requests on one connection for every 64 of them in flight
+     *
+     * @return Ticket IDs returned by the requests
+     */
+    private List<UUID> runBinary(String operation, int inFlight, int requests, BinaryRequest request) throws Exception {
+        int connections = (inFlight + MAX_PIPELINED - 1) / MAX_PIPELINED;
+        int pipelined = inFlight / connections;
+
+        return run(operation, "binary", inFlight, requests, connections, (from, to) -> {
+            Result result = new Result();
+            try (Socket socket = new Socket(host, gatePort)) {
+                socket.setTcpNoDelay(true);
+                OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                int sent = from;
+                for (; sent < to && sent - from < pipelined; sent++) {
+                    result.bytes += send(output, request.frame(sent));
+                }
+                output.flush();
+
+                for (int received = from; received < to; received++) {
+                    result.bytes += receive(input, result);
+                    if (sent < to) {
+                        result.bytes += send(output, request.frame(sent++));
+                        output.flush();
+                    }
+                }
+            }
+
+            return result;
+        });
+    }
+
+    /**
+     * HTTP/1.1 has one request in flight on a connection, so there is a connection for each of them
+     *
+     * @return Ticket IDs returned by the requests
+     */
+    private List<UUID> runHttp(String operation, int inFlight, int requests, HttpRequest request) throws Exception {
+        return run(operation, "HTTP", inFlight, requests, inFlight, (from, to) -> {
+            Result result = new Result();
+            try (HttpClient client = new HttpClient()) {
+                for (int i = from; i < to; i++) {
+                    String body = request.send(client, i);
+                    if (body == null) {
+                        result.failed++;
+                        continue;
+                    }
+
+                    Matcher id = TICKET_ID.matcher(body);
+                    if (id.find()) {
+                        result.tickets.add(UUID.fromString(id.group(1)));
+                    }
+                }
+                result.bytes = client.bytes;
+            }
+
+            return result;
+        });
+    }
+
+    /**
+     * Split the requests over the connections, each served by its own thread, and print the result
+     */
+    private List<UUID> run(String operation, String protocol, int inFlight, int requests, int connections,
+                           Connection connection) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        List<Future<Result>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int c = 0; c < connections; c++) {
+            int from = (int) ((long) requests * c / connections);
+            int to = (int) ((long) requests * (c + 1) / connections);
+            futures.add(executor.submit(() -> connection.run(from, to)));
+        }
+
+        Result total = new Result();
+        for (Future<Result> future : futures) {
+            total.add(future.get());
+        }
+        long nanos = System.nanoTime() - start;
+        executor.shutdown();
+
+        System.out.printf("%-10s %-8s %9d %12.0f %12d%n", operation, protocol, inFlight,
+                requests * 1e9 / nanos, requests == 0 ? 0 : total.bytes / requests);
+        if (total.failed > 0) {
+            System.out.println("  " + total.failed + " requests failed");
+        }
+
+        return total.tickets;
+    }
+
+    private static int send(OutputStream output, ByteBuffer frame) throws IOException {
+        byte[] bytes = frame.array();
+        output.write(bytes);
+
+        return bytes.length;
+    }
+
+    /**
+     * Read one response, successful add gives the ID of its ticket
+     */
+    private static int receive(DataInputStream input, Result result) throws IOException {
+        int length = input.readInt();
+        int requestId = input.readInt();
+        short status = input.readShort();
+        byte[] payload = new byte[length - Integer.BYTES - Short.BYTES];
+        input.readFully(payload);
+
+        if (status != 200) {
+            result.failed++;
+
+        } else if (payload.length == 3 * Long.BYTES) {
+            ByteBuffer ticket = ByteBuffer.wrap(payload);
+            result.tickets.add(new UUID(ticket.getLong(), ticket.getLong()));
+        }
+
+        return Integer.BYTES + length;
+    }
+
+    private ByteBuffer binaryAdd(int index) {
+        byte[] plate = plate(index).getBytes(StandardCharsets.UTF_8);
+        return frame(ADD_TICKET, index, Integer.BYTES + Short.BYTES + plate.length)
+                .putInt(parkingLotId)
+                .putShort((short) plate.length)
+                .put(plate);
+    }
+
+    private static ByteBuffer binaryRemove(UUID ticketId) {
+        return frame(REMOVE_TICKET, 0, 2 * Long.BYTES)
+                .putLong(ticketId.getMostSignificantBits())
+                .putLong(ticketId.getLeastSignificantBits());
+    }
+
+    private ByteBuffer binaryCapacity() {
+        return frame(REMAINING_CAPACITY, 0, Integer.BYTES).putInt(parkingLotId);
+    }
+
+    private static ByteBuffer frame(byte operation, int requestId, int payloadLength) {
+        return ByteBuffer.allocate(Integer.BYTES + 1 + Integer.BYTES + payloadLength)
+                .putInt(1 + Integer.BYTES + payloadLength)
+                .put(operation)
+                .putInt(requestId);
+    }
+
+    private String httpAdd(HttpClient client, int index) throws IOException {
+        return client.exchange("POST", "/ticket",
+                "{\"car_licence_plate\":\"" + plate(index) + "\",\"parking_lot_id\":" + parkingLotId + "}");
+    }
+
+    private static String httpRemove(HttpClient client, UUID ticketId) throws IOException {
+        return client.exchange("DELETE", "/ticket/" + ticketId, null);
+    }
+
+    private String httpUsage(HttpClient client) throws IOException {
+        return client.exchange("GET", "/parkingLot/usage?id=" + parkingLotId, null);
+    }
+
+    private static String plate(int index) {
+        return String.format("BA-%05d", index % 100000);
+    }
+
+    private interface BinaryRequest {
+
+        /**
+         * @param index Number of the request in the run, also its request ID
+         */
+        ByteBuffer frame(int index);
+
+    }
+
+    private interface HttpRequest {
+
+        /**
+         * @return Body of the response, null if it failed
+         */
+        String send(HttpClient client, int index) throws IOException;
+
+    }
+
+    private interface Connection {
+
+        /**
+         * Send requests from the index up to the other one, exclusive
+         */
+        Result run(int from, int to) throws IOException;
+
+    }
+
+    private static class Result {
+
+        private final List<UUID> tickets = new ArrayList<>();
+
+        private long bytes;
+
+        private int failed;
+
+        private void add(Result other) {
+            tickets.addAll(other.tickets);
+            bytes += other.bytes;
+            failed += other.failed;
+        }
+
+    }
+
+    /**
+     * Minimal HTTP/1.1 client on one keep-alive connection counting the bytes it sends and receives
+     */
+    private class HttpClient implements AutoCloseable {
+
+        private final Socket socket;
+
+        private final OutputStream output;
+
+        private final DataInputStream input;
+
+        private long bytes;
+
+        private HttpClient() throws IOException {
+            socket = new Socket(host, httpPort);
+            socket.setTcpNoDelay(true);
+            output = socket.getOutputStream();
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        /**
+         * @return Body of the response, null if the status isn't 200
+         */
+        private String exchange(String method, String path, String body) throws IOException {
+            byte[] content = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+            byte[] head = (method + " " + path + " HTTP/1.1\r\n" +
+                    "Host: " + host + "\r\n" +
+                    (body == null ? "" : "Content-Type: application/json\r\nContent-Length: " + content.length + "\r\n") +
+                    "\r\n").getBytes(StandardCharsets.US_ASCII);
+            output.write(head);
+            output.write(content);
+            output.flush();
+            bytes += head.length + content.length;
+
+            String statusLine = readLine();
+            int contentLength = -1;
+            boolean chunked = false;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                String lower = line.toLowerCase();
+                if (lower.startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(line.substring(15).trim());
+
+                } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                    chunked = true;
+                }
+            }
+
+            ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+            if (chunked) {
+                int size;
+                while ((size = Integer.parseInt(readLine().trim(), 16)) > 0) {
+                    responseBody.write(readBytes(size));
+                    readLine();
+                }
+                readLine();
+
+            } else if (contentLength > 0) {
+                responseBody.write(readBytes(contentLength));
+            }
+
+            if (!statusLine.contains(" 200 ")) {
+                return null;
+            }
+
+            return responseBody.toString(StandardCharsets.UTF_8.name());
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = input.read()) != '\n') {
+                if (c == -1) {
+                    throw new IOException("Connection closed by the server");
+                }
+                line.append((char) c);
+            }
+            bytes += line.length() + 1;
+
+            int end = line.length();
+            return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+        }
+
+        private byte[] readBytes(int count) throws IOException {
+            byte[] read = new byte[count];
+            input.readFully(read);
+            bytes += count;
+
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,430 @@
+package kopr.nikdy.viac.endpoints;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load client of the non-blocking request pipeline, thousands of keep-alive HTTP connections driven by one selector thread,
+ * each with one request in flight. The server keeps a waiting request in its async context instead of a Jetty thread,
+ * so the number of connections is limited by the admission limits and file descriptors, not by the thread pool.
+ * Requests over an admission limit are answered with 429 and counted as rejected, they aren't sent again.
+ * Every operation is run with each number of connections, the report gives requests per second and latency percentiles.
+ * <p>
+ * Both the client and the server need a file descriptor limit above the number of connections, eg. ulimit -n 16384.
+ * mvn -Pbench compile exec:exec@bench -Dbench.main=kopr.nikdy.viac.endpoints.PipelineBenchmark
+ * -Dbench.args="localhost 4567 100000 1000 4000"
+ */
+public class PipelineBenchmark {
+
+    private static final Pattern TICKET_ID = Pattern.compile("\"id\":\"([0-9a-f-]{36})\"");
+
+    private static final Pattern PARKING_LOT_ID = Pattern.compile("\"id\":(\\d+)");
+
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private final String host;
+
+    private final InetSocketAddress address;
+
+    private int parkingLotId;
+
+    private PipelineBenchmark(String host, int port) {
+        this.host = host;
+        this.address = new InetSocketAddress(host, port);
+    }
+
+    /**
+     * @param args host, HTTP port, requests of every run, numbers of connections
+     */
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 4567;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+        List<Integer> connectionCounts = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            connectionCounts.add(Integer.parseInt(args[i]));
+        }
+        if (connectionCounts.isEmpty()) {
+            connectionCounts.add(1000);
+            connectionCounts.add(4000);
+        }
+
+        PipelineBenchmark benchmark = new PipelineBenchmark(host, port);
+        benchmark.createParkingLot();
+
+        System.out.printf("%-10s %11s %10s %9s %9s %9s %9s %7s%n",
+                "operation", "connections", "req/s", "p50 ms", "p99 ms", "max ms", "rejected", "failed");
+        for (int connections : connectionCounts) {
+            // the tickets of the adds are removed by the following run
+            List<String> tickets = benchmark.run("add", connections, requests, benchmark::add).tickets;
+            benchmark.run("remove", connections, tickets.size(), index -> benchmark.remove(tickets.get(index)));
+            benchmark.run("usage", connections, requests, index -> benchmark.usage());
+        }
+    }
+
+    /**
+     * Parking lot big enough for all the tickets of the runs, its name is new on every start
+     */
+    private void createParkingLot() throws IOException {
+        String body = "{\"name\":\"pipeline-" + System.currentTimeMillis() + "\",\"capacity\":100000000}";
+        try (Socket socket = new Socket(address.getHostString(), address.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            output.write(request("POST", "/parkingLot", body, "Connection: close\r\n"));
+            output.flush();
+
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            InputStream input = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                response.write(buffer, 0, read);
+            }
+
+            Matcher id = PARKING_LOT_ID.matcher(response.toString(StandardCharsets.UTF_8.name()));
+            if (!id.find()) {
+                throw new IOException("Parking lot wasn't created");
+            }
+
+            parkingLotId = Integer.parseInt(id.group(1));
+        }
+    }
+
+    /**
+     * Open all connections at once and keep a request in flight on each until all requests are answered, then print the result
+     */
+    private Run run(String operation, int connections, int requests, Request request) throws IOException {
+        Run run = new Run(requests, request);
+
+        try (Selector selector = Selector.open()) {
+            long start = System.nanoTime();
+            for (int i = 0; i < connections && i < requests; i++) {
+                connect(selector);
+            }
+
+            while (!selector.keys().isEmpty()) {
+                selector.select(1000);
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    handle(key, run);
+                }
+            }
+            run.nanos = System.nanoTime() - start;
+        }
+
+        // requests never sent because their connections failed
+        run.failed += requests - run.next;
+        run.print(operation, connections);
+
+        return run;
+    }
+
+    private void connect(Selector selector) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.connect(address);
+        channel.register(selector, SelectionKey.OP_CONNECT, new Connection(channel));
+    }
+
+    private void handle(SelectionKey key, Run run) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                connection.channel.finishConnect();
+                sendNext(key, connection, run);
+
+            } else if (key.isWritable()) {
+                write(key, connection);
+
+            } else if (key.isReadable() && connection.read(run)) {
+                if (connection.closedByServer) {
+                    // the rest of the requests of this connection goes to a new one
+                    close(key, connection);
+                    if (run.next < run.requests) {
+                        connect(key.selector());
+                    }
+
+                } else {
+                    sendNext(key, connection, run);
+                }
+            }
+
+        } catch (IOException e) {
+            if (connection.sentAt != 0) {
+                run.failed++;
+            }
+            close(key, connection);
+        }
+    }
+
+    /**
+     * Send the next request of the run on the connection, or close it when all requests are sent
+     */
+    private void sendNext(SelectionKey key, Connection connection, Run run) throws IOException {
+        if (run.next == run.requests) {
+            close(key, connection);
+            return;
+        }
+
+        connection.output = ByteBuffer.wrap(run.request.bytes(run.next++));
+        connection.sentAt = System.nanoTime();
+        write(key, connection);
+    }
+
+    private static void write(SelectionKey key, Connection connection) throws IOException {
+        connection.channel.write(connection.output);
+        key.interestOps(connection.output.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private static void close(SelectionKey key, Connection connection) {
+        key.cancel();
+        try {
+            connection.channel.close();
+
+        } catch (IOException e) {
+            // nothing is sent on the connection anymore
+        }
+    }
+
+    private byte[] add(int index) {
+        return request("POST", "/ticket",
+                "{\"car_licence_plate\":\"" + String.format("PL-%05d", index % 100000) + "\",\"parking_lot_id\":" + parkingLotId + "}", "");
+    }
+
+    private byte[] remove(String ticketId) {
+        return request("DELETE", "/ticket/" + ticketId, null, "");
+    }
+
+    private byte[] usage() {
+        return request("GET", "/parkingLot/usage?id=" + parkingLotId, null, "");
+    }
+
+    private byte[] request(String method, String path, String body, String headers) {
+        byte[] content = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        byte[] head = (method + " " + path + " HTTP/1.1\r\n" +
+                "Host: " + host + "\r\n" +
+                headers +
+                (body == null ? "" : "Content-Type: application/json\r\nContent-Length: " + content.length + "\r\n") +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        byte[] request = Arrays.copyOf(head, head.length + content.length);
+        System.arraycopy(content, 0, request, head.length, content.length);
+        return request;
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+        for (int i = from; i <= to - pattern.length; i++) {
+            int matched = 0;
+            while (matched < pattern.length && data[i + matched] == pattern[matched]) {
+                matched++;
+            }
+            if (matched == pattern.length) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private interface Request {
+
+        /**
+         * @param index Number of the request in the run
+         */
+        byte[] bytes(int index);
+
+    }
+
+    private static class Run {
+
+        private final int requests;
+
+        private final Request request;
+
+        /**
+         * Latency of every answered request in nanoseconds, rejected ones included
+         */
+        private final long[] latencies;
+
+        private final List<String> tickets = new ArrayList<>();
+
+        /**
+         * Index of the next request to send
+         */
+        private int next;
+
+        private int answered;
+
+        private int rejected;
+
+        private int failed;
+
+        private long nanos;
+
+        private Run(int requests, Request request) {
+            this.requests = requests;
+            this.request = request;
+            this.latencies = new long[requests];
+        }
+
+        private void answer(int status, String body, long latency) {
+            latencies[answered++] = latency;
+
+            if (status == 429) {
+                rejected++;
+
+            } else if (status != 200) {
+                failed++;
+
+            } else {
+                Matcher id = TICKET_ID.matcher(body);
+                if (id.find()) {
+                    tickets.add(id.group(1));
+                }
+            }
+        }
+
+        private void print(String operation, int connections) {
+            long[] sorted = Arrays.copyOf(latencies, answered);
+            Arrays.sort(sorted);
+
+            System.out.printf("%-10s %11d %10.0f %9.1f %9.1f %9.1f %9d %7d%n", operation, connections,
+                    answered * 1e9 / Math.max(nanos, 1), millis(sorted, 0.5), millis(sorted, 0.99), millis(sorted, 1), rejected, failed);
+        }
+
+        private static double millis(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+
+            return sorted[Math.max((int) Math.ceil(percentile * sorted.length) - 1, 0)] / 1e6;
+        }
+
+    }
+
+    /**
+     * Keep-alive connection with at most one request in flight
+     */
+    private static class Connection {
+
+        private final SocketChannel channel;
+
+        private ByteBuffer output;
+
+        private ByteBuffer input = ByteBuffer.allocate(4096);
+
+        /**
+         * When the request in flight was sent in nanoseconds of {@link System#nanoTime()}, 0 with no request in flight
+         */
+        private long sentAt;
+
+        /**
+         * The last response asked to close the connection
+         */
+        private boolean closedByServer;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Read what the server sent so far and answer the request in flight once its whole response is read
+         *
+         * @return true if the response was whole
+         */
+        private boolean read(Run run) throws IOException {
+            if (!input.hasRemaining()) {
+                input = ByteBuffer.allocate(input.capacity() * 2).put(input.flip());
+            }
+            if (channel.read(input) == -1) {
+                throw new IOException("Connection closed by the server");
+            }
+
+            byte[] data = input.array();
+            int length = input.position();
+            int headerEnd = indexOf(data, 0, length, HEADER_END);
+            if (headerEnd == -1) {
+                return false;
+            }
+
+            String head = new String(data, 0, headerEnd, StandardCharsets.US_ASCII);
+            int bodyStart = headerEnd + HEADER_END.length;
+            int contentLength = 0;
+            boolean chunked = false;
+            boolean close = false;
+            for (String line : head.split("\r\n")) {
+                String lower = line.toLowerCase();
+                if (lower.startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(line.substring(15).trim());
+
+                } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                    chunked = true;
+
+                } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                    close = true;
+                }
+            }
+
+            String body;
+            if (chunked) {
+                if (length < bodyStart + LAST_CHUNK.length
+                        || indexOf(data, length - LAST_CHUNK.length, length, LAST_CHUNK) == -1) {
+                    return false;
+                }
+                body = dechunk(data, bodyStart);
+
+            } else {
+                if (length < bodyStart + contentLength) {
+                    return false;
+                }
+                body = new String(data, bodyStart, contentLength, StandardCharsets.UTF_8);
+            }
+
+            run.answer(Integer.parseInt(head.substring(9, 12)), body, System.nanoTime() - sentAt);
+            sentAt = 0;
+            closedByServer = close;
+            input.clear();
+
+            return true;
+        }
+
+        private static String dechunk(byte[] data, int from) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int position = from;
+            while (true) {
+                int lineEnd = indexOf(data, position, data.length, new byte[]{'\r', '\n'});
+                int size = Integer.parseInt(new String(data, position, lineEnd - position, StandardCharsets.US_ASCII).trim(), 16);
+                if (size == 0) {
+                    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+                }
+
+                body.write(data, lineEnd + 2, size);
+                position = lineEnd + 2 + size + 2;
+            }
+        }
+
+    }
+
+}
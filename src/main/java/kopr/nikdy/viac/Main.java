@@ -1,28 +1,158 @@
 package kopr.nikdy.viac;
 
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import kopr.nikdy.viac.endpoints.Server;
-import kopr.nikdy.viac.persistance.Database;
+import kopr.nikdy.viac.persistance.*;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.SQLException;
+import java.util.List;
 
 public class Main {
 
+    /**
+     * Without arguments starts the server with the store engine set by kopr.store in application.conf, otherwise runs one of the maintenance commands and exits:
+     * <ul>
+     * <li>rebuild-daily-stats - recompute visitors per day rollup from the tickets</li>
+     * <li>check-daily-stats - print days where the rollup differs from the tickets</li>
+     * <li>check-query-plans - print steps of the frequent queries scanning a whole ticket table, run by mvn verify</li>
+     * </ul>
+     * Command failing, or a check finding a problem, exits with status 1.
+     */
     public static void main(String[] args) throws ClassNotFoundException {
-        startServer();
+        if (args.length == 0) {
+            startServer();
+
+        } else {
+            if (!runCommand(args[0])) {
+                System.exit(1);
+            }
+        }
     }
 
     private static void startServer() throws ClassNotFoundException {
+        String engine = ConfigFactory.load().getString("kopr.store");
+
+        switch (engine) {
+            case "sqlite":
+                startServer(new SqliteStore());
+                break;
+
+            case "memory":
+                startServer(new InMemoryStore());
+                break;
+
+            default:
+                System.err.println("Unknown store " + engine);
+        }
+    }
+
+    private static void startServer(SqliteStore store) throws ClassNotFoundException {
+        JournaledTicketStore journaledStore = null;
+        OccupancySnapshots snapshots = null;
         try {
-            Database.initialize();
-            Server.registerEndpoints();
+            Path dataDirectory = getDataDirectory();
+            Database.initialize(dataDirectory);
+
+            TicketStore ticketStore = store;
+            Config journal = ConfigFactory.load().getConfig("kopr.journal");
+            if (journal.getBoolean("enabled")) {
+                journaledStore = new JournaledTicketStore(store,
+                        new TicketJournal(dataDirectory.resolve(journal.getString("directory")), journal.getBytes("segment-size").intValue()),
+                        JournaledTicketStore.FlushPolicy.valueOf(journal.getString("flush").toUpperCase()),
+                        journal.getDuration("flush-interval"),
+                        journal.getInt("apply-batch-size"),
+                        journal.getDuration("close-timeout"));
+                ticketStore = journaledStore;
+            }
+
+            Config snapshot = ConfigFactory.load().getConfig("kopr.occupancy-snapshot");
+            if (snapshot.getBoolean("enabled")) {
+                snapshots = new OccupancySnapshots(dataDirectory.resolve(snapshot.getString("file")));
+                Occupancy.initialize(snapshots.load());
+                snapshots.start(snapshot.getDuration("interval"));
+
+            } else {
+                Occupancy.initialize(store, ticketStore);
+            }
 
-        } catch (SQLException e) {
+            Server.registerEndpoints(ticketStore, store);
+
+        } catch (SQLException | IOException e) {
             // if the error message is "out of memory",
             // it probably means no database file is found
             System.err.println(e.getMessage());
         }
 
-        Runtime.getRuntime().addShutdownHook(new Thread(Database::close));
+        JournaledTicketStore closedFirst = journaledStore;
+        OccupancySnapshots writtenLast = snapshots;
+        boolean statementCacheReport = ConfigFactory.load().getBoolean("kopr.statement-cache-report");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            Server.close();
+            if (statementCacheReport) {
+                System.err.println(CachedConnection.describeStatistics());
+            }
+            if (closedFirst != null) {
+                closedFirst.close();
+            }
+            if (writtenLast != null) {
+                writtenLast.close();
+            }
+            Database.close();
+        }));
+    }
+
+    private static void startServer(InMemoryStore store) {
+        Server.registerEndpoints(store, store);
+    }
+
+    /**
+     * Directory of the database, journal and occupancy snapshot set by kopr.data-dir, every node on one machine needs its own
+     */
+    private static Path getDataDirectory() {
+        return Paths.get(ConfigFactory.load().getString("kopr.data-dir"));
+    }
+
+    /**
+     * @return Whether the command succeeded and its check found nothing
+     */
+    private static boolean runCommand(String command) throws ClassNotFoundException {
+        try {
+            Database.initialize(getDataDirectory());
+
+            switch (command) {
+                case "rebuild-daily-stats":
+                    Database.rebuildDailyStats();
+                    System.out.println("Daily stats rebuilt");
+                    return true;
+
+                case "check-daily-stats":
+                    List<String> mismatches = Database.checkDailyStats();
+                    mismatches.forEach(System.out::println);
+                    System.out.println(mismatches.isEmpty() ? "Daily stats are consistent" : mismatches.size() + " mismatches found");
+                    return mismatches.isEmpty();
+
+                case "check-query-plans":
+                    List<String> regressions = Database.checkQueryPlans();
+                    regressions.forEach(System.out::println);
+                    System.out.println(regressions.isEmpty() ? "No query scans a ticket table" : regressions.size() + " full scans found");
+                    return regressions.isEmpty();
+
+                default:
+                    System.err.println("Unknown command " + command);
+                    return false;
+            }
+
+        } catch (SQLException | IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+
+        } finally {
+            Database.close();
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -1,12 +1,12 @@
 package kopr.nikdy.viac.actions;
 
-import com.google.gson.Gson;
 import org.eclipse.jetty.http.HttpStatus;
 import spark.Request;
 import spark.Response;
 
 import java.util.Objects;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public abstract class Action {
 
@@ -14,15 +14,43 @@ public abstract class Action {
     private final Response response;
 
     /**
-     * Latch waiting for all tasks to be processed before sending response to the client.
-     * Usually is set to 1 task.
+     * Completed once the action is processed, then the response is sent to the client.
+     * No thread waits for it, the request thread is released as soon as the action is dispatched.
      */
-    private final CountDownLatch pendingTasks;
+    private final CompletableFuture<Void> completion;
 
-    protected Action(Request request, Response response, CountDownLatch pendingTasks) {
+    /**
+     * Whether some thread completed the action, the response isn't changed afterwards.
+     * Guarded by the lock of the action, so when an actor and the timeout answer at once, the first one to complete wins.
+     */
+    private boolean answered;
+
+    /**
+     * Whether a worker took the action to write it to the store, guarded by the lock of the action.
+     * A claimed action is answered only by that worker once the write is committed, the timeout can't answer it anymore.
+     */
+    private boolean claimed;
+
+    /**
+     * When the action was put in the mailbox of the lane processing it, in nanoseconds of {@link System#nanoTime()}
+     */
+    private long queuedAt;
+
+    /**
+     * When the client stops waiting for the response, in nanoseconds of {@link System#nanoTime()}
+     */
+    private long deadline;
+
+    private boolean hasDeadline;
+
+    protected Action(Request request, Response response) {
+        this(request, response, new CompletableFuture<>());
+    }
+
+    protected Action(Request request, Response response, CompletableFuture<Void> completion) {
         this.request = request;
         this.response = response;
-        this.pendingTasks = pendingTasks;
+        this.completion = completion;
     }
 
     /**
@@ -37,33 +65,91 @@ public abstract class Action {
     }
 
     /**
-     * Marks the request as invalid by setting error status
+     * Marks the request as invalid by setting error status, does nothing once the action is completed
      *
      * @param message   Message to return to the client
      * @param status    Error status of the response
      */
-    public void setErrorResponse(String message, HttpStatus.Code status) {
+    public synchronized void setErrorResponse(String message, HttpStatus.Code status) {
+        if (answered) {
+            return;
+        }
+
         response.body(message);
         response.status(status.getCode());
     }
 
     /**
-     * Before sending response back to the client, response.wait() is called to wait for actor to finish processing.
-     * This function releases the wait() allowing response to be sent.
+     * Mark the action as processed, which sends the response set so far to the client.
+     * Completing already completed action does nothing.
+     */
+    public void complete() {
+        synchronized (this) {
+            answered = true;
+        }
+
+        this.completion.complete(null);
+    }
+
+    /**
+     * Take the action before writing it to the store, so the client isn't told it failed while the write gets committed
+     *
+     * @return false if the action was already completed, it must not be written then
+     */
+    public synchronized boolean claim() {
+        if (answered) {
+            return false;
+        }
+
+        claimed = true;
+        return true;
+    }
+
+    /**
+     * Set the response and complete the action at once, unless it is already completed or claimed
+     *
+     * @param writer Sets the response
+     * @return false if the action was already completed or claimed, the response is left untouched then
+     */
+    public boolean completeWith(Consumer<Response> writer) {
+        synchronized (this) {
+            if (answered || claimed) {
+                return false;
+            }
+
+            writer.accept(response);
+            answered = true;
+        }
+
+        return completion.complete(null);
+    }
+
+    /**
+     * Answer with the error and complete the action, unless it is already completed or claimed
+     *
+     * @return false if the action was already completed or claimed, the response is left untouched then
      */
-    public void markCompleted() {
-        this.pendingTasks.countDown();
+    public boolean completeWithError(String message, HttpStatus.Code status) {
+        return completeWith(response -> {
+            response.body(message);
+            response.status(status.getCode());
+        });
     }
 
     /**
-     * Set response body to be sent back to the client.
-     * Every response is serialized as JSON.
+     * Set response body to be sent back to the client, does nothing once the action is completed.
+     * Every response is serialized as JSON by {@link JsonCodec}.
      *
      * @param content Content to add into response body
      */
     public void setResponseBody(Object content) {
-        String responseBody = new Gson().toJson(content);
-        this.response.body(responseBody);
+        String body = JsonCodec.toJson(content);
+
+        synchronized (this) {
+            if (!answered) {
+                this.response.body(body);
+            }
+        }
     }
 
     public Request getRequest() {
@@ -74,8 +160,57 @@ public abstract class Action {
         return response;
     }
 
-    public CountDownLatch getPendingTasks() {
-        return pendingTasks;
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Remember the action is being put in the mailbox of a lane now, to measure how long it waits there
+     */
+    public void markQueued() {
+        this.queuedAt = System.nanoTime();
+    }
+
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    /**
+     * @param timeoutNanos How long the client waits for the response from now, 0 waits forever
+     */
+    public void setTimeout(long timeoutNanos) {
+        this.hasDeadline = timeoutNanos > 0;
+        this.deadline = System.nanoTime() + timeoutNanos;
+    }
+
+    /**
+     * @return Nanoseconds until the deadline, 0 if the client waits forever
+     */
+    public long getRemainingTimeout() {
+        return hasDeadline ? Math.max(deadline - System.nanoTime(), 1) : 0;
+    }
+
+    /**
+     * Expired action was already answered or its client stopped waiting, it should be dropped without touching the store
+     *
+     * @return true if the deadline passed or the action is already completed
+     */
+    public boolean isExpired() {
+        return completion.isDone() || hasDeadline && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * Answer expired action with 503 without processing it, an action answered by the timeout keeps its response
+     *
+     * @return true if the action was dropped
+     */
+    public boolean dropIfExpired() {
+        if (!isExpired()) {
+            return false;
+        }
+
+        completeWithError("Request deadline passed", HttpStatus.Code.SERVICE_UNAVAILABLE);
+        return true;
     }
 
     @Override
@@ -85,12 +220,12 @@ public abstract class Action {
         Action that = (Action) o;
         return Objects.equals(request, that.request) &&
                 Objects.equals(response, that.response) &&
-                Objects.equals(pendingTasks, that.pendingTasks);
+                Objects.equals(completion, that.completion);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(request, response, pendingTasks);
+        return Objects.hash(request, response, completion);
     }
 
     @Override
@@ -98,7 +233,7 @@ public abstract class Action {
         return "Action{" +
                 "request=" + request +
                 ", response=" + response +
-                ", pendingTasks=" + pendingTasks +
+                ", completion=" + completion +
                 '}';
     }
 
@@ -0,0 +1,19 @@
+package kopr.nikdy.viac.actions;
+
+/**
+ * Runs actions created by the endpoints, every action has to be completed by {@link Action#complete()} once processed
+ */
+public interface ActionDispatcher {
+
+    /**
+     * Start processing the action without waiting for it
+     */
+    void dispatch(Action action);
+
+    /**
+     * Finish the work that must not be cut by the shutdown, called before the stores are closed
+     */
+    default void close() {
+    }
+
+}
@@ -1,18 +1,15 @@
 package kopr.nikdy.viac.actions;
 
-import com.google.gson.Gson;
 import kopr.nikdy.viac.entities.ParkingLot;
 import spark.Request;
 import spark.Response;
 
-import java.util.concurrent.CountDownLatch;
-
 public class AddParkingLotAction extends Action {
 
     private ParkingLot parkingLot;
 
-    public AddParkingLotAction(Request request, Response response, CountDownLatch pendingTasks) {
-        super(request, response, pendingTasks);
+    public AddParkingLotAction(Request request, Response response) {
+        super(request, response);
     }
 
     public ParkingLot getParkingLot() throws InvalidRequestParametersException {
@@ -26,7 +23,7 @@ public class AddParkingLotAction extends Action {
     private void extractParkingLotParameter() throws InvalidRequestParametersException {
         try {
             String parkingLotJson = getRequest().body();
-            parkingLot = new Gson().fromJson(parkingLotJson, ParkingLot.class);
+            parkingLot = JsonCodec.parseParkingLot(parkingLotJson);
 
         } catch (Exception e) {
             throw new InvalidRequestParametersException("{\"name\": str, \"capacity\": int}");
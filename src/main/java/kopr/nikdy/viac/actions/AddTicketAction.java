@@ -1,28 +1,40 @@
 package kopr.nikdy.viac.actions;
 
-import com.google.gson.Gson;
 import kopr.nikdy.viac.entities.ParkingTicket;
+import kopr.nikdy.viac.persistance.TicketIds;
 import spark.Request;
 import spark.Response;
 
 import java.time.LocalDateTime;
-import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
 
 public class AddTicketAction extends Action {
 
     private ParkingTicket ticket;
 
-    public AddTicketAction(Request request, Response response, CountDownLatch pendingTasks) {
-        super(request, response, pendingTasks);
-        ticket = extractRequestData();
+    public AddTicketAction(Request request, Response response) {
+        super(request, response);
+        ticket = issue(extractRequestData());
+    }
+
+    /**
+     * Ticket received in another format than HTTP with JSON, like the binary gate protocol, the request is null
+     */
+    public AddTicketAction(Response response, Integer parkingLotId, String carLicencePlate) {
+        super(null, response);
+
+        ParkingTicket received = new ParkingTicket();
+        received.setParkingLotId(parkingLotId);
+        received.setCarLicencePlate(carLicencePlate);
+        ticket = issue(received);
     }
 
     private ParkingTicket extractRequestData() {
         String parkingLotJson = getRequest().body();
-        ParkingTicket ticket = new Gson().fromJson(parkingLotJson, ParkingTicket.class);
+        return JsonCodec.parseTicket(parkingLotJson);
+    }
 
-        ticket.setId(UUID.randomUUID());
+    private static ParkingTicket issue(ParkingTicket ticket) {
+        ticket.setId(TicketIds.next(ticket.getParkingLotId()));
         ticket.setArrivalTime(LocalDateTime.now());
 
         return ticket;
@@ -0,0 +1,449 @@
+package kopr.nikdy.viac.actions;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import kopr.nikdy.viac.entities.ParkingTicket;
+import kopr.nikdy.viac.persistance.Occupancy;
+import kopr.nikdy.viac.persistance.TicketIds;
+import kopr.nikdy.viac.persistance.TicketStore;
+import org.eclipse.jetty.http.HttpStatus;
+import spark.Request;
+import spark.Response;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Arrivals and departures buffered by a gate, like the ones it sends after its uplink was down.
+ * Slots of every parking lot are reserved once for all its arrivals, the items are written in one transaction
+ * and every item gets its own result. Failure of one item doesn't stop the others.
+ * Departure of a ticket arriving earlier in the batch frees its slot for the arrivals after it,
+ * so a gate resyncing a busy hour at a nearly full parking lot doesn't lose the history.
+ */
+public class BatchTicketsAction extends Action {
+
+    private static final String ARRIVAL_FORMAT =
+            "{\"event\": \"arrival\", \"parking_lot_id\": int, \"car_licence_plate\": str, \"arrival_time\": date, \"id\": uuid}";
+
+    private static final String DEPARTURE_FORMAT = "{\"event\": \"departure\", \"id\": uuid, \"leave_time\": date}";
+
+    /**
+     * How old an event may be, older items are rejected
+     */
+    private final Duration maxAge;
+
+    /**
+     * How far ahead of the server clock an event may be, the clock of the gate may run slightly ahead
+     */
+    private final Duration maxClockSkew;
+
+    private List<Item> items = Collections.emptyList();
+
+    /**
+     * Parking lot -> number of slots its owner reserved for the batch
+     */
+    private final Map<Integer, Integer> reservedSlots = new HashMap<>();
+
+    private InvalidRequestParametersException invalidRequest;
+
+    /**
+     * @param maxItems     Most items accepted in one batch
+     * @param maxAge       How old an event may be
+     * @param maxClockSkew How far in the future an event may be
+     */
+    public BatchTicketsAction(Request request, Response response, int maxItems, Duration maxAge, Duration maxClockSkew) {
+        super(request, response);
+        this.maxAge = maxAge;
+        this.maxClockSkew = maxClockSkew;
+
+        try {
+            items = extractRequestData(maxItems);
+
+        } catch (InvalidRequestParametersException e) {
+            invalidRequest = e;
+        }
+    }
+
+    private List<Item> extractRequestData(int maxItems) throws InvalidRequestParametersException {
+        JsonArray array;
+        try {
+            array = new JsonParser().parse(getRequest().body()).getAsJsonArray();
+
+        } catch (RuntimeException e) {
+            throw new InvalidRequestParametersException("[" + ARRIVAL_FORMAT + ", " + DEPARTURE_FORMAT + ", ...]");
+        }
+
+        if (array.size() > maxItems) {
+            throw new InvalidRequestParametersException("[...] with at most " + maxItems + " items");
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        List<Item> result = new ArrayList<>(array.size());
+        Map<UUID, Item> arrivals = new HashMap<>();
+        for (JsonElement element : array) {
+            Item item = extractItem(element, now);
+            validateItem(item, now);
+            linkArrival(item, arrivals);
+            result.add(item);
+        }
+
+        return result;
+    }
+
+    /**
+     * Pair the departure with the arrival of its ticket earlier in the batch, its slot is then known to be freed by the batch itself.
+     * Such departure leaving before the arrival fails, it would otherwise be counted as freeing the slot.
+     *
+     * @param arrivals Ticket ID -> arrival of the batch before the item
+     */
+    private void linkArrival(Item item, Map<UUID, Item> arrivals) {
+        if (item.error != null) {
+            return;
+        }
+
+        if (item.event == Event.ARRIVAL) {
+            arrivals.putIfAbsent(item.ticket.getId(), item);
+            return;
+        }
+
+        Item arrival = arrivals.remove(item.ticket.getId());
+        if (arrival == null) {
+            return;
+        }
+
+        if (item.ticket.getLeaveTime().isBefore(arrival.ticket.getArrivalTime())) {
+            item.fail("Leave time " + item.ticket.getLeaveTime() + " is before the arrival time " + arrival.ticket.getArrivalTime(),
+                    HttpStatus.Code.BAD_REQUEST);
+
+        } else {
+            item.arrival = arrival;
+        }
+    }
+
+    /**
+     * Arrival without ID gets a new one, missing times are set to now
+     */
+    private Item extractItem(JsonElement element, LocalDateTime now) throws InvalidRequestParametersException {
+        try {
+            JsonObject object = element.getAsJsonObject();
+            String event = object.has("event") ? object.get("event").getAsString() : "";
+            ParkingTicket ticket = JsonCodec.parseTicket(object);
+
+            if (event.equals("arrival") && ticket.getParkingLotId() != null && ticket.getCarLicencePlate() != null) {
+                if (ticket.getId() == null) {
+                    ticket.setId(TicketIds.next(ticket.getParkingLotId()));
+                }
+                if (ticket.getArrivalTime() == null) {
+                    ticket.setArrivalTime(now);
+                }
+                ticket.setLeaveTime(null);
+
+                return new Item(Event.ARRIVAL, ticket);
+            }
+
+            if (event.equals("departure") && ticket.getId() != null) {
+                if (ticket.getLeaveTime() == null) {
+                    ticket.setLeaveTime(now);
+                }
+
+                return new Item(Event.DEPARTURE, ticket);
+            }
+
+        } catch (RuntimeException e) {
+            // reported below together with items of an unknown event
+        }
+
+        throw new InvalidRequestParametersException(ARRIVAL_FORMAT + " or " + DEPARTURE_FORMAT);
+    }
+
+    /**
+     * Fail item with the time of its event out of range or an arrival with ID of another parking lot, the other items are still written.
+     * Leave time before the arrival is rejected by the store, which knows the arrival of the ticket, or by {@link #linkArrival}.
+     */
+    private void validateItem(Item item, LocalDateTime now) {
+        LocalDateTime time = item.event == Event.ARRIVAL ? item.ticket.getArrivalTime() : item.ticket.getLeaveTime();
+
+        if (time.isAfter(now.plus(maxClockSkew))) {
+            item.fail("Time of the event " + time + " is in the future", HttpStatus.Code.BAD_REQUEST);
+
+        } else if (time.isBefore(now.minus(maxAge))) {
+            item.fail("Time of the event " + time + " is older than " + maxAge.toDays() + " days", HttpStatus.Code.BAD_REQUEST);
+
+        } else if (item.event == Event.ARRIVAL && TicketIds.getParkingLotId(item.ticket.getId()) != item.ticket.getParkingLotId()) {
+            item.fail("Ticket ID isn't generated for parking lot " + item.ticket.getParkingLotId(), HttpStatus.Code.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * @throws InvalidRequestParametersException Body isn't an array of arrivals and departures or has too many of them
+     */
+    public List<Item> getItems() throws InvalidRequestParametersException {
+        if (invalidRequest != null) {
+            throw invalidRequest;
+        }
+
+        return items;
+    }
+
+    /**
+     * Reserve slots for the arrivals in {@link Occupancy} with one capacity check per parking lot.
+     * Departures of tickets not arriving in the batch free their slots only once it is committed.
+     */
+    public void reserveSlots() {
+        getWantedSlots().forEach((parkingLotId, wanted) -> assignSlots(parkingLotId, Occupancy.tryReserve(parkingLotId, wanted)));
+    }
+
+    /**
+     * Arrivals and the departures paired with them are counted in the order of the batch,
+     * a parking lot needs as many slots as the most of its tickets parked at once.
+     *
+     * @return Parking lot -> number of slots its arrivals not rejected yet need, in the order of the batch
+     */
+    public Map<Integer, Integer> getWantedSlots() {
+        Map<Integer, Integer> parked = new HashMap<>();
+        Map<Integer, Integer> wanted = new LinkedHashMap<>();
+        for (Item item : items) {
+            if (item.error != null) {
+                continue;
+            }
+
+            if (item.event == Event.ARRIVAL) {
+                int count = parked.merge(item.ticket.getParkingLotId(), 1, Integer::sum);
+                wanted.merge(item.ticket.getParkingLotId(), count, Math::max);
+
+            } else if (item.arrival != null && item.arrival.error == null) {
+                parked.merge(item.arrival.ticket.getParkingLotId(), -1, Integer::sum);
+            }
+        }
+
+        return wanted;
+    }
+
+    /**
+     * Arrivals take the reserved slots in the order of the batch and the departures paired with them give theirs back.
+     * Arrival finding no free slot is rejected together with its departure, the earlier arrivals keep theirs.
+     *
+     * @param reserved Number of slots reserved for the arrivals of the parking lot
+     */
+    public void assignSlots(Integer parkingLotId, int reserved) {
+        reservedSlots.put(parkingLotId, reserved);
+
+        int parked = 0;
+        for (Item item : items) {
+            if (item.event == Event.ARRIVAL && item.error == null && item.ticket.getParkingLotId().equals(parkingLotId)) {
+                if (parked < reserved) {
+                    parked++;
+
+                } else {
+                    item.fail("Cannot add ticket to a full parking lot", HttpStatus.Code.BAD_REQUEST);
+                }
+
+            } else if (item.event == Event.DEPARTURE && item.error == null && item.arrival != null
+                    && item.arrival.ticket.getParkingLotId().equals(parkingLotId)) {
+                if (item.arrival.error == null) {
+                    parked--;
+
+                } else {
+                    item.fail("Arrival of the ticket was rejected\n" + item.arrival.error, HttpStatus.Code.BAD_REQUEST);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the items that weren't rejected, in the order of the batch, to be called inside a transaction.
+     * Failure of one write does not roll back the others.
+     */
+    public void write(TicketStore ticketStore) {
+        for (Item item : items) {
+            if (item.error != null) {
+                continue;
+            }
+
+            try {
+                if (item.event == Event.ARRIVAL) {
+                    ticketStore.addTicket(item.ticket);
+
+                } else {
+                    item.parkingLotId = ticketStore.removeTicket(item.ticket.getId(), item.ticket.getLeaveTime());
+                }
+                item.written = true;
+
+            } catch (Exception e) {
+                item.fail((item.event == Event.ARRIVAL ? "Adding ticket\n" : "Failed removing ticket\n") + e.getMessage(),
+                        HttpStatus.Code.BAD_REQUEST);
+            }
+        }
+    }
+
+    /**
+     * Transaction with the writes was rolled back, none of the items is saved
+     */
+    public void failWrites(Exception e) {
+        for (Item item : items) {
+            if (item.error == null) {
+                item.written = false;
+                item.fail("Failed committing tickets\n" + e.getMessage(), HttpStatus.Code.BAD_REQUEST);
+            }
+        }
+    }
+
+    /**
+     * Once the transaction is committed or rolled back, give back slots reserved by unsaved arrivals and by removed tickets
+     */
+    public void releaseSlots() {
+        getFreedSlots().forEach((parkingLotId, freed) -> {
+            for (int i = 0; i < freed; i++) {
+                Occupancy.release(parkingLotId);
+            }
+            for (int i = 0; i > freed; i--) {
+                Occupancy.occupy(parkingLotId);
+            }
+        });
+    }
+
+    /**
+     * Reserved slots not taken by the saved arrivals are given back, with the slots of all removed tickets.
+     * Departure paired with an arrival failing on its own leaves the slot of the arrival taken,
+     * the parking lot may then have one more ticket than the slots reserved and the count is negative.
+     *
+     * @return Parking lot -> number of slots to give back once the transaction is committed or rolled back
+     */
+    public Map<Integer, Integer> getFreedSlots() {
+        Map<Integer, Integer> freed = new HashMap<>(reservedSlots);
+        for (Item item : items) {
+            if (item.event == Event.ARRIVAL && item.written) {
+                freed.merge(item.ticket.getParkingLotId(), -1, Integer::sum);
+
+            } else if (item.event == Event.DEPARTURE && item.written) {
+                freed.merge(item.parkingLotId, 1, Integer::sum);
+            }
+        }
+
+        return freed;
+    }
+
+    /**
+     * Answer with the result of every item, in the order of the batch
+     */
+    public void setResults() {
+        List<Result> results = new ArrayList<>(items.size());
+        for (Item item : items) {
+            results.add(new Result(item));
+        }
+
+        setResponseBody(results);
+    }
+
+    /**
+     * @return Parking lots of the tickets removed by the batch, their visitor counts changed
+     */
+    public Set<Integer> getRemovalParkingLots() {
+        Set<Integer> parkingLots = new HashSet<>();
+        for (Item item : items) {
+            if (item.event == Event.DEPARTURE && item.written) {
+                parkingLots.add(item.parkingLotId);
+            }
+        }
+
+        return parkingLots;
+    }
+
+    /**
+     * Parking lot owning the batch in the routing of writes, the one of its first item
+     */
+    public Integer getParkingLotId() {
+        if (items.isEmpty()) {
+            return 0;
+        }
+
+        Item first = items.get(0);
+        return first.event == Event.ARRIVAL ? first.ticket.getParkingLotId() : TicketIds.getParkingLotId(first.ticket.getId());
+    }
+
+    public enum Event {
+        ARRIVAL, DEPARTURE
+    }
+
+    public static class Item {
+
+        private final Event event;
+
+        /**
+         * Ticket of the arrival, or ID and leave time of the departure
+         */
+        private final ParkingTicket ticket;
+
+        /**
+         * Arrival of the ticket earlier in the batch, null for arrivals and departures of other tickets
+         */
+        private Item arrival;
+
+        /**
+         * Whether the write succeeded and is part of the transaction
+         */
+        private boolean written;
+
+        /**
+         * Parking lot of the removed ticket
+         */
+        private Integer parkingLotId;
+
+        private int status = HttpStatus.OK_200;
+
+        private String error;
+
+        private Item(Event event, ParkingTicket ticket) {
+            this.event = event;
+            this.ticket = ticket;
+        }
+
+        private void fail(String message, HttpStatus.Code status) {
+            this.error = message;
+            this.status = status.getCode();
+        }
+
+        public Event getEvent() {
+            return event;
+        }
+
+        public ParkingTicket getTicket() {
+            return ticket;
+        }
+
+    }
+
+    /**
+     * Result of one item, the ticket of an arrival or ID of a departure like the single endpoints answer, or the error
+     */
+    private static class Result {
+
+        private final int status;
+
+        private final ParkingTicket ticket;
+
+        private final UUID id;
+
+        private final String error;
+
+        private Result(Item item) {
+            this.status = item.status;
+            this.error = item.error;
+            this.ticket = item.error == null && item.event == Event.ARRIVAL ? item.ticket : null;
+            this.id = item.error == null && item.event == Event.DEPARTURE ? item.ticket.getId() : null;
+        }
+
+    }
+
+}
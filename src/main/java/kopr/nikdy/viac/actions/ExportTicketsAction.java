@@ -0,0 +1,109 @@
+package kopr.nikdy.viac.actions;
+
+import kopr.nikdy.viac.persistance.TicketStore;
+import org.eclipse.jetty.http.HttpStatus;
+import spark.Request;
+import spark.Response;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Download of all tickets, written straight to the response output while they are read
+ */
+public class ExportTicketsAction extends Action {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private TicketFormat format;
+
+    public ExportTicketsAction(Request request, Response response) {
+        super(request, response);
+    }
+
+    public TicketFormat getFormat() throws InvalidRequestParametersException {
+        if (format == null) {
+            format = TicketFormat.fromName(getRequest().queryParams("format"));
+        }
+
+        return format;
+    }
+
+    /**
+     * Stream all tickets of the store to the body. Format or body failing to open is answered with 400,
+     * a failure once the status is sent aborts the connection, the chunked or gzipped body is never terminated.
+     * The export stops once the action was answered, for example by its timeout.
+     */
+    public void exportFrom(TicketStore ticketStore) {
+        TicketFormat format;
+        Writer body;
+        try {
+            format = getFormat();
+            body = openBody();
+
+        } catch (Exception e) {
+            setErrorResponse("Failed exporting tickets", e, HttpStatus.Code.BAD_REQUEST);
+            return;
+        }
+
+        try {
+            ticketStore.exportTickets(ticket -> {
+                if (getCompletion().isDone()) {
+                    throw new InterruptedIOException("Export was answered before it finished");
+                }
+
+                body.write(format.format(ticket));
+                body.write('\n');
+            });
+            body.close();
+
+        } catch (Exception e) {
+            if (!getCompletion().isDone()) {
+                System.err.println("Ticket export failed: " + e);
+                abort(e);
+            }
+        }
+    }
+
+    /**
+     * Break the connection without finishing the body, so the client sees an incomplete transfer instead of a complete 200
+     */
+    private void abort(Exception cause) {
+        org.eclipse.jetty.server.Request request = org.eclipse.jetty.server.Request.getBaseRequest(getRequest().raw());
+        if (request != null) {
+            request.getHttpChannel().abort(cause);
+        }
+    }
+
+    /**
+     * Send the response headers and open the body, compressed if the client accepts gzip.
+     * Once the body is opened, errors can't be reported by the response status anymore.
+     */
+    private Writer openBody() throws IOException {
+        getResponse().status(HttpStatus.Code.OK.getCode());
+        getResponse().type(getFormat().getContentType());
+
+        OutputStream output = getResponse().raw().getOutputStream();
+
+        String acceptEncoding = getRequest().headers("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            getResponse().header("Content-Encoding", "gzip");
+            output = new GZIPOutputStream(output, BUFFER_SIZE);
+        }
+
+        Writer body = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), BUFFER_SIZE);
+        if (getFormat().getHeader() != null) {
+            body.write(getFormat().getHeader());
+            body.write('\n');
+        }
+
+        return body;
+    }
+
+}
@@ -5,15 +5,14 @@ import spark.Response;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
 import java.util.stream.Collectors;
 
 public class GetParkingLotUsagesInPercentAction extends Action {
 
     private List<Integer> ids;
 
-    public GetParkingLotUsagesInPercentAction(Request request, Response response, CountDownLatch pendingTasks) {
-        super(request, response, pendingTasks);
+    public GetParkingLotUsagesInPercentAction(Request request, Response response) {
+        super(request, response);
         ids = getRequestContent();
     }
 
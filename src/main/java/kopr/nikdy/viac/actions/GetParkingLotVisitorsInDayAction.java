@@ -5,7 +5,6 @@ import spark.Response;
 
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
-import java.util.concurrent.CountDownLatch;
 
 public class GetParkingLotVisitorsInDayAction extends Action {
 
@@ -13,8 +12,8 @@ public class GetParkingLotVisitorsInDayAction extends Action {
 
     private LocalDate day;
 
-    public GetParkingLotVisitorsInDayAction(Request request, Response response, CountDownLatch pendingTasks) {
-        super(request, response, pendingTasks);
+    public GetParkingLotVisitorsInDayAction(Request request, Response response) {
+        super(request, response);
         parkingLotId = extractRequestParkingLotId();
         day = extractRequestDay();
     }
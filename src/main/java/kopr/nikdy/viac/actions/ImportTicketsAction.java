@@ -0,0 +1,186 @@
+package kopr.nikdy.viac.actions;
+
+import kopr.nikdy.viac.entities.ParkingTicket;
+import kopr.nikdy.viac.persistance.Occupancy;
+import kopr.nikdy.viac.persistance.TicketIds;
+import kopr.nikdy.viac.persistance.TicketStore;
+import org.eclipse.jetty.http.HttpStatus;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Tickets uploaded in the request body, read line by line as they arrive instead of loading the whole body
+ */
+public class ImportTicketsAction extends Action {
+
+    private TicketFormat format;
+
+    private BufferedReader body;
+
+    private int lineNumber;
+
+    public ImportTicketsAction(Request request, Response response) {
+        super(request, response);
+    }
+
+    public TicketFormat getFormat() throws InvalidRequestParametersException {
+        if (format == null) {
+            format = TicketFormat.fromName(getRequest().queryParams("format"));
+        }
+
+        return format;
+    }
+
+    /**
+     * Save the tickets of the body by chunks, each chunk in its own transaction.
+     * Chunks saved before a failure stay imported, the error response tells how many tickets that was.
+     * The import stops before the next chunk once the action was answered, for example by its timeout.
+     *
+     * @param chunkSize Number of tickets saved in one transaction
+     * @param occupied  Gets parking lot -> number of slots taken by open tickets of every saved chunk, even over the capacity
+     * @return Number of imported tickets
+     */
+    public long importInto(TicketStore ticketStore, int chunkSize, Consumer<Map<Integer, Integer>> occupied) {
+        long imported = 0;
+        try {
+            List<ParkingTicket> chunk = new ArrayList<>(chunkSize);
+            do {
+                chunk.clear();
+
+                ParkingTicket ticket;
+                while (chunk.size() < chunkSize && (ticket = nextTicket()) != null) {
+                    chunk.add(ticket);
+                }
+
+                if (getCompletion().isDone()) {
+                    return imported;
+                }
+
+                saveChunk(ticketStore, chunk, occupied);
+                imported += chunk.size();
+            } while (chunk.size() == chunkSize);
+
+            setResponseBody(imported);
+
+        } catch (Exception e) {
+            setErrorResponse("Failed importing tickets after " + imported + " were imported", e, HttpStatus.Code.BAD_REQUEST);
+        }
+
+        return imported;
+    }
+
+    private static void saveChunk(TicketStore ticketStore, List<ParkingTicket> chunk,
+                                  Consumer<Map<Integer, Integer>> occupied) throws SQLException, IOException {
+        for (ParkingTicket ticket : chunk) {
+            if (Occupancy.getRemainingCapacity(ticket.getParkingLotId()) == -1) {
+                throw new SQLException("Parking lot " + ticket.getParkingLotId() + " of ticket " + ticket.getId() + " doesn't exist.");
+            }
+        }
+
+        ticketStore.addTickets(chunk);
+
+        Map<Integer, Integer> slots = new HashMap<>();
+        for (ParkingTicket ticket : chunk) {
+            if (ticket.getLeaveTime() == null) {
+                slots.merge(ticket.getParkingLotId(), 1, Integer::sum);
+            }
+        }
+        occupied.accept(slots);
+    }
+
+    /**
+     * Read the next ticket from the body. Tickets without ID get a new one.
+     *
+     * @return null when the whole body was read
+     * @throws InvalidRequestParametersException Line can't be parsed or misses some field, message tells which line
+     */
+    public ParkingTicket nextTicket() throws IOException {
+        if (body == null) {
+            body = openBody();
+        }
+
+        String line;
+        while ((line = body.readLine()) != null) {
+            lineNumber++;
+
+            if (line.trim().isEmpty() || (lineNumber == 1 && line.equals(getFormat().getHeader()))) {
+                continue;
+            }
+
+            String next;
+            while (!getFormat().isComplete(line) && (next = body.readLine()) != null) {
+                lineNumber++;
+                line += "\n" + next;
+            }
+
+            try {
+                ParkingTicket ticket = getFormat().parse(line);
+                validateTicket(ticket);
+
+                if (ticket.getId() == null) {
+                    ticket.setId(TicketIds.next(ticket.getParkingLotId()));
+                }
+
+                return ticket;
+
+            } catch (InvalidRequestParametersException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Body sent with Content-Encoding gzip is decompressed while it is read.
+     * Spark wraps the request to cache the whole body in memory, so the body is read from the wrapped request.
+     */
+    private BufferedReader openBody() throws IOException {
+        ServletRequest request = getRequest().raw();
+        if (request instanceof ServletRequestWrapper) {
+            request = ((ServletRequestWrapper) request).getRequest();
+        }
+
+        InputStream input = request.getInputStream();
+
+        if ("gzip".equalsIgnoreCase(getRequest().headers("Content-Encoding"))) {
+            input = new GZIPInputStream(input);
+        }
+
+        return new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+    }
+
+    private void validateTicket(ParkingTicket ticket) throws InvalidRequestParametersException {
+        if (ticket.getCarLicencePlate() == null) {
+            throw new InvalidRequestParametersException("{\"car_licence_plate\": str, ...}");
+        }
+
+        if (ticket.getParkingLotId() == null) {
+            throw new InvalidRequestParametersException("{\"parking_lot_id\": int, ...}");
+        }
+
+        if (ticket.getArrivalTime() == null) {
+            throw new InvalidRequestParametersException("{\"arrival_time\": date, ...}");
+        }
+
+        if (ticket.getLeaveTime() != null && ticket.getLeaveTime().isBefore(ticket.getArrivalTime())) {
+            throw new InvalidRequestParametersException("{\"leave_time\": date after arrival_time, ...}");
+        }
+    }
+
+}
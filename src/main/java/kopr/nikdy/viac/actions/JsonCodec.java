@@ -0,0 +1,465 @@
+package kopr.nikdy.viac.actions;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import kopr.nikdy.viac.entities.ParkingLot;
+import kopr.nikdy.viac.entities.ParkingTicket;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * JSON of requests and responses, shared by all actions.
+ * Tickets, parking lots and usages are written straight into a builder reused by the thread, without reflection,
+ * and read by hand written adapters of one shared {@link Gson}. Fields that are null are left out, like Gson does.
+ * Times are ISO local date time, eg. 2019-02-07T10:15:30.123
+ */
+public final class JsonCodec {
+
+    /**
+     * Builder grown over this is dropped after use, so one large response doesn't stay in memory of the thread
+     */
+    private static final int MAX_KEPT_BUFFER = 64 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final Type USAGES_TYPE = new TypeToken<Map<Integer, Double>>() {
+    }.getType();
+
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(ParkingTicket.class, new ParkingTicketAdapter())
+            .registerTypeAdapter(ParkingLot.class, new ParkingLotAdapter())
+            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
+            .create();
+
+    private static final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private JsonCodec() {
+    }
+
+    /**
+     * Serialize response content, types without their own writer go through the shared Gson
+     */
+    public static String toJson(Object content) {
+        StringBuilder json = buffers.get();
+        json.setLength(0);
+
+        if (content instanceof ParkingTicket) {
+            writeTicket(json, (ParkingTicket) content);
+
+        } else if (content instanceof ParkingLot) {
+            writeParkingLot(json, (ParkingLot) content);
+
+        } else if (content instanceof Integer || content instanceof Long) {
+            json.append(content);
+
+        } else if (content instanceof UUID) {
+            json.append('"');
+            writeUuid(json, (UUID) content);
+            json.append('"');
+
+        } else if (content instanceof Map && isUsages((Map<?, ?>) content)) {
+            writeUsages(json, (Map<?, ?>) content);
+
+        } else {
+            return GSON.toJson(content);
+        }
+
+        String result = json.toString();
+        if (json.capacity() > MAX_KEPT_BUFFER) {
+            buffers.remove();
+        }
+
+        return result;
+    }
+
+    /**
+     * @return null for an empty body, like Gson
+     * @throws JsonSyntaxException if the body isn't a ticket
+     */
+    public static ParkingTicket parseTicket(String json) {
+        return GSON.fromJson(json, ParkingTicket.class);
+    }
+
+    /**
+     * @throws JsonSyntaxException if the element isn't a ticket
+     */
+    public static ParkingTicket parseTicket(JsonElement json) {
+        return GSON.fromJson(json, ParkingTicket.class);
+    }
+
+    /**
+     * @return null for an empty body, like Gson
+     * @throws JsonSyntaxException if the body isn't a parking lot
+     */
+    public static ParkingLot parseParkingLot(String json) {
+        return GSON.fromJson(json, ParkingLot.class);
+    }
+
+    /**
+     * @return Map of Parking lot Id -> usage in percent
+     */
+    public static Map<Integer, Double> parseUsages(String json) {
+        return GSON.fromJson(json, USAGES_TYPE);
+    }
+
+    private static void writeTicket(StringBuilder json, ParkingTicket ticket) {
+        char separator = '{';
+        if (ticket.getId() != null) {
+            json.append(separator).append("\"id\":\"");
+            writeUuid(json, ticket.getId());
+            json.append('"');
+            separator = ',';
+        }
+        if (ticket.getCarLicencePlate() != null) {
+            json.append(separator).append("\"car_licence_plate\":");
+            writeString(json, ticket.getCarLicencePlate());
+            separator = ',';
+        }
+        if (ticket.getParkingLotId() != null) {
+            json.append(separator).append("\"parking_lot_id\":").append(ticket.getParkingLotId().intValue());
+            separator = ',';
+        }
+        if (ticket.getArrivalTime() != null) {
+            json.append(separator).append("\"arrival_time\":\"");
+            writeTime(json, ticket.getArrivalTime());
+            json.append('"');
+            separator = ',';
+        }
+        if (ticket.getLeaveTime() != null) {
+            json.append(separator).append("\"leave_time\":\"");
+            writeTime(json, ticket.getLeaveTime());
+            json.append('"');
+            separator = ',';
+        }
+        closeObject(json, separator);
+    }
+
+    private static void writeParkingLot(StringBuilder json, ParkingLot parkingLot) {
+        char separator = '{';
+        if (parkingLot.getId() != null) {
+            json.append(separator).append("\"id\":").append(parkingLot.getId().intValue());
+            separator = ',';
+        }
+        if (parkingLot.getCapacity() != null) {
+            json.append(separator).append("\"capacity\":").append(parkingLot.getCapacity().intValue());
+            separator = ',';
+        }
+        if (parkingLot.getName() != null) {
+            json.append(separator).append("\"name\":");
+            writeString(json, parkingLot.getName());
+            separator = ',';
+        }
+        closeObject(json, separator);
+    }
+
+    private static boolean isUsages(Map<?, ?> map) {
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!(entry.getKey() instanceof Integer) || !(entry.getValue() instanceof Double)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Parking lot Id -> usage in percent, keys are strings as Gson writes them
+     */
+    private static void writeUsages(StringBuilder json, Map<?, ?> usages) {
+        char separator = '{';
+        for (Map.Entry<?, ?> entry : usages.entrySet()) {
+            double usage = (Double) entry.getValue();
+            if (Double.isNaN(usage) || Double.isInfinite(usage)) {
+                throw new IllegalArgumentException("JSON forbids NaN and infinities: " + usage);
+            }
+
+            json.append(separator).append('"').append(((Integer) entry.getKey()).intValue()).append("\":").append(usage);
+            separator = ',';
+        }
+        closeObject(json, separator);
+    }
+
+    private static void closeObject(StringBuilder json, char separator) {
+        if (separator == '{') {
+            json.append('{');
+        }
+        json.append('}');
+    }
+
+    /**
+     * Same escaping as Gson with HTML escaping, so the output doesn't change for any name
+     */
+    private static void writeString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char character = value.charAt(i);
+
+            switch (character) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                case '\b':
+                    json.append("\\b");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\f':
+                    json.append("\\f");
+                    break;
+                default:
+                    if (character < 0x20 || character == '<' || character == '>' || character == '&' || character == '=' || character == '\''
+                            || character == 0x2028 || character == 0x2029) {
+                        json.append("\\u").append(HEX[character >> 12 & 0xF]).append(HEX[character >> 8 & 0xF])
+                                .append(HEX[character >> 4 & 0xF]).append(HEX[character & 0xF]);
+
+                    } else {
+                        json.append(character);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Lower case hexadecimal in the layout of {@link UUID#toString()}
+     */
+    private static void writeUuid(StringBuilder json, UUID id) {
+        writeHex(json, id.getMostSignificantBits() >>> 32, 8);
+        json.append('-');
+        writeHex(json, id.getMostSignificantBits() >>> 16, 4);
+        json.append('-');
+        writeHex(json, id.getMostSignificantBits(), 4);
+        json.append('-');
+        writeHex(json, id.getLeastSignificantBits() >>> 48, 4);
+        json.append('-');
+        writeHex(json, id.getLeastSignificantBits(), 12);
+    }
+
+    private static void writeHex(StringBuilder json, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            json.append(HEX[(int) (value >>> shift) & 0xF]);
+        }
+    }
+
+    /**
+     * Seconds are always written, the fraction in groups of three digits like {@link LocalDateTime#toString()}.
+     * Years outside of four digits are left to it.
+     */
+    private static void writeTime(StringBuilder json, LocalDateTime time) {
+        int year = time.getYear();
+        if (year < 0 || year > 9999) {
+            json.append(time);
+            return;
+        }
+
+        writeDigits(json, year, 4);
+        json.append('-');
+        writeDigits(json, time.getMonthValue(), 2);
+        json.append('-');
+        writeDigits(json, time.getDayOfMonth(), 2);
+        json.append('T');
+        writeDigits(json, time.getHour(), 2);
+        json.append(':');
+        writeDigits(json, time.getMinute(), 2);
+        json.append(':');
+        writeDigits(json, time.getSecond(), 2);
+
+        int nano = time.getNano();
+        if (nano == 0) {
+            return;
+        }
+
+        json.append('.');
+        if (nano % 1_000_000 == 0) {
+            writeDigits(json, nano / 1_000_000, 3);
+
+        } else if (nano % 1_000 == 0) {
+            writeDigits(json, nano / 1_000, 6);
+
+        } else {
+            writeDigits(json, nano, 9);
+        }
+    }
+
+    private static void writeDigits(StringBuilder json, int value, int digits) {
+        for (int divisor = pow10(digits - 1); divisor > 0; divisor /= 10) {
+            json.append((char) ('0' + value / divisor % 10));
+        }
+    }
+
+    private static int pow10(int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= 10;
+        }
+
+        return result;
+    }
+
+    private static class ParkingTicketAdapter extends TypeAdapter<ParkingTicket> {
+
+        @Override
+        public void write(JsonWriter out, ParkingTicket ticket) throws IOException {
+            if (ticket == null) {
+                out.nullValue();
+
+            } else {
+                out.jsonValue(JsonCodec.toJson(ticket));
+            }
+        }
+
+        @Override
+        public ParkingTicket read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            ParkingTicket ticket = new ParkingTicket();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+
+                try {
+                    switch (name) {
+                        case "id":
+                            ticket.setId(UUID.fromString(in.nextString()));
+                            break;
+                        case "car_licence_plate":
+                            ticket.setCarLicencePlate(in.nextString());
+                            break;
+                        case "parking_lot_id":
+                            ticket.setParkingLotId(in.nextInt());
+                            break;
+                        case "arrival_time":
+                            ticket.setArrivalTime(LocalDateTime.parse(in.nextString()));
+                            break;
+                        case "leave_time":
+                            ticket.setLeaveTime(LocalDateTime.parse(in.nextString()));
+                            break;
+                        default:
+                            in.skipValue();
+                    }
+
+                } catch (IllegalArgumentException | DateTimeParseException e) {
+                    throw new JsonSyntaxException(name, e);
+                }
+            }
+            in.endObject();
+
+            return ticket;
+        }
+
+    }
+
+    private static class ParkingLotAdapter extends TypeAdapter<ParkingLot> {
+
+        @Override
+        public void write(JsonWriter out, ParkingLot parkingLot) throws IOException {
+            if (parkingLot == null) {
+                out.nullValue();
+
+            } else {
+                out.jsonValue(JsonCodec.toJson(parkingLot));
+            }
+        }
+
+        @Override
+        public ParkingLot read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            ParkingLot parkingLot = new ParkingLot();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+
+                try {
+                    switch (name) {
+                        case "id":
+                            parkingLot.setId(in.nextInt());
+                            break;
+                        case "capacity":
+                            parkingLot.setCapacity(in.nextInt());
+                            break;
+                        case "name":
+                            parkingLot.setName(in.nextString());
+                            break;
+                        default:
+                            in.skipValue();
+                    }
+
+                } catch (IllegalArgumentException e) {
+                    throw new JsonSyntaxException(name, e);
+                }
+            }
+            in.endObject();
+
+            return parkingLot;
+        }
+
+    }
+
+    private static class LocalDateTimeAdapter extends TypeAdapter<LocalDateTime> {
+
+        @Override
+        public void write(JsonWriter out, LocalDateTime value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+
+            } else {
+                out.value(value.toString());
+            }
+        }
+
+        @Override
+        public LocalDateTime read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            String value = in.nextString();
+            try {
+                return LocalDateTime.parse(value);
+
+            } catch (DateTimeParseException e) {
+                throw new JsonSyntaxException(value, e);
+            }
+        }
+
+    }
+
+}
@@ -4,17 +4,24 @@ import spark.Request;
 import spark.Response;
 
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
 
 public class RemoveTicketAction extends Action {
 
     private UUID ticketId;
 
-    public RemoveTicketAction(Request request, Response response, CountDownLatch pendingTasks) {
-        super(request, response, pendingTasks);
+    public RemoveTicketAction(Request request, Response response) {
+        super(request, response);
         ticketId = extractRequestData();
     }
 
+    /**
+     * Removal received in another format than HTTP, like the binary gate protocol, the request is null
+     */
+    public RemoveTicketAction(Response response, UUID ticketId) {
+        super(null, response);
+        this.ticketId = ticketId;
+    }
+
     private UUID extractRequestData() {
         String uuid = getRequest().params(":ticketId");
         return UUID.fromString(uuid.toLowerCase());
@@ -0,0 +1,180 @@
+package kopr.nikdy.viac.actions;
+
+import com.google.gson.JsonParseException;
+import kopr.nikdy.viac.entities.ParkingTicket;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Line based formats of imported and exported tickets, every line holds one ticket.
+ * Times are written as ISO local date time, eg. 2019-02-07T10:15:30
+ */
+public enum TicketFormat {
+
+    /**
+     * JSON object per line with the same fields as responses of ticket endpoints
+     */
+    NDJSON("application/x-ndjson") {
+        @Override
+        public ParkingTicket parse(String line) throws InvalidRequestParametersException {
+            try {
+                return JsonCodec.parseTicket(line);
+
+            } catch (JsonParseException | DateTimeParseException e) {
+                throw new InvalidRequestParametersException(
+                        "{\"id\": uuid, \"car_licence_plate\": str, \"parking_lot_id\": int, \"arrival_time\": date, \"leave_time\": date}"
+                );
+            }
+        }
+
+        @Override
+        public String format(ParkingTicket ticket) {
+            return JsonCodec.toJson(ticket);
+        }
+    },
+
+    /**
+     * Comma separated values with a header line, fields containing commas, quotes or line breaks are quoted
+     */
+    CSV("text/csv") {
+        @Override
+        public String getHeader() {
+            return CSV_HEADER;
+        }
+
+        @Override
+        public ParkingTicket parse(String line) throws InvalidRequestParametersException {
+            List<String> fields = splitCsvLine(line);
+            if (fields.size() != 5) {
+                throw new InvalidRequestParametersException(CSV_HEADER);
+            }
+
+            try {
+                ParkingTicket ticket = new ParkingTicket();
+                ticket.setId(fields.get(0).isEmpty() ? null : UUID.fromString(fields.get(0)));
+                ticket.setCarLicencePlate(fields.get(1).isEmpty() ? null : fields.get(1));
+                ticket.setParkingLotId(fields.get(2).isEmpty() ? null : Integer.valueOf(fields.get(2)));
+                ticket.setArrivalTime(fields.get(3).isEmpty() ? null : LocalDateTime.parse(fields.get(3)));
+                ticket.setLeaveTime(fields.get(4).isEmpty() ? null : LocalDateTime.parse(fields.get(4)));
+
+                return ticket;
+
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                throw new InvalidRequestParametersException(CSV_HEADER);
+            }
+        }
+
+        /**
+         * Quoted field may hold line breaks, the record goes on until its quotes are closed
+         */
+        @Override
+        public boolean isComplete(String record) {
+            return record.chars().filter(character -> character == '"').count() % 2 == 0;
+        }
+
+        @Override
+        public String format(ParkingTicket ticket) {
+            return String.join(",",
+                    ticket.getId().toString(),
+                    quoteCsvField(ticket.getCarLicencePlate()),
+                    String.valueOf(ticket.getParkingLotId()),
+                    ticket.getArrivalTime() == null ? "" : ticket.getArrivalTime().toString(),
+                    ticket.getLeaveTime() == null ? "" : ticket.getLeaveTime().toString()
+            );
+        }
+    };
+
+    private static final String CSV_HEADER = "id,car_licence_plate,parking_lot_id,arrival_time,leave_time";
+
+    private final String contentType;
+
+    TicketFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * @param name Format name from the request, NDJSON if missing
+     */
+    public static TicketFormat fromName(String name) throws InvalidRequestParametersException {
+        if (name == null) {
+            return NDJSON;
+        }
+
+        try {
+            return valueOf(name.toUpperCase());
+
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestParametersException("?format=ndjson or ?format=csv");
+        }
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return First line describing the fields, null if the format has none
+     */
+    public String getHeader() {
+        return null;
+    }
+
+    /**
+     * @param record Lines read so far, joined by line feeds
+     * @return false if the ticket continues on the next line
+     */
+    public boolean isComplete(String record) {
+        return true;
+    }
+
+    /**
+     * @return Ticket with fields present in the line, missing ones are null
+     */
+    public abstract ParkingTicket parse(String line) throws InvalidRequestParametersException;
+
+    /**
+     * @return Line without the line separator
+     */
+    public abstract String format(ParkingTicket ticket);
+
+    private static List<String> splitCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char character = line.charAt(i);
+
+            if (quoted && character == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                field.append('"');
+                i++;
+
+            } else if (character == '"') {
+                quoted = !quoted;
+
+            } else if (character == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+
+            } else {
+                field.append(character);
+            }
+        }
+        fields.add(field.toString());
+
+        return fields;
+    }
+
+    private static String quoteCsvField(String field) {
+        if (field.contains(",") || field.contains("\"") || field.contains("\n") || field.contains("\r")) {
+            return "\"" + field.replace("\"", "\"\"") + "\"";
+        }
+
+        return field;
+    }
+
+}
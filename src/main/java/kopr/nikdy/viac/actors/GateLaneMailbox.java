@@ -0,0 +1,104 @@
+package kopr.nikdy.viac.actors;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.DeadLetter;
+import akka.dispatch.ControlMessage;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mailbox of the ticket owners, bounded for actions and unbounded for control messages like {@link TicketActor.SlotMessage}.
+ * Actions over the capacity end in dead letters as with a bounded mailbox, control messages are never rejected
+ * and are processed before the actions waiting in the mailbox.
+ */
+public class GateLaneMailbox implements MailboxType {
+
+    private final int capacity;
+
+    public GateLaneMailbox(ActorSystem.Settings settings, Config config) {
+        this.capacity = config.getInt("mailbox-capacity");
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        return new GateLaneQueue(capacity, system.get().deadLetters());
+    }
+
+    private static class GateLaneQueue implements MessageQueue {
+
+        private final int capacity;
+
+        private final ActorRef deadLetters;
+
+        private final Queue<Envelope> controlMessages = new ConcurrentLinkedQueue<>();
+
+        private final Queue<Envelope> actions = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Number of actions in the mailbox, kept apart because the size of the queue isn't constant time
+         */
+        private final AtomicInteger actionCount = new AtomicInteger();
+
+        private GateLaneQueue(int capacity, ActorRef deadLetters) {
+            this.capacity = capacity;
+            this.deadLetters = deadLetters;
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            if (handle.message() instanceof ControlMessage) {
+                controlMessages.add(handle);
+
+            } else if (actionCount.incrementAndGet() > capacity) {
+                actionCount.decrementAndGet();
+                deadLetters.tell(new DeadLetter(handle.message(), handle.sender(), receiver), handle.sender());
+
+            } else {
+                actions.add(handle);
+            }
+        }
+
+        @Override
+        public Envelope dequeue() {
+            Envelope handle = controlMessages.poll();
+            if (handle != null) {
+                return handle;
+            }
+
+            handle = actions.poll();
+            if (handle != null) {
+                actionCount.decrementAndGet();
+            }
+
+            return handle;
+        }
+
+        @Override
+        public int numberOfMessages() {
+            return controlMessages.size() + actionCount.get();
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return !controlMessages.isEmpty() || !actions.isEmpty();
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            Envelope handle;
+            while ((handle = dequeue()) != null) {
+                deadLetters.enqueue(owner, handle);
+            }
+        }
+
+    }
+
+}
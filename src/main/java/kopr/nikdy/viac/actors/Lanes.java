@@ -0,0 +1,72 @@
+package kopr.nikdy.viac.actors;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.Patterns;
+import kopr.nikdy.viac.actions.*;
+import kopr.nikdy.viac.persistance.LotStore;
+import kopr.nikdy.viac.persistance.TicketStore;
+
+import java.time.Duration;
+
+/**
+ * Routers of the workers, actions are sent to them right from the request thread.
+ * Workers complete the actions themselves, so no single actor is on the path of every request.
+ * Created by {@link MasterActor}, which supervises the workers.
+ */
+public class Lanes implements ActionDispatcher {
+
+    private final ActorRef ticketActor;
+
+    private final ActorRef parkingLotActor;
+
+    /**
+     * The only actor collecting usage requests, so all of them within a window are answered by one query
+     */
+    private final ActorRef usageCoalescer;
+
+    private final ActorRef ticketTransferActor;
+
+    Lanes(ActorRef ticketActor, ActorRef parkingLotActor, ActorRef usageCoalescer, ActorRef ticketTransferActor) {
+        this.ticketActor = ticketActor;
+        this.parkingLotActor = parkingLotActor;
+        this.usageCoalescer = usageCoalescer;
+        this.ticketTransferActor = ticketTransferActor;
+    }
+
+    /**
+     * Start the {@link MasterActor} with the workers of the lanes in the actor system
+     */
+    public static Lanes start(ActorSystem system, TicketStore ticketStore, LotStore lotStore) {
+        ActorRef master = system.actorOf(MasterActor.props(ticketStore, lotStore));
+        return (Lanes) Patterns.ask(master, MasterActor.GetLanes.INSTANCE, Duration.ofSeconds(10))
+                .toCompletableFuture()
+                .join();
+    }
+
+    /**
+     * Send the action to the router of its lane
+     */
+    @Override
+    public void dispatch(Action action) {
+        action.markQueued();
+        getRouter(action).tell(action, ActorRef.noSender());
+    }
+
+    private ActorRef getRouter(Action action) {
+        if (action instanceof AddTicketAction || action instanceof RemoveTicketAction || action instanceof BatchTicketsAction) {
+            return ticketActor;
+        }
+
+        if (action instanceof ImportTicketsAction || action instanceof ExportTicketsAction) {
+            return ticketTransferActor;
+        }
+
+        if (action instanceof GetParkingLotUsagesInPercentAction) {
+            return usageCoalescer;
+        }
+
+        return parkingLotActor;
+    }
+
+}
@@ -1,41 +1,161 @@
 package kopr.nikdy.viac.actors;
 
-import akka.actor.AbstractActor;
+import akka.actor.AbstractActorWithTimers;
 import akka.actor.ActorRef;
+import akka.actor.DeadLetter;
 import akka.actor.Props;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import akka.routing.ConsistentHashingPool;
 import akka.routing.RoundRobinPool;
-import kopr.nikdy.viac.actions.*;
+import com.typesafe.config.Config;
+import kopr.nikdy.viac.actions.Action;
+import kopr.nikdy.viac.persistance.LotStore;
+import kopr.nikdy.viac.persistance.TicketStore;
+import org.eclipse.jetty.http.HttpStatus;
 
-public class MasterActor extends AbstractActor {
+/**
+ * Creates and supervises the workers of two lanes with their own dispatchers, so blocking database work of one can't hold the other:
+ * <ul>
+ * <li>gate lane - ticket arrivals and removals opening the barriers, kopr.gate-lane</li>
+ * <li>report lane - parking lot queries and background work, with a bounded mailbox, kopr.report-lane</li>
+ * </ul>
+ * Actions don't pass through the master, they are sent to the {@link Lanes} it answers to {@link GetLanes}.
+ * Actions that don't fit in a full mailbox end in dead letters and are answered with 503.
+ */
+public class MasterActor extends AbstractActorWithTimers {
+
+    private static final String REPORT_TIMER = "report";
 
     private final LoggingAdapter logger = Logging.getLogger(getContext().system(), this);
 
-    private final ActorRef parkingLotActor = getContext().actorOf(
-            ParkingLotActor.props().withRouter(new RoundRobinPool(2))
-    );
+    private final QueueDelay gateQueueDelay = new QueueDelay("Gate");
+
+    private final QueueDelay reportQueueDelay = new QueueDelay("Report");
+
+    private final Lanes lanes;
+
+    public MasterActor(TicketStore ticketStore, LotStore lotStore) {
+        Config config = getContext().getSystem().settings().config();
+
+        ActorRef parkingLotActor = getContext().actorOf(
+                ParkingLotActor.props(lotStore, reportQueueDelay)
+                        .withRouter(new RoundRobinPool(config.getInt("kopr.report-lane.actors")))
+                        .withDispatcher("kopr.report-lane.dispatcher")
+                        .withMailbox("kopr.report-lane.mailbox")
+        );
+        ActorRef usageCoalescer = getContext().actorOf(
+                UsageCoalescerActor.props(
+                        parkingLotActor,
+                        reportQueueDelay,
+                        config.getInt("kopr.usage-coalescing.batch-size"),
+                        config.getDuration("kopr.usage-coalescing.window")
+                ).withMailbox("kopr.report-lane.mailbox")
+        );
+
+        ActorRef ticketWriter = createTicketWriter(ticketStore);
+        ActorRef ticketActor = getContext().actorOf(
+                TicketActor.props(ticketWriter, gateQueueDelay)
+                        .withRouter(new ConsistentHashingPool(config.getInt("kopr.ticket-owners")).withHashMapper(TicketActor::getOwnerKey))
+                        .withDispatcher("kopr.gate-lane.dispatcher")
+                        .withMailbox("kopr.gate-lane.mailbox")
+        );
+
+        createTicketArchiver(ticketStore);
+        ActorRef ticketTransferActor = createTicketTransferActor(ticketStore, ticketActor);
+        lanes = new Lanes(ticketActor, parkingLotActor, usageCoalescer, ticketTransferActor);
+
+        getContext().getSystem().getEventStream().subscribe(getSelf(), DeadLetter.class);
+        getTimers().startPeriodicTimer(REPORT_TIMER, ReportQueueDelays.INSTANCE, config.getDuration("kopr.lane-report-interval"));
+    }
+
+    private ActorRef createTicketWriter(TicketStore ticketStore) {
+        Config config = getContext().getSystem().settings().config().getConfig("kopr.ticket-writer");
+
+        return getContext().actorOf(TicketWriterActor.props(
+                ticketStore,
+                config.getInt("batch-size"),
+                config.getDuration("window"),
+                config.getDuration("report-interval")
+        ).withDispatcher("kopr.gate-lane.dispatcher"));
+    }
+
+    private ActorRef createTicketArchiver(TicketStore ticketStore) {
+        Config config = getContext().getSystem().settings().config().getConfig("kopr.ticket-archiver");
+
+        return getContext().actorOf(TicketArchiverActor.props(
+                ticketStore,
+                config.getInt("chunk-size"),
+                config.getDuration("interval")
+        ).withDispatcher("kopr.report-lane.dispatcher"));
+    }
+
+    private ActorRef createTicketTransferActor(TicketStore ticketStore, ActorRef ticketOwners) {
+        Config config = getContext().getSystem().settings().config().getConfig("kopr.ticket-transfer");
 
-    private final ActorRef ticketActor = getContext().actorOf(
-            TicketActor.props().withRouter(new RoundRobinPool(10))
-    );
+        return getContext().actorOf(
+                TicketTransferActor.props(ticketStore, config.getInt("chunk-size"), ticketOwners)
+                        .withRouter(new RoundRobinPool(config.getInt("transfers")))
+                        .withDispatcher("kopr.ticket-transfer.dispatcher")
+        );
+    }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
-                .match(AddTicketAction.class, action -> ticketActor.tell(action, getSelf()))
-                .match(RemoveTicketAction.class, action -> ticketActor.tell(action, getSelf()))
+                .match(GetLanes.class, getLanes -> getSender().tell(lanes, getSelf()))
+                .match(DeadLetter.class, this::handleDeadLetter)
+                .match(ReportQueueDelays.class, report -> reportQueueDelays())
+                .build();
+    }
 
-                .match(AddParkingLotAction.class, action -> parkingLotActor.tell(action, getSelf()))
-                .match(GetParkingLotUsagesInPercentAction.class, action -> parkingLotActor.tell(action, getSelf()))
-                .match(GetParkingLotVisitorsInDayAction.class, action -> parkingLotActor.tell(action, getSelf()))
+    /**
+     * Action or usage batch rejected by a full mailbox would otherwise never be answered
+     */
+    private void handleDeadLetter(DeadLetter deadLetter) {
+        if (deadLetter.message() instanceof Action) {
+            Action action = (Action) deadLetter.message();
+            action.setErrorResponse("Server is too busy, try again later", HttpStatus.Code.SERVICE_UNAVAILABLE);
+            action.complete();
+
+        } else if (deadLetter.message() instanceof ParkingLotActor.UsageBatch) {
+            for (Action action : ((ParkingLotActor.UsageBatch) deadLetter.message()).getActions()) {
+                action.setErrorResponse("Server is too busy, try again later", HttpStatus.Code.SERVICE_UNAVAILABLE);
+                action.complete();
+            }
+
+        }
+    }
+
+    private void reportQueueDelays() {
+        for (QueueDelay queueDelay : new QueueDelay[]{gateQueueDelay, reportQueueDelay}) {
+            String report = queueDelay.report();
+            if (report != null) {
+                logger.info(report);
+            }
+        }
+    }
+
+    public static Props props(TicketStore ticketStore, LotStore lotStore) {
+        return Props.create(MasterActor.class, ticketStore, lotStore);
+    }
+
+    /**
+     * Asks for the {@link Lanes} to send actions to
+     */
+    public static class GetLanes {
+
+        public static final GetLanes INSTANCE = new GetLanes();
+
+        private GetLanes() {
+        }
 
-                .match(ActionDone.class, Action::markCompleted)
-                .build();
     }
 
-    public static Props props() {
-        return Props.create(MasterActor.class);
+    private static class ReportQueueDelays {
+
+        private static final ReportQueueDelays INSTANCE = new ReportQueueDelays();
+
     }
 
 }
@@ -2,66 +2,141 @@ package kopr.nikdy.viac.actors;
 
 import akka.actor.AbstractActor;
 import akka.actor.Props;
-import kopr.nikdy.viac.actions.ActionDone;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import kopr.nikdy.viac.actions.Action;
 import kopr.nikdy.viac.actions.AddParkingLotAction;
 import kopr.nikdy.viac.actions.GetParkingLotUsagesInPercentAction;
 import kopr.nikdy.viac.actions.GetParkingLotVisitorsInDayAction;
-import kopr.nikdy.viac.persistance.Database;
+import kopr.nikdy.viac.persistance.LotStore;
+import kopr.nikdy.viac.persistance.Occupancy;
 import org.eclipse.jetty.http.HttpStatus;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ * Parking lot queries and creation.
+ * Usage requests come in batches collected by the {@link UsageCoalescerActor}, a batch is answered by one query
+ * over all its parking lots and every request gets back only the parking lots it asked for.
+ */
 public class ParkingLotActor extends AbstractActor {
 
+    private final LoggingAdapter logger = Logging.getLogger(getContext().system(), this);
+
+    private final LotStore lotStore;
+
+    private final QueueDelay queueDelay;
+
+    public ParkingLotActor(LotStore lotStore, QueueDelay queueDelay) {
+        this.lotStore = lotStore;
+        this.queueDelay = queueDelay;
+    }
+
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(AddParkingLotAction.class, this::handleAddParkingLotAction)
                 .match(GetParkingLotVisitorsInDayAction.class, this::handleGetParkingLotVisitorsInDayAction)
-                .match(GetParkingLotUsagesInPercentAction.class, this::handleGetParkingLotUsagesInPercentAction)
-
+                .match(UsageBatch.class, this::handleUsageBatch)
                 .build();
     }
 
     private void handleAddParkingLotAction(AddParkingLotAction action) {
+        queueDelay.record(action);
+        if (action.dropIfExpired()) {
+            return;
+        }
+
         try {
-            Database.addParkingLot(action.getParkingLot());
+            lotStore.addParkingLot(action.getParkingLot());
+            Occupancy.addParkingLot(action.getParkingLot());
             action.setResponseBody(action.getParkingLot());
 
         } catch (Exception e) {
             action.setErrorResponse("Failed creating parking lot", e, HttpStatus.Code.BAD_REQUEST);
         }
 
-        getSender().tell(new ActionDone(action), getSelf());
+        action.complete();
     }
 
     private void handleGetParkingLotVisitorsInDayAction(GetParkingLotVisitorsInDayAction action) {
+        queueDelay.record(action);
+        if (action.dropIfExpired()) {
+            return;
+        }
+
         try {
-            int parkingLotVisitorsDuringDay = Database.getParkingLotVisitorsDuringDay(action.getParkingLotId(), action.getDay());
+            int parkingLotVisitorsDuringDay = lotStore.getParkingLotVisitorsDuringDay(action.getParkingLotId(), action.getDay());
             action.setResponseBody(parkingLotVisitorsDuringDay);
 
         } catch (SQLException e) {
             action.setErrorResponse("Failed getting parking lot visitors in a day", e, HttpStatus.Code.BAD_REQUEST);
         }
 
-        getSender().tell(new ActionDone(action), getSelf());
+        action.complete();
     }
 
-    private void handleGetParkingLotUsagesInPercentAction(GetParkingLotUsagesInPercentAction action) {
+    /**
+     * Query usages of all parking lots asked for by the collected requests at once and give each request its subset
+     */
+    private void handleUsageBatch(UsageBatch batch) {
+        List<GetParkingLotUsagesInPercentAction> usageBatch = batch.actions;
+        usageBatch.removeIf(Action::dropIfExpired);
+        if (usageBatch.isEmpty()) {
+            return;
+        }
+
+        Set<Integer> ids = new LinkedHashSet<>();
+        usageBatch.forEach(action -> ids.addAll(action.getIds()));
+
         try {
-            Map<Integer, Double> usagesInPercent = Database.getUsagesInPercent(action.getIds());
-            action.setResponseBody(usagesInPercent);
+            Map<Integer, Double> usagesInPercent = lotStore.getUsagesInPercent(new ArrayList<>(ids));
+            logger.debug("Answered {} usage requests by one query of {} parking lots", usageBatch.size(), ids.size());
+
+            for (GetParkingLotUsagesInPercentAction action : usageBatch) {
+                Map<Integer, Double> result = new HashMap<>();
+                for (Integer id : action.getIds()) {
+                    Double usage = usagesInPercent.get(id);
+                    if (usage != null) {
+                        result.put(id, usage);
+                    }
+                }
+
+                action.setResponseBody(result);
+            }
 
         } catch (SQLException e) {
-            action.setErrorResponse("Failed getting parking lot usages", e, HttpStatus.Code.BAD_REQUEST);
+            usageBatch.forEach(action -> action.setErrorResponse("Failed getting parking lot usages", e, HttpStatus.Code.BAD_REQUEST));
         }
 
-        getSender().tell(new ActionDone(action), getSelf());
+        usageBatch.forEach(Action::complete);
     }
 
-    public static Props props() {
-        return Props.create(ParkingLotActor.class);
+    public static Props props(LotStore lotStore, QueueDelay queueDelay) {
+        return Props.create(ParkingLotActor.class, lotStore, queueDelay);
+    }
+
+    /**
+     * Usage requests collected by the {@link UsageCoalescerActor}, owned by the actor answering them
+     */
+    static class UsageBatch {
+
+        private final List<GetParkingLotUsagesInPercentAction> actions;
+
+        UsageBatch(List<GetParkingLotUsagesInPercentAction> actions) {
+            this.actions = actions;
+        }
+
+        List<GetParkingLotUsagesInPercentAction> getActions() {
+            return actions;
+        }
+
     }
 
 }
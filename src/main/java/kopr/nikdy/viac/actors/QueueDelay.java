@@ -0,0 +1,52 @@
+package kopr.nikdy.viac.actors;
+
+import kopr.nikdy.viac.actions.Action;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How long actions of one lane wait in the mailbox before an actor of the lane starts processing them.
+ * Shared by all actors of the lane, the totals are taken and reset by each report.
+ */
+public class QueueDelay {
+
+    private final String lane;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public QueueDelay(String lane) {
+        this.lane = lane;
+    }
+
+    /**
+     * Record the delay of the action, called when an actor of the lane receives it
+     */
+    public void record(Action action) {
+        long delay = System.nanoTime() - action.getQueuedAt();
+
+        count.increment();
+        totalNanos.add(delay);
+        maxNanos.accumulate(delay);
+    }
+
+    /**
+     * @return Average and maximum delay since the last report, null if no action went through the lane
+     */
+    public String report() {
+        long actions = count.sumThenReset();
+        long total = totalNanos.sumThenReset();
+        long max = maxNanos.getThenReset();
+
+        if (actions == 0) {
+            return null;
+        }
+
+        return String.format("%s lane: %d actions, queue delay avg %d us, max %d us",
+                lane, actions, TimeUnit.NANOSECONDS.toMicros(total / actions), TimeUnit.NANOSECONDS.toMicros(max));
+    }
+
+}
@@ -1,60 +1,288 @@
 package kopr.nikdy.viac.actors;
 
 import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
 import akka.actor.Props;
+import akka.dispatch.ControlMessage;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
-import kopr.nikdy.viac.actions.ActionDone;
 import kopr.nikdy.viac.actions.AddTicketAction;
+import kopr.nikdy.viac.actions.BatchTicketsAction;
+import kopr.nikdy.viac.actions.InvalidRequestParametersException;
 import kopr.nikdy.viac.actions.RemoveTicketAction;
-import kopr.nikdy.viac.persistance.Database;
+import kopr.nikdy.viac.persistance.Occupancy;
+import kopr.nikdy.viac.persistance.TicketIds;
 import org.eclipse.jetty.http.HttpStatus;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Owner of the tickets of some parking lots, ticket actors are routed to by the parking lot.
+ * All arrivals and removals of a parking lot go through its single owner, so they reach the writer in the order they came.
+ * The owner keeps capacity and occupied slots of its parking lots and is the only one changing them,
+ * slots freed by the writer or taken by imports are sent to it as {@link ChangeSlots} and the count is published in {@link Occupancy}.
+ */
 public class TicketActor extends AbstractActor {
 
     private LoggingAdapter logger = Logging.getLogger(getContext().system(), this);
 
+    /**
+     * Group commit stage every ticket write goes through, it tells the router of the owners which slots the writes freed
+     */
+    private final ActorRef ticketWriter;
+
+    /**
+     * Slots of the parking lots owned by this actor that were used since it started
+     */
+    private final Map<Integer, OwnedLot> lots = new HashMap<>();
+
+    private final QueueDelay queueDelay;
+
+    public TicketActor(ActorRef ticketWriter, QueueDelay queueDelay) {
+        this.ticketWriter = ticketWriter;
+        this.queueDelay = queueDelay;
+    }
+
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(AddTicketAction.class, this::handleAddTicketAction)
                 .match(RemoveTicketAction.class, this::handleRemoveTicketAction)
+                .match(BatchTicketsAction.class, this::handleBatchTicketsAction)
+                .match(ReserveBatchSlots.class, this::handleReserveBatchSlots)
+                .match(ChangeSlots.class, this::handleChangeSlots)
 
                 .build();
     }
 
+    /**
+     * The slot is reserved here and the writer releases it if the ticket couldn't be saved
+     */
     private void handleAddTicketAction(AddTicketAction action) {
-        try {
-            int remainingCapacity = Database.getParkingLotRemainingCapacity(action.getTicket().getParkingLotId());
-            if (remainingCapacity <= 0) {
-                action.setErrorResponse("Cannot add ticket to a full parking lot", HttpStatus.Code.BAD_REQUEST);
+        queueDelay.record(action);
+        if (action.dropIfExpired()) {
+            return;
+        }
 
-            } else {
-                Database.addTicket(action.getTicket());
-                action.setResponseBody(action.getTicket());
-            }
+        if (reserve(action.getTicket().getParkingLotId(), 1) == 1) {
+            ticketWriter.tell(action, getOwners());
 
-        } catch (Exception e) {
-            action.setErrorResponse("Adding ticket", e, HttpStatus.Code.BAD_REQUEST);
+        } else {
+            action.setErrorResponse("Cannot add ticket to a full parking lot", HttpStatus.Code.BAD_REQUEST);
+            action.complete();
         }
-
-        getSender().tell(new ActionDone(action), getSelf());
     }
 
     private void handleRemoveTicketAction(RemoveTicketAction action) {
+        queueDelay.record(action);
+        if (action.dropIfExpired()) {
+            return;
+        }
+
+        ticketWriter.tell(action, getOwners());
+    }
+
+    /**
+     * Slots of the arrivals are reserved by the owners of their parking lots one after another, each for all its arrivals at once.
+     * The writer gets the batch from the last of them and releases the slots not saved.
+     */
+    private void handleBatchTicketsAction(BatchTicketsAction action) {
+        queueDelay.record(action);
+        if (action.dropIfExpired()) {
+            return;
+        }
+
         try {
-            Database.removeTicket(action.getTicketId());
-            action.setResponseBody(action.getTicketId());
+            action.getItems();
+
+        } catch (InvalidRequestParametersException e) {
+            action.setErrorResponse("Invalid ticket batch", e, HttpStatus.Code.BAD_REQUEST);
+            action.complete();
+            return;
+        }
+
+        List<Integer> parkingLotIds = new ArrayList<>(action.getWantedSlots().keySet());
+        if (parkingLotIds.isEmpty()) {
+            ticketWriter.tell(action, getOwners());
+
+        } else {
+            getOwners().tell(new ReserveBatchSlots(action, parkingLotIds, 0), getSelf());
+        }
+    }
+
+    private void handleReserveBatchSlots(ReserveBatchSlots reservation) {
+        BatchTicketsAction action = reservation.action;
+        Integer parkingLotId = reservation.getParkingLotId();
+        action.assignSlots(parkingLotId, reserve(parkingLotId, action.getWantedSlots().getOrDefault(parkingLotId, 0)));
+
+        if (reservation.next + 1 < reservation.parkingLotIds.size()) {
+            getOwners().tell(new ReserveBatchSlots(action, reservation.parkingLotIds, reservation.next + 1), getSelf());
+
+        } else {
+            ticketWriter.tell(action, getOwners());
+        }
+    }
+
+    private void handleChangeSlots(ChangeSlots change) {
+        OwnedLot lot = getLot(change.parkingLotId);
+        if (lot != null) {
+            lot.occupied = Math.max(lot.occupied + change.change, 0);
+            Occupancy.publish(change.parkingLotId, lot.slots, lot.occupied);
+        }
+    }
+
+    /**
+     * Take as many of the wanted slots as are free
+     *
+     * @return Number of slots reserved, 0 if the parking lot is full or doesn't exist
+     */
+    private int reserve(Integer parkingLotId, int wanted) {
+        OwnedLot lot = getLot(parkingLotId);
+        if (lot == null) {
+            return 0;
+        }
+
+        int reserved = Math.max(Math.min(wanted, lot.slots.getCapacity() - lot.occupied), 0);
+        if (reserved > 0) {
+            lot.occupied += reserved;
+            Occupancy.publish(parkingLotId, lot.slots, lot.occupied);
+        }
+
+        return reserved;
+    }
 
-        } catch (Exception e) {
-            action.setErrorResponse("Failed removing ticket", e, HttpStatus.Code.BAD_REQUEST);
+    /**
+     * Parking lot is taken over from {@link Occupancy} when it is first used, or when it was added again like one moved back from another node
+     *
+     * @return null if the parking lot doesn't exist
+     */
+    private OwnedLot getLot(Integer parkingLotId) {
+        Occupancy.Slots slots = Occupancy.getSlots(parkingLotId);
+        if (slots == null) {
+            lots.remove(parkingLotId);
+            return null;
         }
 
-        getSender().tell(new ActionDone(action), getSelf());
+        OwnedLot lot = lots.get(parkingLotId);
+        if (lot == null || lot.slots != slots) {
+            lot = new OwnedLot(slots);
+            lots.put(parkingLotId, lot);
+        }
+
+        return lot;
     }
 
-    public static Props props() {
-        return Props.create(TicketActor.class);
+    /**
+     * Router of all owners, the parent of the routees, messages sent to it reach the owner of their parking lot
+     */
+    private ActorRef getOwners() {
+        return getContext().getParent();
+    }
+
+    /**
+     * Key of the consistent hashing router, the parking lot kept in the ticket ID.
+     * Removals of tickets with IDs generated elsewhere go to an arbitrary owner, which is still correct,
+     * only their order against other writes of the parking lot isn't kept. A batch goes to the owner of its first item.
+     */
+    public static Object getOwnerKey(Object message) {
+        if (message instanceof AddTicketAction) {
+            return TicketIds.getParkingLotId(((AddTicketAction) message).getTicket().getId());
+        }
+
+        if (message instanceof RemoveTicketAction) {
+            return TicketIds.getParkingLotId(((RemoveTicketAction) message).getTicketId());
+        }
+
+        if (message instanceof BatchTicketsAction) {
+            return ((BatchTicketsAction) message).getParkingLotId();
+        }
+
+        if (message instanceof SlotMessage) {
+            return ((SlotMessage) message).getParkingLotId();
+        }
+
+        return null;
+    }
+
+    public static Props props(ActorRef ticketWriter, QueueDelay queueDelay) {
+        return Props.create(TicketActor.class, ticketWriter, queueDelay);
+    }
+
+    /**
+     * Message about the slots of a parking lot for its owner, it must not be lost or the count of the owner stays wrong,
+     * so the {@link GateLaneMailbox} of the owner takes it even when full of actions
+     */
+    interface SlotMessage extends ControlMessage {
+
+        Integer getParkingLotId();
+
+    }
+
+    /**
+     * Capacity comes from the slots in {@link Occupancy}, the occupied count is kept here and published there
+     */
+    private static class OwnedLot {
+
+        private final Occupancy.Slots slots;
+
+        private int occupied;
+
+        private OwnedLot(Occupancy.Slots slots) {
+            this.slots = slots;
+            this.occupied = slots.getOccupied();
+        }
+
+    }
+
+    /**
+     * Reserve the slots of one parking lot of a batch at its owner, which passes the batch to the owner of the next one
+     */
+    private static class ReserveBatchSlots implements SlotMessage {
+
+        private final BatchTicketsAction action;
+
+        private final List<Integer> parkingLotIds;
+
+        private final int next;
+
+        private ReserveBatchSlots(BatchTicketsAction action, List<Integer> parkingLotIds, int next) {
+            this.action = action;
+            this.parkingLotIds = parkingLotIds;
+            this.next = next;
+        }
+
+        @Override
+        public Integer getParkingLotId() {
+            return parkingLotIds.get(next);
+        }
+
+    }
+
+    /**
+     * Occupied slots of a parking lot changed outside of its owner, by saved imports or by the writer
+     */
+    static class ChangeSlots implements SlotMessage {
+
+        private final Integer parkingLotId;
+
+        /**
+         * Number of slots taken, negative when they were freed
+         */
+        private final int change;
+
+        ChangeSlots(Integer parkingLotId, int change) {
+            this.parkingLotId = parkingLotId;
+            this.change = change;
+        }
+
+        @Override
+        public Integer getParkingLotId() {
+            return parkingLotId;
+        }
+
     }
 
 }
@@ -0,0 +1,87 @@
+package kopr.nikdy.viac.actors;
+
+import akka.actor.AbstractActorWithTimers;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import kopr.nikdy.viac.persistance.TicketStore;
+
+import java.time.Duration;
+
+/**
+ * Moves closed tickets from the ticket table to the history in the background.
+ * Every chunk is a separate short transaction, so ticket writes waiting for the database lock are delayed by one chunk at most.
+ * While full chunks are moved the next one follows right away, otherwise the archiver waits for the interval.
+ */
+public class TicketArchiverActor extends AbstractActorWithTimers {
+
+    private static final String ARCHIVE_TIMER = "archive";
+
+    private final LoggingAdapter logger = Logging.getLogger(getContext().system(), this);
+
+    private final TicketStore ticketStore;
+
+    /**
+     * Most tickets moved in one transaction
+     */
+    private final int chunkSize;
+
+    /**
+     * How long to wait before looking for closed tickets again once all were moved
+     */
+    private final Duration interval;
+
+    private long archivedSinceIdle;
+
+    public TicketArchiverActor(TicketStore ticketStore, int chunkSize, Duration interval) {
+        this.ticketStore = ticketStore;
+        this.chunkSize = chunkSize;
+        this.interval = interval;
+
+        getTimers().startSingleTimer(ARCHIVE_TIMER, Archive.INSTANCE, interval);
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Archive.class, archive -> archiveChunk())
+                .build();
+    }
+
+    private void archiveChunk() {
+        int moved;
+        try {
+            moved = ticketStore.archiveClosedTickets(chunkSize);
+
+        } catch (Exception e) {
+            logger.error(e, "Archiving closed tickets failed");
+            moved = 0;
+        }
+
+        archivedSinceIdle += moved;
+
+        if (moved == chunkSize) {
+            // message goes to the end of the mailbox, so the actor stays responsive between chunks
+            getSelf().tell(Archive.INSTANCE, getSelf());
+
+        } else {
+            if (archivedSinceIdle > 0) {
+                logger.info("Ticket archiver: {} closed tickets moved to history", archivedSinceIdle);
+            }
+
+            archivedSinceIdle = 0;
+            getTimers().startSingleTimer(ARCHIVE_TIMER, Archive.INSTANCE, interval);
+        }
+    }
+
+    public static Props props(TicketStore ticketStore, int chunkSize, Duration interval) {
+        return Props.create(TicketArchiverActor.class, ticketStore, chunkSize, interval);
+    }
+
+    private static class Archive {
+
+        private static final Archive INSTANCE = new Archive();
+
+    }
+
+}
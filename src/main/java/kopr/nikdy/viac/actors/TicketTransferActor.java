@@ -0,0 +1,64 @@
+package kopr.nikdy.viac.actors;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import kopr.nikdy.viac.actions.ExportTicketsAction;
+import kopr.nikdy.viac.actions.ImportTicketsAction;
+import kopr.nikdy.viac.persistance.TicketStore;
+
+/**
+ * Bulk import and export of tickets. Transfers stream the data, so only one chunk of tickets is held in memory at once.
+ * They take long, so this actor runs apart from the actors serving the gates.
+ */
+public class TicketTransferActor extends AbstractActor {
+
+    private final LoggingAdapter logger = Logging.getLogger(getContext().system(), this);
+
+    private final TicketStore ticketStore;
+
+    /**
+     * Number of imported tickets saved in one transaction
+     */
+    private final int chunkSize;
+
+    /**
+     * Router of the ticket owners, told the slots taken by imported open tickets
+     */
+    private final ActorRef ticketOwners;
+
+    public TicketTransferActor(TicketStore ticketStore, int chunkSize, ActorRef ticketOwners) {
+        this.ticketStore = ticketStore;
+        this.chunkSize = chunkSize;
+        this.ticketOwners = ticketOwners;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(ImportTicketsAction.class, this::handleImportTicketsAction)
+                .match(ExportTicketsAction.class, this::handleExportTicketsAction)
+
+                .build();
+    }
+
+    private void handleImportTicketsAction(ImportTicketsAction action) {
+        long imported = action.importInto(ticketStore, chunkSize, occupied -> occupied.forEach((parkingLotId, count) ->
+                ticketOwners.tell(new TicketActor.ChangeSlots(parkingLotId, count), getSelf())));
+        logger.info("Imported {} tickets", imported);
+
+        action.complete();
+    }
+
+    private void handleExportTicketsAction(ExportTicketsAction action) {
+        action.exportFrom(ticketStore);
+        action.complete();
+    }
+
+    public static Props props(TicketStore ticketStore, int chunkSize, ActorRef ticketOwners) {
+        return Props.create(TicketTransferActor.class, ticketStore, chunkSize, ticketOwners);
+    }
+
+}
@@ -0,0 +1,248 @@
+package kopr.nikdy.viac.actors;
+
+import akka.actor.AbstractActorWithTimers;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import kopr.nikdy.viac.actions.Action;
+import kopr.nikdy.viac.actions.AddTicketAction;
+import kopr.nikdy.viac.actions.BatchTicketsAction;
+import kopr.nikdy.viac.actions.RemoveTicketAction;
+import kopr.nikdy.viac.persistance.TicketStore;
+import org.eclipse.jetty.http.HttpStatus;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit of ticket writes.
+ * Writes are collected until the batch is full or the window of the first write in the batch passes,
+ * then the whole batch is committed in one transaction and only after that the requests are completed.
+ * Slots freed by the batch are sent back to the {@link TicketActor}s owning their parking lots, the writer doesn't count them itself.
+ */
+public class TicketWriterActor extends AbstractActorWithTimers {
+
+    private static final String FLUSH_TIMER = "flush";
+    private static final String REPORT_TIMER = "report";
+
+    private final LoggingAdapter logger = Logging.getLogger(getContext().system(), this);
+
+    private final TicketStore ticketStore;
+
+    /**
+     * Number of writes that triggers the commit without waiting for the window to pass
+     */
+    private final int maxBatchSize;
+
+    /**
+     * How long the first write in a batch waits for other writes to join it
+     */
+    private final Duration window;
+
+    private final List<PendingWrite> batch = new ArrayList<>();
+
+    /**
+     * Router of the ticket owners sending the writes, told the slots freed by every batch
+     */
+    private ActorRef owners;
+
+    private long writesSinceReport;
+    private long commitsSinceReport;
+    private long lastReportTime = System.nanoTime();
+
+    public TicketWriterActor(TicketStore ticketStore, int maxBatchSize, Duration window, Duration reportInterval) {
+        this.ticketStore = ticketStore;
+        this.maxBatchSize = maxBatchSize;
+        this.window = window;
+
+        getTimers().startPeriodicTimer(REPORT_TIMER, ReportThroughput.INSTANCE, reportInterval);
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(AddTicketAction.class, this::enqueue)
+                .match(RemoveTicketAction.class, this::enqueue)
+                .match(BatchTicketsAction.class, this::enqueue)
+
+                .match(Flush.class, flush -> flush())
+                .match(ReportThroughput.class, report -> reportThroughput())
+                .build();
+    }
+
+    @Override
+    public void postStop() {
+        flush();
+    }
+
+    private void enqueue(Action action) {
+        owners = getSender();
+        batch.add(new PendingWrite(action));
+
+        if (batch.size() >= maxBatchSize) {
+            flush();
+
+        } else if (!getTimers().isTimerActive(FLUSH_TIMER)) {
+            getTimers().startSingleTimer(FLUSH_TIMER, Flush.INSTANCE, window);
+        }
+    }
+
+    /**
+     * Commit all collected writes in one transaction and complete their requests
+     */
+    private void flush() {
+        getTimers().cancel(FLUSH_TIMER);
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            ticketStore.inTransaction(() -> batch.forEach(this::write));
+
+        } catch (Exception e) {
+            batch.forEach(write -> {
+                write.written = false;
+                if (write.action instanceof BatchTicketsAction && !write.action.isExpired()) {
+                    ((BatchTicketsAction) write.action).failWrites(e);
+                    ((BatchTicketsAction) write.action).setResults();
+
+                } else {
+                    write.action.setErrorResponse("Failed committing tickets", e, HttpStatus.Code.BAD_REQUEST);
+                }
+            });
+        }
+
+        Map<Integer, Integer> freed = new HashMap<>();
+        batch.forEach(write -> collectFreedSlots(write, freed));
+        freed.forEach((parkingLotId, count) -> owners.tell(new TicketActor.ChangeSlots(parkingLotId, -count), getSelf()));
+
+        logger.debug("Committed {} ticket writes in {} us", batch.size(), TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        writesSinceReport += batch.size();
+        commitsSinceReport++;
+
+        batch.forEach(write -> write.action.complete());
+        batch.clear();
+    }
+
+    /**
+     * Execute a single write of the batch. Failure of one write does not roll back the others.
+     * Writes of expired actions are skipped, actions answered by the timeout keep their response.
+     * The action is claimed first, so once written the timeout can't answer it before the batch is committed.
+     */
+    private void write(PendingWrite write) {
+        if (!write.action.claim()) {
+            // already answered, a reserved slot is released as unsaved
+            return;
+        }
+
+        if (write.action.isExpired()) {
+            // client stopped waiting while the write waited for its batch, a reserved slot is released as unsaved
+            write.action.setErrorResponse("Request deadline passed", HttpStatus.Code.SERVICE_UNAVAILABLE);
+
+        } else if (write.action instanceof AddTicketAction) {
+            AddTicketAction action = (AddTicketAction) write.action;
+            try {
+                ticketStore.addTicket(action.getTicket());
+                action.setResponseBody(action.getTicket());
+                write.written = true;
+
+            } catch (Exception e) {
+                action.setErrorResponse("Adding ticket", e, HttpStatus.Code.BAD_REQUEST);
+            }
+
+        } else if (write.action instanceof RemoveTicketAction) {
+            RemoveTicketAction action = (RemoveTicketAction) write.action;
+            try {
+                write.parkingLotId = ticketStore.removeTicket(action.getTicketId());
+                action.setResponseBody(action.getTicketId());
+                write.written = true;
+
+            } catch (Exception e) {
+                action.setErrorResponse("Failed removing ticket", e, HttpStatus.Code.BAD_REQUEST);
+            }
+
+        } else if (write.action instanceof BatchTicketsAction) {
+            BatchTicketsAction action = (BatchTicketsAction) write.action;
+            action.write(ticketStore);
+            action.setResults();
+            write.written = true;
+        }
+    }
+
+    /**
+     * Once the batch is committed or rolled back, slots reserved by unsaved tickets and of removed tickets are given back
+     *
+     * @param freed Parking lot -> number of freed slots
+     */
+    private void collectFreedSlots(PendingWrite write, Map<Integer, Integer> freed) {
+        if (write.action instanceof AddTicketAction && !write.written) {
+            freed.merge(((AddTicketAction) write.action).getTicket().getParkingLotId(), 1, Integer::sum);
+
+        } else if (write.action instanceof RemoveTicketAction && write.written) {
+            freed.merge(write.parkingLotId, 1, Integer::sum);
+
+        } else if (write.action instanceof BatchTicketsAction) {
+            ((BatchTicketsAction) write.action).getFreedSlots().forEach((parkingLotId, count) -> freed.merge(parkingLotId, count, Integer::sum));
+        }
+    }
+
+    private void reportThroughput() {
+        long now = System.nanoTime();
+        double seconds = (now - lastReportTime) / (double) TimeUnit.SECONDS.toNanos(1);
+
+        if (writesSinceReport > 0) {
+            logger.info("Ticket writer: {} writes in {} commits, {} writes/s",
+                    writesSinceReport, commitsSinceReport, String.format("%.1f", writesSinceReport / seconds));
+        }
+
+        writesSinceReport = 0;
+        commitsSinceReport = 0;
+        lastReportTime = now;
+    }
+
+    public static Props props(TicketStore ticketStore, int maxBatchSize, Duration window, Duration reportInterval) {
+        return Props.create(TicketWriterActor.class, ticketStore, maxBatchSize, window, reportInterval);
+    }
+
+    /**
+     * Write waiting for its batch to be committed
+     */
+    private static class PendingWrite {
+
+        private final Action action;
+
+        /**
+         * Whether the write succeeded and is part of the committed transaction
+         */
+        private boolean written;
+
+        /**
+         * Parking lot of the removed ticket
+         */
+        private Integer parkingLotId;
+
+        private PendingWrite(Action action) {
+            this.action = action;
+        }
+
+    }
+
+    private static class Flush {
+
+        private static final Flush INSTANCE = new Flush();
+
+    }
+
+    private static class ReportThroughput {
+
+        private static final ReportThroughput INSTANCE = new ReportThroughput();
+
+    }
+
+}
@@ -0,0 +1,92 @@
+package kopr.nikdy.viac.actors;
+
+import akka.actor.AbstractActorWithTimers;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import kopr.nikdy.viac.actions.GetParkingLotUsagesInPercentAction;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects all usage requests arriving within a short window, the parking lot actors answer each such batch by one query.
+ * There is only one coalescer in front of the pool of parking lot actors, so overlapping polls end in the same batch.
+ * It never blocks, so it runs on the default dispatcher and doesn't wait for the threads of the report lane.
+ */
+public class UsageCoalescerActor extends AbstractActorWithTimers {
+
+    private static final String USAGE_TIMER = "usage";
+
+    /**
+     * Router of the parking lot actors running the queries
+     */
+    private final ActorRef parkingLotActor;
+
+    private final QueueDelay queueDelay;
+
+    /**
+     * Number of usage requests that triggers the query without waiting for the window to pass
+     */
+    private final int maxBatchSize;
+
+    /**
+     * How long the first usage request in a batch waits for other requests to join it
+     */
+    private final Duration window;
+
+    private List<GetParkingLotUsagesInPercentAction> batch = new ArrayList<>();
+
+    public UsageCoalescerActor(ActorRef parkingLotActor, QueueDelay queueDelay, int maxBatchSize, Duration window) {
+        this.parkingLotActor = parkingLotActor;
+        this.queueDelay = queueDelay;
+        this.maxBatchSize = maxBatchSize;
+        this.window = window;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(GetParkingLotUsagesInPercentAction.class, this::handleGetParkingLotUsagesInPercentAction)
+
+                .match(SendBatch.class, send -> sendBatch())
+                .build();
+    }
+
+    private void handleGetParkingLotUsagesInPercentAction(GetParkingLotUsagesInPercentAction action) {
+        queueDelay.record(action);
+        if (action.dropIfExpired()) {
+            return;
+        }
+
+        batch.add(action);
+
+        if (batch.size() >= maxBatchSize) {
+            sendBatch();
+
+        } else if (!getTimers().isTimerActive(USAGE_TIMER)) {
+            getTimers().startSingleTimer(USAGE_TIMER, SendBatch.INSTANCE, window);
+        }
+    }
+
+    private void sendBatch() {
+        getTimers().cancel(USAGE_TIMER);
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        parkingLotActor.tell(new ParkingLotActor.UsageBatch(batch), getSelf());
+        batch = new ArrayList<>();
+    }
+
+    public static Props props(ActorRef parkingLotActor, QueueDelay queueDelay, int maxBatchSize, Duration window) {
+        return Props.create(UsageCoalescerActor.class, parkingLotActor, queueDelay, maxBatchSize, window);
+    }
+
+    private static class SendBatch {
+
+        private static final SendBatch INSTANCE = new SendBatch();
+
+    }
+
+}
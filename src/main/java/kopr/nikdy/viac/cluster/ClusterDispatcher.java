@@ -0,0 +1,288 @@
+package kopr.nikdy.viac.cluster;
+
+import akka.Done;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.CoordinatedShutdown;
+import akka.cluster.Cluster;
+import akka.cluster.Member;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.cluster.sharding.ShardCoordinator;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import kopr.nikdy.viac.actions.*;
+import kopr.nikdy.viac.actors.Lanes;
+import kopr.nikdy.viac.entities.ParkingLot;
+import kopr.nikdy.viac.persistance.SqliteStore;
+import kopr.nikdy.viac.persistance.TicketIds;
+import org.eclipse.jetty.http.HttpStatus;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every action on the node owning its parking lot, parking lots are spread over the nodes of the cluster
+ * by Akka Cluster Sharding and move when nodes join or leave. The node receiving a request forwards it
+ * to the {@link LotEntity} of the parking lot, which runs the usual action on the {@link Lanes} of its node and sends back the response.
+ * <ul>
+ * <li>usage of several parking lots asks every owner and merges the answers</li>
+ * <li>import and ticket batches aren't supported, tickets would have to be split by parking lot over the nodes</li>
+ * <li>export isn't supported, the node receiving it has only the tickets of its own parking lots</li>
+ * </ul>
+ */
+public class ClusterDispatcher implements ActionDispatcher {
+
+    private static final String HAND_OVER_PHASE = "kopr-hand-over-lots";
+
+    private final ActorSystem system;
+
+    private final Lanes lanes;
+
+    private final ActorRef region;
+
+    /**
+     * How long to wait for the owner when the request has no timeout
+     */
+    private final Duration askTimeout;
+
+    private ClusterDispatcher(ActorSystem system, Lanes lanes, ActorRef region, Duration askTimeout) {
+        this.system = system;
+        this.lanes = lanes;
+        this.region = region;
+        this.askTimeout = askTimeout;
+    }
+
+    /**
+     * Join the cluster set by kopr.cluster and start the shard region of the parking lots on this node
+     */
+    public static ClusterDispatcher start(Config config, SqliteStore store) {
+        Config cluster = config.getConfig("kopr.cluster");
+        ActorSystem system = ActorSystem.create("default", cluster.getConfig("akka").atKey("akka").withFallback(config));
+        Lanes lanes = Lanes.start(system, store, store);
+
+        Config allocation = cluster.getConfig("akka.cluster.sharding.least-shard-allocation-strategy");
+        ActorRef region = ClusterSharding.get(system).start(
+                LotEntity.TYPE_NAME,
+                LotEntity.props(lanes, store, cluster.getDuration("lot-search-timeout")).withDispatcher("kopr.cluster.dispatcher"),
+                ClusterShardingSettings.create(system),
+                new LotEntity.MessageExtractor(cluster.getInt("shards")),
+                new ShardCoordinator.LeastShardAllocationStrategy(
+                        allocation.getInt("rebalance-threshold"),
+                        allocation.getInt("max-simultaneous-rebalance")
+                ),
+                LotEntity.HandOff.INSTANCE
+        );
+
+        system.actorOf(
+                LotStorage.props(store, region, cluster.getInt("hand-over-chunk-size")).withDispatcher("kopr.cluster.dispatcher"),
+                LotStorage.NAME
+        );
+
+        Duration handOverTimeout = cluster.getDuration("hand-over-timeout");
+        CoordinatedShutdown.get(system).addTask(HAND_OVER_PHASE, "wake-lots-elsewhere",
+                () -> handOverLots(system, store, handOverTimeout));
+
+        return new ClusterDispatcher(system, lanes, region, cluster.getDuration("ask-timeout"));
+    }
+
+    /**
+     * Parking lots stay in the database of this node until their new owners take them.
+     * Once the shards are gone from this node, another node starts their entities, which pull the tickets from here.
+     * Waits until all parking lots are taken or the timeout passes, the ones left are unavailable until this node comes back.
+     */
+    private static CompletionStage<Done> handOverLots(ActorSystem system, SqliteStore store, Duration timeout) {
+        LoggingAdapter logger = Logging.getLogger(system, ClusterDispatcher.class);
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                ArrayList<Integer> lotIds = new ArrayList<>(store.getParkingLotCapacities().keySet());
+                Cluster cluster = Cluster.get(system);
+                Member other = null;
+                for (Member member : cluster.state().getMembers()) {
+                    if (!member.address().equals(cluster.selfAddress()) && member.status() == MemberStatus.up()) {
+                        other = member;
+                        break;
+                    }
+                }
+
+                if (lotIds.isEmpty() || other == null) {
+                    return Done.getInstance();
+                }
+
+                logger.info("Handing over {} parking lots through {}", lotIds.size(), other.address());
+                system.actorSelection(other.address() + "/user/" + LotStorage.NAME).tell(new LotStorage.WakeLots(lotIds), ActorRef.noSender());
+
+                long deadline = System.nanoTime() + timeout.toNanos();
+                int left = lotIds.size();
+                while (left > 0 && System.nanoTime() - deadline < 0) {
+                    TimeUnit.MILLISECONDS.sleep(100);
+                    left = store.getParkingLotCapacities().size();
+                }
+
+                if (left > 0) {
+                    logger.warning("{} parking lots not handed over in {}", left, timeout);
+                }
+
+            } catch (Exception e) {
+                logger.error(e, "Handing over parking lots failed");
+            }
+
+            return Done.getInstance();
+        });
+    }
+
+    @Override
+    public void dispatch(Action action) {
+        if (action instanceof AddTicketAction) {
+            Integer lotId = ((AddTicketAction) action).getTicket().getParkingLotId();
+            if (lotId == null) {
+                lanes.dispatch(action);
+
+            } else {
+                forward(action, lotId, LotEntity.Route.ADD_TICKET, new HashMap<>(), new HashMap<>());
+            }
+
+        } else if (action instanceof RemoveTicketAction) {
+            HashMap<String, String> params = new HashMap<>();
+            params.put(":ticketid", action.getRequest().params(":ticketId"));
+            forward(action, TicketIds.getParkingLotId(((RemoveTicketAction) action).getTicketId()), LotEntity.Route.REMOVE_TICKET,
+                    params, new HashMap<>());
+
+        } else if (action instanceof GetParkingLotVisitorsInDayAction) {
+            HashMap<String, String> params = new HashMap<>();
+            params.put(":lotid", action.getRequest().params(":lotId"));
+            forward(action, ((GetParkingLotVisitorsInDayAction) action).getParkingLotId(), LotEntity.Route.VISITORS,
+                    params, new HashMap<>(action.getRequest().queryMap().toMap()));
+
+        } else if (action instanceof GetParkingLotUsagesInPercentAction) {
+            dispatchUsages((GetParkingLotUsagesInPercentAction) action);
+
+        } else if (action instanceof AddParkingLotAction) {
+            dispatchCreation((AddParkingLotAction) action);
+
+        } else if (action instanceof ImportTicketsAction) {
+            action.setErrorResponse("Import isn't supported in cluster mode", HttpStatus.Code.NOT_IMPLEMENTED);
+            action.complete();
+
+        } else if (action instanceof BatchTicketsAction) {
+            action.setErrorResponse("Ticket batches aren't supported in cluster mode", HttpStatus.Code.NOT_IMPLEMENTED);
+            action.complete();
+
+        } else if (action instanceof ExportTicketsAction) {
+            action.setErrorResponse("Export isn't supported in cluster mode", HttpStatus.Code.NOT_IMPLEMENTED);
+            action.complete();
+
+        } else {
+            lanes.dispatch(action);
+        }
+    }
+
+    private void forward(Action action, int lotId, LotEntity.Route route,
+                         HashMap<String, String> params, HashMap<String, String[]> queryParams) {
+        long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(action.getRemainingTimeout());
+        LotEntity.Forward forward = new LotEntity.Forward(lotId, route, action.getRequest().body(), params, queryParams, timeoutMillis);
+
+        ask(forward, timeoutMillis).whenComplete((reply, error) -> answer(action, reply, error));
+    }
+
+    /**
+     * Every parking lot may be on another node, each owner is asked for its own usage
+     */
+    private void dispatchUsages(GetParkingLotUsagesInPercentAction action) {
+        if (action.getIds().isEmpty()) {
+            lanes.dispatch(action);
+            return;
+        }
+
+        long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(action.getRemainingTimeout());
+        List<CompletableFuture<LotEntity.Reply>> replies = new ArrayList<>();
+        for (Integer id : new LinkedHashSet<>(action.getIds())) {
+            HashMap<String, String[]> queryParams = new HashMap<>();
+            queryParams.put("id", new String[]{String.valueOf(id)});
+
+            replies.add(ask(new LotEntity.Forward(id, LotEntity.Route.USAGE, null, new HashMap<>(), queryParams, timeoutMillis), timeoutMillis));
+        }
+
+        CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).whenComplete((done, error) -> {
+            if (error != null) {
+                answer(action, null, error);
+                return;
+            }
+
+            Map<Integer, Double> usages = new HashMap<>();
+            for (CompletableFuture<LotEntity.Reply> future : replies) {
+                LotEntity.Reply reply = future.join();
+                if (reply.getStatus() != HttpStatus.OK_200) {
+                    answer(action, reply, null);
+                    return;
+                }
+
+                usages.putAll(JsonCodec.parseUsages(reply.getBody()));
+            }
+
+            action.setResponseBody(usages);
+            action.complete();
+        });
+    }
+
+    /**
+     * ID of a new parking lot comes from its name, so the node creating it is the one owning it
+     */
+    private void dispatchCreation(AddParkingLotAction action) {
+        ParkingLot parkingLot;
+        try {
+            parkingLot = action.getParkingLot();
+
+        } catch (InvalidRequestParametersException e) {
+            action.setErrorResponse("Failed creating parking lot", e, HttpStatus.Code.BAD_REQUEST);
+            action.complete();
+            return;
+        }
+
+        long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(action.getRemainingTimeout());
+        ask(new LotEntity.CreateLot(LotEntity.getLotId(parkingLot.getName()), parkingLot.getName(), parkingLot.getCapacity()), timeoutMillis)
+                .whenComplete((reply, error) -> answer(action, reply, error));
+    }
+
+    private CompletableFuture<LotEntity.Reply> ask(LotEntity.LotMessage message, long timeoutMillis) {
+        Duration timeout = timeoutMillis > 0 ? Duration.ofMillis(timeoutMillis) : askTimeout;
+
+        return Patterns.ask(region, message, timeout)
+                .thenApply(reply -> (LotEntity.Reply) reply)
+                .toCompletableFuture();
+    }
+
+    /**
+     * Owner that doesn't answer in time is answered with 503, like a full lane
+     */
+    private static void answer(Action action, LotEntity.Reply reply, Throwable error) {
+        if (error != null) {
+            action.completeWithError("Parking lot is not reachable now, try again later", HttpStatus.Code.SERVICE_UNAVAILABLE);
+
+        } else {
+            action.completeWith(reply::applyTo);
+        }
+    }
+
+    /**
+     * Leave the cluster, the parking lots of this node are handed over to the others before the stores are closed
+     */
+    @Override
+    public void close() {
+        CoordinatedShutdown.get(system).runAll(CoordinatedShutdown.jvmExitReason())
+                .toCompletableFuture()
+                .join();
+    }
+
+}
@@ -0,0 +1,47 @@
+package kopr.nikdy.viac.cluster;
+
+import spark.Request;
+
+/**
+ * Request received by another node and forwarded to the owner of its parking lot.
+ * Holds only the parts the actions read, so the usual actions can be built from it on the owner.
+ */
+class ForwardedRequest extends Request {
+
+    private final LotEntity.Forward forward;
+
+    ForwardedRequest(LotEntity.Forward forward) {
+        this.forward = forward;
+    }
+
+    @Override
+    public String body() {
+        return forward.getBody();
+    }
+
+    /**
+     * Same lookup as Spark, parameter names are kept in lower case with the colon
+     */
+    @Override
+    public String params(String param) {
+        String name = param.startsWith(":") ? param : ":" + param;
+        return forward.getParams().get(name.toLowerCase());
+    }
+
+    @Override
+    public String queryParams(String queryParam) {
+        String[] values = forward.getQueryParams().get(queryParam);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    @Override
+    public String[] queryParamsValues(String queryParam) {
+        return forward.getQueryParams().get(queryParam);
+    }
+
+    @Override
+    public String headers(String header) {
+        return null;
+    }
+
+}
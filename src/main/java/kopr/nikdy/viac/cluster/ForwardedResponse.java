@@ -0,0 +1,59 @@
+package kopr.nikdy.viac.cluster;
+
+import spark.Response;
+
+import java.util.HashMap;
+
+/**
+ * Response of a forwarded request, collected on the owner and sent back to the node the client waits on
+ */
+class ForwardedResponse extends Response {
+
+    private int status = 200;
+
+    private String body;
+
+    private String type;
+
+    private final HashMap<String, String> headers = new HashMap<>();
+
+    @Override
+    public void status(int statusCode) {
+        this.status = statusCode;
+    }
+
+    @Override
+    public int status() {
+        return status;
+    }
+
+    @Override
+    public void body(String body) {
+        this.body = body;
+    }
+
+    @Override
+    public String body() {
+        return body;
+    }
+
+    @Override
+    public void type(String contentType) {
+        this.type = contentType;
+    }
+
+    @Override
+    public String type() {
+        return type;
+    }
+
+    @Override
+    public void header(String header, String value) {
+        headers.put(header, value);
+    }
+
+    LotEntity.Reply toReply() {
+        return new LotEntity.Reply(status, body, type, headers);
+    }
+
+}
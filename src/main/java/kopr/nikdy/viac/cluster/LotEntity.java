@@ -0,0 +1,581 @@
+package kopr.nikdy.viac.cluster;
+
+import akka.actor.AbstractActorWithStash;
+import akka.actor.ActorRef;
+import akka.actor.Address;
+import akka.actor.Cancellable;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.Member;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ShardRegion;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import kopr.nikdy.viac.actions.*;
+import kopr.nikdy.viac.entities.ParkingLot;
+import kopr.nikdy.viac.entities.ParkingTicket;
+import kopr.nikdy.viac.persistance.Occupancy;
+import kopr.nikdy.viac.persistance.SqliteStore;
+import org.eclipse.jetty.http.HttpStatus;
+import spark.Request;
+import spark.Response;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Sharded actor of one parking lot, it runs on the node owning the parking lot and hands its requests to the lanes there.
+ * Tickets of the parking lot are in the database of the node that owned it last. When the entity starts on a node
+ * without them, it asks the {@link LotStorage} of the other nodes and requests wait until the one having them sends them over.
+ * When the parking lot moves away, the entity stops only after its running requests are completed.
+ */
+public class LotEntity extends AbstractActorWithStash {
+
+    public static final String TYPE_NAME = "parking-lot";
+
+    private final LoggingAdapter logger = Logging.getLogger(getContext().system(), this);
+
+    private final int lotId = Integer.parseInt(getSelf().path().name());
+
+    private final ActionDispatcher lanes;
+
+    private final SqliteStore store;
+
+    /**
+     * How long to wait for the other nodes to answer or for the next part of the tickets
+     */
+    private final Duration searchTimeout;
+
+    /**
+     * Parking lot in the database of this node, null if it doesn't exist
+     */
+    private ParkingLot parkingLot;
+
+    /**
+     * Nodes that haven't answered yet whether they have the parking lot
+     */
+    private final Set<Address> unanswered = new HashSet<>();
+
+    /**
+     * Tickets of the parking lot received so far, saved together once the last part arrives
+     */
+    private final List<String> receivedTickets = new ArrayList<>();
+
+    private Cancellable searchTimer;
+
+    /**
+     * Requests handed to the lanes and not completed yet
+     */
+    private int running;
+
+    private boolean handingOff;
+
+    public LotEntity(ActionDispatcher lanes, SqliteStore store, Duration searchTimeout) {
+        this.lanes = lanes;
+        this.store = store;
+        this.searchTimeout = searchTimeout;
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        parkingLot = store.findParkingLot(lotId);
+        if (parkingLot != null) {
+            getContext().become(serving());
+            return;
+        }
+
+        Cluster cluster = Cluster.get(getContext().getSystem());
+        for (Member member : cluster.state().getMembers()) {
+            if (!member.address().equals(cluster.selfAddress()) && isHoldingData(member.status())) {
+                unanswered.add(member.address());
+                getContext().actorSelection(member.address() + "/user/" + LotStorage.NAME)
+                        .tell(new LotStorage.FindLot(lotId), getSelf());
+            }
+        }
+
+        if (unanswered.isEmpty()) {
+            getContext().become(serving());
+
+        } else {
+            scheduleSearchTimeout();
+        }
+    }
+
+    @Override
+    public void postStop() {
+        if (searchTimer != null) {
+            searchTimer.cancel();
+        }
+    }
+
+    /**
+     * Nodes leaving the cluster still have their parking lots until the new owners take them
+     */
+    private static boolean isHoldingData(MemberStatus status) {
+        return status != MemberStatus.down() && status != MemberStatus.removed();
+    }
+
+    /**
+     * Requests wait until it is known whether the parking lot is on another node
+     */
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(LotStorage.LotNotHere.class, notHere -> {
+                    unanswered.remove(getSender().path().address());
+                    if (unanswered.isEmpty()) {
+                        startServing();
+                    }
+                })
+                .match(LotStorage.LotChunk.class, this::receiveChunk)
+                .match(SearchTimeout.class, timeout -> {
+                    logger.warning("Parking lot {} not found, no answer from {}", lotId, unanswered);
+                    giveUp();
+                    getContext().getParent().tell(new ShardRegion.Passivate(PoisonPill.getInstance()), getSelf());
+                })
+                .match(HandOff.class, handOff -> {
+                    giveUp();
+                    getSelf().tell(PoisonPill.getInstance(), getSelf());
+                })
+                .match(Wake.class, wake -> {
+                })
+                .matchAny(message -> stash())
+                .build();
+    }
+
+    private Receive serving() {
+        return receiveBuilder()
+                .match(Forward.class, this::run)
+                .match(CreateLot.class, this::create)
+                .match(ActionDone.class, done -> {
+                    running--;
+                    stopIfHandedOff();
+                })
+                .match(HandOff.class, handOff -> {
+                    handingOff = true;
+                    stopIfHandedOff();
+                })
+                .match(Wake.class, wake -> {
+                })
+                .match(LotStorage.LotNotHere.class, notHere -> {
+                })
+                .build();
+    }
+
+    /**
+     * Requests waiting for the search and the ones coming until the entity stops are answered with 503
+     */
+    private Receive unavailable() {
+        return receiveBuilder()
+                .match(LotMessage.class, message -> getSender().tell(
+                        Reply.error("Parking lot " + lotId + " is not reachable now, try again later", HttpStatus.Code.SERVICE_UNAVAILABLE),
+                        getSelf()
+                ))
+                .match(HandOff.class, handOff -> getContext().stop(getSelf()))
+                .matchAny(message -> {
+                })
+                .build();
+    }
+
+    private void receiveChunk(LotStorage.LotChunk chunk) {
+        receivedTickets.addAll(chunk.getTickets());
+        scheduleSearchTimeout();
+
+        if (!chunk.isLast()) {
+            return;
+        }
+
+        ParkingLot received = chunk.getParkingLot();
+        try {
+            List<ParkingTicket> tickets = new ArrayList<>(receivedTickets.size());
+            for (String line : receivedTickets) {
+                tickets.add(TicketFormat.NDJSON.parse(line));
+            }
+
+            store.inTransaction(() -> {
+                store.importParkingLot(received);
+                store.addTickets(tickets);
+            });
+            Occupancy.addParkingLot(received, (int) tickets.stream().filter(ticket -> ticket.getLeaveTime() == null).count());
+
+            logger.info("Parking lot {} with {} tickets taken over from {}", lotId, tickets.size(), getSender().path().address());
+            getSender().tell(new LotStorage.LotReceived(lotId), getSelf());
+
+        } catch (Exception e) {
+            // the node that sent the tickets keeps them, the next request searches again
+            logger.error(e, "Saving parking lot {} taken over from {} failed", lotId, getSender().path().address());
+            giveUp();
+            getContext().getParent().tell(new ShardRegion.Passivate(PoisonPill.getInstance()), getSelf());
+            return;
+        }
+
+        parkingLot = received;
+        receivedTickets.clear();
+        startServing();
+    }
+
+    private void startServing() {
+        searchTimer.cancel();
+        getContext().become(serving());
+        unstashAll();
+    }
+
+    private void giveUp() {
+        searchTimer.cancel();
+        getContext().become(unavailable());
+        unstashAll();
+    }
+
+    private void scheduleSearchTimeout() {
+        if (searchTimer != null) {
+            searchTimer.cancel();
+        }
+
+        searchTimer = getContext().getSystem().scheduler().scheduleOnce(
+                searchTimeout, getSelf(), SearchTimeout.INSTANCE, getContext().getDispatcher(), getSelf()
+        );
+    }
+
+    /**
+     * Build the usual action from the forwarded request, it is answered to the forwarding node once completed
+     */
+    private void run(Forward forward) {
+        ForwardedResponse response = new ForwardedResponse();
+        Action action;
+        try {
+            action = forward.getRoute().createAction(new ForwardedRequest(forward), response);
+
+        } catch (RuntimeException e) {
+            getSender().tell(Reply.error("Invalid request\n" + e.getMessage(), HttpStatus.Code.BAD_REQUEST), getSelf());
+            return;
+        }
+        action.setTimeout(TimeUnit.MILLISECONDS.toNanos(forward.getTimeoutMillis()));
+
+        ActorRef replyTo = getSender();
+        ActorRef self = getSelf();
+        running++;
+        action.getCompletion().thenRun(() -> {
+            replyTo.tell(response.toReply(), self);
+            self.tell(ActionDone.INSTANCE, ActorRef.noSender());
+        });
+
+        lanes.dispatch(action);
+    }
+
+    /**
+     * ID taken by a parking lot with another name passes the creation to the next ID, like open addressing of a hash table
+     */
+    private void create(CreateLot createLot) {
+        if (parkingLot != null) {
+            if (parkingLot.getName().equals(createLot.getName())) {
+                getSender().tell(Reply.error("Failed creating parking lot\nParking lot " + createLot.getName() + " already exists.",
+                        HttpStatus.Code.BAD_REQUEST), getSelf());
+
+            } else {
+                ClusterSharding.get(getContext().getSystem()).shardRegion(TYPE_NAME).forward(createLot.next(), getContext());
+            }
+            return;
+        }
+
+        ParkingLot created = new ParkingLot();
+        created.setId(lotId);
+        created.setName(createLot.getName());
+        created.setCapacity(createLot.getCapacity());
+
+        try {
+            store.importParkingLot(created);
+
+        } catch (Exception e) {
+            getSender().tell(Reply.error("Failed creating parking lot\n" + e.getMessage(), HttpStatus.Code.BAD_REQUEST), getSelf());
+            return;
+        }
+
+        Occupancy.addParkingLot(created);
+        parkingLot = created;
+        getSender().tell(new Reply(HttpStatus.OK_200, JsonCodec.toJson(created), null, new HashMap<>()), getSelf());
+    }
+
+    private void stopIfHandedOff() {
+        if (handingOff && running == 0) {
+            getContext().stop(getSelf());
+        }
+    }
+
+    /**
+     * @return ID the parking lot with the name gets, unless it is taken by another name
+     */
+    public static int getLotId(String name) {
+        CRC32 crc = new CRC32();
+        crc.update(name.getBytes(StandardCharsets.UTF_8));
+
+        int id = (int) (crc.getValue() & Integer.MAX_VALUE);
+        return id == 0 ? 1 : id;
+    }
+
+    public static Props props(ActionDispatcher lanes, SqliteStore store, Duration searchTimeout) {
+        return Props.create(LotEntity.class, lanes, store, searchTimeout);
+    }
+
+    /**
+     * Message routed to the entity of its parking lot
+     */
+    public interface LotMessage extends Serializable {
+
+        int getLotId();
+
+    }
+
+    /**
+     * Shard of a parking lot is its ID modulo the number of shards
+     */
+    public static class MessageExtractor implements ShardRegion.MessageExtractor {
+
+        private final int shards;
+
+        public MessageExtractor(int shards) {
+            this.shards = shards;
+        }
+
+        @Override
+        public String entityId(Object message) {
+            return message instanceof LotMessage ? String.valueOf(((LotMessage) message).getLotId()) : null;
+        }
+
+        @Override
+        public Object entityMessage(Object message) {
+            return message;
+        }
+
+        @Override
+        public String shardId(Object message) {
+            return message instanceof LotMessage ? String.valueOf(Math.floorMod(((LotMessage) message).getLotId(), shards)) : null;
+        }
+
+    }
+
+    /**
+     * Routes that go to the owner of the parking lot, the owner builds the same action as the node receiving the request
+     */
+    public enum Route {
+
+        ADD_TICKET(AddTicketAction::new),
+        REMOVE_TICKET(RemoveTicketAction::new),
+        VISITORS(GetParkingLotVisitorsInDayAction::new),
+        USAGE(GetParkingLotUsagesInPercentAction::new);
+
+        private final BiFunction<Request, Response, Action> factory;
+
+        Route(BiFunction<Request, Response, Action> factory) {
+            this.factory = factory;
+        }
+
+        Action createAction(Request request, Response response) {
+            return factory.apply(request, response);
+        }
+
+    }
+
+    /**
+     * Request of a client forwarded to the owner of the parking lot
+     */
+    public static class Forward implements LotMessage {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int lotId;
+
+        private final Route route;
+
+        private final String body;
+
+        /**
+         * Path parameters with the colon, in lower case
+         */
+        private final HashMap<String, String> params;
+
+        private final HashMap<String, String[]> queryParams;
+
+        /**
+         * How long the client still waits, 0 waits forever
+         */
+        private final long timeoutMillis;
+
+        public Forward(int lotId, Route route, String body, HashMap<String, String> params,
+                       HashMap<String, String[]> queryParams, long timeoutMillis) {
+            this.lotId = lotId;
+            this.route = route;
+            this.body = body;
+            this.params = params;
+            this.queryParams = queryParams;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public int getLotId() {
+            return lotId;
+        }
+
+        public Route getRoute() {
+            return route;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public HashMap<String, String> getParams() {
+            return params;
+        }
+
+        public HashMap<String, String[]> getQueryParams() {
+            return queryParams;
+        }
+
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+    }
+
+    /**
+     * Create the parking lot with the ID computed from its name by {@link #getLotId(String)}
+     */
+    public static class CreateLot implements LotMessage {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int lotId;
+
+        private final String name;
+
+        private final int capacity;
+
+        public CreateLot(int lotId, String name, int capacity) {
+            this.lotId = lotId;
+            this.name = name;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public int getLotId() {
+            return lotId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        private CreateLot next() {
+            return new CreateLot(lotId == Integer.MAX_VALUE ? 1 : lotId + 1, name, capacity);
+        }
+
+    }
+
+    /**
+     * Start the entity, so it takes over the tickets of its parking lot from a node leaving the cluster
+     */
+    public static class Wake implements LotMessage {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int lotId;
+
+        public Wake(int lotId) {
+            this.lotId = lotId;
+        }
+
+        @Override
+        public int getLotId() {
+            return lotId;
+        }
+
+    }
+
+    /**
+     * Response of a forwarded request or of a parking lot creation
+     */
+    public static class Reply implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private final String body;
+
+        private final String type;
+
+        private final HashMap<String, String> headers;
+
+        Reply(int status, String body, String type, HashMap<String, String> headers) {
+            this.status = status;
+            this.body = body;
+            this.type = type;
+            this.headers = headers;
+        }
+
+        static Reply error(String message, HttpStatus.Code status) {
+            return new Reply(status.getCode(), message, null, new HashMap<>());
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        /**
+         * Set the response of the action waiting on the node that received the request
+         */
+        public void applyTo(Response response) {
+            response.status(status);
+            if (type != null) {
+                response.type(type);
+            }
+            headers.forEach(response::header);
+            response.body(body);
+        }
+
+    }
+
+    /**
+     * Sent by the shard when the parking lot moves to another node
+     */
+    public static class HandOff {
+
+        public static final HandOff INSTANCE = new HandOff();
+
+        private HandOff() {
+        }
+
+    }
+
+    private static class ActionDone {
+
+        private static final ActionDone INSTANCE = new ActionDone();
+
+    }
+
+    private static class SearchTimeout {
+
+        private static final SearchTimeout INSTANCE = new SearchTimeout();
+
+    }
+
+}
@@ -0,0 +1,191 @@
+package kopr.nikdy.viac.cluster;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import kopr.nikdy.viac.actions.TicketFormat;
+import kopr.nikdy.viac.entities.ParkingLot;
+import kopr.nikdy.viac.persistance.Occupancy;
+import kopr.nikdy.viac.persistance.SqliteStore;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gives the parking lots in the database of this node to the nodes now owning them.
+ * Tickets are sent in chunks and deleted here only after the new owner confirms it saved them.
+ */
+public class LotStorage extends AbstractActor {
+
+    public static final String NAME = "lot-storage";
+
+    private final LoggingAdapter logger = Logging.getLogger(getContext().system(), this);
+
+    private final SqliteStore store;
+
+    private final ActorRef region;
+
+    /**
+     * Most tickets sent in one message
+     */
+    private final int chunkSize;
+
+    public LotStorage(SqliteStore store, ActorRef region, int chunkSize) {
+        this.store = store;
+        this.region = region;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(FindLot.class, this::sendLot)
+                .match(LotReceived.class, this::deleteLot)
+                .match(WakeLots.class, wake -> wake.getLotIds().forEach(id -> region.tell(new LotEntity.Wake(id), getSelf())))
+                .build();
+    }
+
+    private void sendLot(FindLot find) throws Exception {
+        ParkingLot parkingLot = store.findParkingLot(find.getLotId());
+        if (parkingLot == null) {
+            getSender().tell(LotNotHere.INSTANCE, getSelf());
+            return;
+        }
+
+        List<String> chunk = new ArrayList<>(chunkSize);
+        store.exportParkingLotTickets(find.getLotId(), ticket -> {
+            chunk.add(TicketFormat.NDJSON.format(ticket));
+            if (chunk.size() == chunkSize) {
+                getSender().tell(new LotChunk(parkingLot, new ArrayList<>(chunk), false), getSelf());
+                chunk.clear();
+            }
+        });
+        getSender().tell(new LotChunk(parkingLot, new ArrayList<>(chunk), true), getSelf());
+    }
+
+    private void deleteLot(LotReceived received) throws Exception {
+        store.deleteParkingLot(received.getLotId());
+        Occupancy.removeParkingLot(received.getLotId());
+
+        logger.info("Parking lot {} handed over to {}", received.getLotId(), getSender().path().address());
+    }
+
+    public static Props props(SqliteStore store, ActorRef region, int chunkSize) {
+        return Props.create(LotStorage.class, store, region, chunkSize);
+    }
+
+    /**
+     * Asks whether the parking lot is in the database of this node, answered with {@link LotNotHere} or its {@link LotChunk}s
+     */
+    public static class FindLot implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int lotId;
+
+        public FindLot(int lotId) {
+            this.lotId = lotId;
+        }
+
+        public int getLotId() {
+            return lotId;
+        }
+
+    }
+
+    public static class LotNotHere implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public static final LotNotHere INSTANCE = new LotNotHere();
+
+        private LotNotHere() {
+        }
+
+    }
+
+    /**
+     * Part of the tickets of a parking lot, one per line in the ndjson format of the export
+     */
+    public static class LotChunk implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int lotId;
+
+        private final String name;
+
+        private final int capacity;
+
+        private final ArrayList<String> tickets;
+
+        private final boolean last;
+
+        LotChunk(ParkingLot parkingLot, ArrayList<String> tickets, boolean last) {
+            this.lotId = parkingLot.getId();
+            this.name = parkingLot.getName();
+            this.capacity = parkingLot.getCapacity();
+            this.tickets = tickets;
+            this.last = last;
+        }
+
+        public ParkingLot getParkingLot() {
+            ParkingLot parkingLot = new ParkingLot();
+            parkingLot.setId(lotId);
+            parkingLot.setName(name);
+            parkingLot.setCapacity(capacity);
+            return parkingLot;
+        }
+
+        public List<String> getTickets() {
+            return tickets;
+        }
+
+        public boolean isLast() {
+            return last;
+        }
+
+    }
+
+    /**
+     * Sent by the new owner once the tickets are saved, the parking lot can be deleted here
+     */
+    public static class LotReceived implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int lotId;
+
+        public LotReceived(int lotId) {
+            this.lotId = lotId;
+        }
+
+        public int getLotId() {
+            return lotId;
+        }
+
+    }
+
+    /**
+     * Start the entities of the parking lots, sent by a node leaving the cluster to another node
+     */
+    public static class WakeLots implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<Integer> lotIds;
+
+        public WakeLots(ArrayList<Integer> lotIds) {
+            this.lotIds = lotIds;
+        }
+
+        public List<Integer> getLotIds() {
+            return lotIds;
+        }
+
+    }
+
+}
@@ -0,0 +1,94 @@
+package kopr.nikdy.viac.endpoints;
+
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of requests of every route class queued or processed by the actors at once.
+ * Requests over the limit are rejected before they are queued, so an overload can't make the queues grow
+ * and the latency of the accepted requests stays bounded.
+ */
+public class AdmissionController {
+
+    public enum RouteClass {
+
+        /**
+         * Ticket arrivals and removals
+         */
+        GATE("gate-limit"),
+
+        /**
+         * Parking lot queries and creation
+         */
+        REPORT("report-limit"),
+
+        /**
+         * Imports and exports
+         */
+        TRANSFER("transfer-limit");
+
+        private final String limitPath;
+
+        RouteClass(String limitPath) {
+            this.limitPath = limitPath;
+        }
+
+    }
+
+    private final Map<RouteClass, Integer> limits = new EnumMap<>(RouteClass.class);
+
+    private final Map<RouteClass, AtomicInteger> admitted = new EnumMap<>(RouteClass.class);
+
+    /**
+     * How long rejected clients are asked to wait before they try again
+     */
+    private final Duration retryAfter;
+
+    /**
+     * @param config Configuration kopr.admission
+     */
+    public AdmissionController(Config config) {
+        for (RouteClass routeClass : RouteClass.values()) {
+            limits.put(routeClass, config.getInt(routeClass.limitPath));
+            admitted.put(routeClass, new AtomicInteger());
+        }
+
+        retryAfter = config.getDuration("retry-after");
+    }
+
+    /**
+     * Take a place for the request, it has to be given back by {@link #release(RouteClass)} once the request is answered
+     *
+     * @return false if the route class is at its limit and the request should be rejected
+     */
+    public boolean tryAdmit(RouteClass routeClass) {
+        int limit = limits.get(routeClass);
+        AtomicInteger count = admitted.get(routeClass);
+
+        int current;
+        do {
+            current = count.get();
+            if (current >= limit) {
+                return false;
+            }
+        } while (!count.compareAndSet(current, current + 1));
+
+        return true;
+    }
+
+    public void release(RouteClass routeClass) {
+        admitted.get(routeClass).decrementAndGet();
+    }
+
+    /**
+     * @return Value of the Retry-After header in whole seconds, at least 1
+     */
+    public String getRetryAfter() {
+        return String.valueOf(Math.max(retryAfter.getSeconds(), 1));
+    }
+
+}
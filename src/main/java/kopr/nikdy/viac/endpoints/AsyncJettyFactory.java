@@ -0,0 +1,86 @@
+package kopr.nikdy.viac.endpoints;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import spark.embeddedserver.EmbeddedServer;
+import spark.embeddedserver.EmbeddedServerFactory;
+import spark.embeddedserver.jetty.EmbeddedJettyServer;
+import spark.embeddedserver.jetty.JettyHandler;
+import spark.embeddedserver.jetty.JettyServerFactory;
+import spark.http.matching.MatcherFilter;
+import spark.route.Routes;
+import spark.staticfiles.StaticFilesConfiguration;
+
+import javax.servlet.Filter;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+
+/**
+ * Embedded Jetty for Spark that lets routes finish their requests asynchronously.
+ * Once a route starts async processing, Spark sees the response as already committed, so it doesn't write
+ * the value returned by the route and the response stays open until the async context is completed.
+ * Routes that don't start async processing work the same as with the default Spark server.
+ */
+public class AsyncJettyFactory implements EmbeddedServerFactory {
+
+    @Override
+    public EmbeddedServer create(Routes routeMatcher, StaticFilesConfiguration staticFilesConfiguration, boolean hasMultipleHandler) {
+        MatcherFilter matcherFilter = new MatcherFilter(routeMatcher, staticFilesConfiguration, false, hasMultipleHandler);
+        matcherFilter.init(null);
+
+        return new EmbeddedJettyServer(new DefaultServerFactory(), new AsyncHandler(matcherFilter));
+    }
+
+    private static class AsyncHandler extends JettyHandler {
+
+        private AsyncHandler(Filter filter) {
+            super(filter);
+        }
+
+        @Override
+        public void doHandle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+                throws IOException, ServletException {
+            super.doHandle(target, baseRequest, request, new HttpServletResponseWrapper(response) {
+                @Override
+                public boolean isCommitted() {
+                    return request.isAsyncStarted() || super.isCommitted();
+                }
+            });
+        }
+
+    }
+
+    /**
+     * Creates the server the same way as Spark does by default
+     */
+    private static class DefaultServerFactory implements JettyServerFactory {
+
+        private static final int DEFAULT_MIN_THREADS = 8;
+        private static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+
+        @Override
+        public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
+            if (maxThreads <= 0) {
+                return new Server();
+            }
+
+            return new Server(new QueuedThreadPool(
+                    maxThreads,
+                    minThreads > 0 ? minThreads : DEFAULT_MIN_THREADS,
+                    threadTimeoutMillis > 0 ? threadTimeoutMillis : DEFAULT_IDLE_TIMEOUT_MILLIS
+            ));
+        }
+
+        @Override
+        public Server create(ThreadPool threadPool) {
+            return threadPool == null ? new Server() : new Server(threadPool);
+        }
+
+    }
+
+}
@@ -0,0 +1,42 @@
+package kopr.nikdy.viac.endpoints;
+
+import spark.Response;
+
+/**
+ * Response of a request received by {@link GateServer}, collected for the binary response frame
+ */
+class GateResponse extends Response {
+
+    private int status = 200;
+
+    private String body;
+
+    @Override
+    public void status(int statusCode) {
+        this.status = statusCode;
+    }
+
+    @Override
+    public int status() {
+        return status;
+    }
+
+    @Override
+    public void body(String body) {
+        this.body = body;
+    }
+
+    @Override
+    public String body() {
+        return body;
+    }
+
+    @Override
+    public void type(String contentType) {
+    }
+
+    @Override
+    public void header(String header, String value) {
+    }
+
+}
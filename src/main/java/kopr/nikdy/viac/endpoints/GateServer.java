@@ -0,0 +1,502 @@
+package kopr.nikdy.viac.endpoints;
+
+import com.typesafe.config.Config;
+import kopr.nikdy.viac.actions.Action;
+import kopr.nikdy.viac.actions.ActionDispatcher;
+import kopr.nikdy.viac.actions.AddTicketAction;
+import kopr.nikdy.viac.actions.RemoveTicketAction;
+import kopr.nikdy.viac.endpoints.AdmissionController.RouteClass;
+import kopr.nikdy.viac.entities.ParkingTicket;
+import kopr.nikdy.viac.persistance.Occupancy;
+import org.eclipse.jetty.http.HttpStatus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCP listener for barrier controllers too small for HTTP with JSON, speaking a compact binary protocol.
+ * Every request carries an ID repeated by its response, so a controller may send many requests on one connection
+ * without waiting and match the responses, which are sent in the order the requests complete.
+ * Arrivals and removals go through the admission control and dispatcher of {@link Server} like the HTTP ones,
+ * remaining capacity is read from {@link Occupancy}. Not available in cluster mode, forwarding needs the HTTP request.
+ * <pre>
+ * request:  int length | byte operation | int requestId | payload
+ *   1 add ticket          int parkingLotId | short plateLength | licence plate in UTF-8
+ *   2 remove ticket       long mostSigBits | long leastSigBits of the ticket ID
+ *   3 remaining capacity  int parkingLotId
+ * response: int length | int requestId | short status | payload
+ *   1 add ticket          long mostSigBits | long leastSigBits of the ticket ID | long arrivalTime
+ *   2 remove ticket       empty
+ *   3 remaining capacity  int freeSlots
+ *   error                 message in UTF-8
+ * </pre>
+ * Numbers are big endian, length counts the bytes after it and status is the one the HTTP API answers with.
+ * Arrival time is the local time of the server in milliseconds since 1970-01-01T00:00, without time zone.
+ * One thread serves all connections, it stops reading a connection whose client doesn't read its responses.
+ */
+public class GateServer {
+
+    private static final byte ADD_TICKET = 1;
+
+    private static final byte REMOVE_TICKET = 2;
+
+    private static final byte REMAINING_CAPACITY = 3;
+
+    /**
+     * Operation and request ID, the shortest valid request
+     */
+    private static final int REQUEST_HEADER = 5;
+
+    /**
+     * Request ID and status
+     */
+    private static final int RESPONSE_HEADER = 6;
+
+    /**
+     * Most responses written by one system call
+     */
+    private static final int MAX_GATHERED_RESPONSES = 256;
+
+    private final ActionDispatcher dispatcher;
+
+    private final AdmissionController admissionController;
+
+    /**
+     * How long to wait for the completion of an action, 0 waits forever
+     */
+    private final long timeoutMillis;
+
+    private final int maxFrameSize;
+
+    private final int maxPendingOutput;
+
+    private final Selector selector;
+
+    private final ServerSocketChannel serverChannel;
+
+    private final Thread selectorThread = new Thread(this::serve, "gate-protocol");
+
+    /**
+     * Connections with responses to write, added by the threads completing the actions
+     */
+    private final Queue<Connection> writable = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    private final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1);
+
+    private volatile boolean running = true;
+
+    private GateServer(Config config, ActionDispatcher dispatcher, AdmissionController admissionController, long timeoutMillis)
+            throws IOException {
+        this.dispatcher = dispatcher;
+        this.admissionController = admissionController;
+        this.timeoutMillis = timeoutMillis;
+        this.maxFrameSize = config.getBytes("max-frame-size").intValue();
+        this.maxPendingOutput = config.getBytes("max-pending-output").intValue();
+        this.timeouts.setRemoveOnCancelPolicy(true);
+
+        this.selector = Selector.open();
+        ServerSocketChannel channel = null;
+        try {
+            channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(config.getInt("port")));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+
+        } catch (IOException | RuntimeException e) {
+            // the server keeps running without the listener, so the opened handles must not stay behind
+            closeAfterFailure(channel, e);
+            closeAfterFailure(selector, e);
+            throw e;
+        }
+        this.serverChannel = channel;
+    }
+
+    private static void closeAfterFailure(Closeable handle, Exception failure) {
+        if (handle == null) {
+            return;
+        }
+
+        try {
+            handle.close();
+
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Listen on the port set by kopr.gate-protocol
+     *
+     * @param timeoutMillis How long to wait for the completion of an action, 0 waits forever
+     */
+    public static GateServer start(Config config, ActionDispatcher dispatcher, AdmissionController admissionController, long timeoutMillis)
+            throws IOException {
+        GateServer server = new GateServer(config, dispatcher, admissionController, timeoutMillis);
+        server.selectorThread.start();
+
+        return server;
+    }
+
+    private void serve() {
+        while (running) {
+            try {
+                selector.select();
+                wakeupPending.set(false);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+
+                    } else if (key.isValid()) {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    }
+                }
+
+                Connection connection;
+                while ((connection = writable.poll()) != null) {
+                    connection.queued.set(false);
+                    connection.write();
+                }
+
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Gate protocol listener failed: " + e.getMessage());
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key);
+        }
+        try {
+            selector.close();
+
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    /**
+     * Answer one request, the frame is limited to its end and positioned after the length
+     */
+    private void handle(Connection connection, ByteBuffer frame) {
+        byte operation = frame.get();
+        int requestId = frame.getInt();
+
+        try {
+            switch (operation) {
+                case ADD_TICKET:
+                    int parkingLotId = frame.getInt();
+                    byte[] plate = new byte[frame.getShort() & 0xFFFF];
+                    frame.get(plate);
+                    dispatch(connection, requestId, new AddTicketAction(new GateResponse(), parkingLotId,
+                            new String(plate, StandardCharsets.UTF_8)));
+                    break;
+
+                case REMOVE_TICKET:
+                    dispatch(connection, requestId, new RemoveTicketAction(new GateResponse(), new UUID(frame.getLong(), frame.getLong())));
+                    break;
+
+                case REMAINING_CAPACITY:
+                    int remaining = Occupancy.getRemainingCapacity(frame.getInt());
+                    if (remaining < 0) {
+                        connection.send(encodeError(requestId, HttpStatus.NOT_FOUND_404, "Parking lot doesn't exist"));
+
+                    } else {
+                        connection.send(allocateResponse(requestId, HttpStatus.OK_200, Integer.BYTES).putInt(remaining));
+                    }
+                    break;
+
+                default:
+                    connection.send(encodeError(requestId, HttpStatus.BAD_REQUEST_400, "Unknown operation " + operation));
+            }
+
+        } catch (BufferUnderflowException e) {
+            connection.send(encodeError(requestId, HttpStatus.BAD_REQUEST_400, "Frame too short for operation " + operation));
+
+        } catch (RuntimeException e) {
+            // the frame is skipped like any other, the connection keeps reading the next ones
+            connection.send(encodeError(requestId, HttpStatus.INTERNAL_SERVER_ERROR_500, "Failed processing request\n" + e.getMessage()));
+        }
+    }
+
+    /**
+     * Hand the action to the dispatcher, the response is sent by the thread completing it or with an error once the timeout passes
+     */
+    private void dispatch(Connection connection, int requestId, Action action) {
+        if (!admissionController.tryAdmit(RouteClass.GATE)) {
+            connection.send(encodeError(requestId, HttpStatus.TOO_MANY_REQUESTS_429, "Too many requests, try again later"));
+            return;
+        }
+
+        action.setTimeout(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        action.getCompletion().thenRun(() -> {
+            admissionController.release(RouteClass.GATE);
+            connection.send(encodeResponse(requestId, action));
+        });
+
+        try {
+            if (timeoutMillis != 0) {
+                ScheduledFuture<?> timeout = timeouts.schedule(() -> {
+                    action.completeWithError("Request timed out", HttpStatus.Code.SERVICE_UNAVAILABLE);
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+                action.getCompletion().thenRun(() -> timeout.cancel(false));
+            }
+
+            dispatcher.dispatch(action);
+
+        } catch (RuntimeException e) {
+            // like executors rejecting tasks while shutting down, the completion releases the slot and sends the error
+            action.completeWithError("Failed processing request\n" + e.getMessage(), HttpStatus.Code.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private ByteBuffer encodeResponse(int requestId, Action action) {
+        int status = action.getResponse().status();
+        if (status != HttpStatus.OK_200) {
+            return encodeError(requestId, status, action.getResponse().body());
+        }
+
+        if (action instanceof AddTicketAction) {
+            ParkingTicket ticket = ((AddTicketAction) action).getTicket();
+            return allocateResponse(requestId, status, 3 * Long.BYTES)
+                    .putLong(ticket.getId().getMostSignificantBits())
+                    .putLong(ticket.getId().getLeastSignificantBits())
+                    .putLong(ticket.getArrivalTime().toInstant(ZoneOffset.UTC).toEpochMilli());
+        }
+
+        return allocateResponse(requestId, status, 0);
+    }
+
+    /**
+     * Message longer than a frame is cut
+     */
+    private ByteBuffer encodeError(int requestId, int status, String message) {
+        byte[] bytes = (message == null ? "" : message).getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, maxFrameSize - RESPONSE_HEADER);
+
+        return allocateResponse(requestId, status, length).put(bytes, 0, length);
+    }
+
+    private static ByteBuffer allocateResponse(int requestId, int status, int payloadLength) {
+        return ByteBuffer.allocate(Integer.BYTES + RESPONSE_HEADER + payloadLength)
+                .putInt(RESPONSE_HEADER + payloadLength)
+                .putInt(requestId)
+                .putShort((short) status);
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+
+        } catch (IOException e) {
+            // closed anyway
+        }
+    }
+
+    /**
+     * Stop listening and close the connections, requests in progress are completed without sending their responses
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        timeouts.shutdown();
+    }
+
+    private class Connection {
+
+        private final SocketChannel channel;
+
+        private final SelectionKey key;
+
+        /**
+         * Received bytes not handled yet, large enough for the longest frame
+         */
+        private final ByteBuffer input;
+
+        /**
+         * Completed responses, added by any thread and moved to {@link #output} by the selector thread
+         */
+        private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Responses being written, used only by the selector thread
+         */
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+
+        /**
+         * Bytes of responses not written yet
+         */
+        private final AtomicInteger pendingOutput = new AtomicInteger();
+
+        /**
+         * Whether the connection is in {@link #writable}
+         */
+        private final AtomicBoolean queued = new AtomicBoolean();
+
+        private Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.input = ByteBuffer.allocate(Integer.BYTES + maxFrameSize);
+        }
+
+        /**
+         * Handle every complete frame received, a frame of invalid length closes the connection
+         */
+        private void read() {
+            try {
+                if (channel.read(input) < 0) {
+                    close();
+                    return;
+                }
+
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            input.flip();
+            while (input.remaining() >= Integer.BYTES) {
+                int length = input.getInt(input.position());
+                if (length < REQUEST_HEADER || length > maxFrameSize) {
+                    close();
+                    return;
+                }
+                if (input.remaining() < Integer.BYTES + length) {
+                    break;
+                }
+
+                int limit = input.limit();
+                int end = input.position() + Integer.BYTES + length;
+                input.position(input.position() + Integer.BYTES).limit(end);
+                try {
+                    handle(this, input);
+
+                } finally {
+                    input.limit(limit).position(end);
+                }
+            }
+            input.compact();
+
+            updateInterest();
+        }
+
+        /**
+         * Add the response to be written by the selector thread, called by any thread
+         */
+        private void send(ByteBuffer response) {
+            response.flip();
+            pendingOutput.addAndGet(response.remaining());
+            responses.add(response);
+
+            if (queued.compareAndSet(false, true)) {
+                writable.add(this);
+                if (wakeupPending.compareAndSet(false, true)) {
+                    selector.wakeup();
+                }
+            }
+        }
+
+        /**
+         * Write as many responses as the socket takes, the rest waits until it is writable
+         */
+        private void write() {
+            if (!key.isValid()) {
+                responses.clear();
+                return;
+            }
+
+            ByteBuffer response;
+            while ((response = responses.poll()) != null) {
+                output.add(response);
+            }
+
+            try {
+                while (!output.isEmpty()) {
+                    ByteBuffer[] buffers = output.stream().limit(MAX_GATHERED_RESPONSES).toArray(ByteBuffer[]::new);
+                    long written = channel.write(buffers);
+                    pendingOutput.addAndGet((int) -written);
+
+                    while (!output.isEmpty() && !output.peek().hasRemaining()) {
+                        output.poll();
+                    }
+                    if (written == 0) {
+                        break;
+                    }
+                }
+
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            updateInterest();
+        }
+
+        /**
+         * Read only while the client reads its responses, wait for the socket only while some response isn't written
+         */
+        private void updateInterest() {
+            if (key.isValid()) {
+                key.interestOps((pendingOutput.get() < maxPendingOutput ? SelectionKey.OP_READ : 0)
+                        | (output.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+            }
+        }
+
+        private void close() {
+            closeQuietly(key);
+            output.clear();
+            responses.clear();
+        }
+
+    }
+
+}
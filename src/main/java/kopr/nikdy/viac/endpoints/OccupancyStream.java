@@ -0,0 +1,206 @@
+package kopr.nikdy.viac.endpoints;
+
+import com.typesafe.config.Config;
+import kopr.nikdy.viac.actions.JsonCodec;
+import kopr.nikdy.viac.persistance.Occupancy;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Usage of parking lots pushed over WebSocket to clients like entrance displays, instead of polling GET /parkingLot/usage.
+ * Client subscribes to parking lots by the query of the connection, gets their usage once and then only usage of the changed ones.
+ * Writers only mark the parking lot as changed in {@link Occupancy}, the changes are sent once per tick,
+ * so a parking lot changed many times during the tick is sent once.
+ * Changes for a subscriber still receiving its previous update are merged into its next one,
+ * a slow subscriber holds at most one update and never slows down the writes.
+ * Usage is counted from the reserved slots, it may be ahead of the saved tickets by the writes in progress.
+ * In cluster mode the subscriber gets only parking lots owned by the node it is connected to.
+ */
+@WebSocket
+public class OccupancyStream {
+
+    private final int maxSubscribers;
+
+    private final Set<Integer> changedLots = ConcurrentHashMap.newKeySet();
+
+    private final Map<Session, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+    private final Map<Integer, Set<Subscriber>> subscribersByLot = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * @param config Configuration kopr.occupancy-stream
+     */
+    public OccupancyStream(Config config) {
+        this.maxSubscribers = config.getInt("max-subscribers");
+
+        Occupancy.setChangeListener(id -> changedLots.add(id));
+        long tick = config.getDuration("tick").toMillis();
+        ticker.scheduleAtFixedRate(this::tick, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Subscribe to parking lots in the query, ?id=<firstLot>&id=<secondLot>&id=..., and send their usage
+     */
+    @OnWebSocketConnect
+    public void onConnect(Session session) {
+        if (subscribers.size() >= maxSubscribers) {
+            session.close(StatusCode.TRY_AGAIN_LATER, "Too many subscribers, try again later");
+            return;
+        }
+
+        Set<Integer> parkingLotIds = new LinkedHashSet<>();
+        try {
+            for (String id : session.getUpgradeRequest().getParameterMap().getOrDefault("id", new ArrayList<>())) {
+                parkingLotIds.add(Integer.valueOf(id));
+            }
+
+        } catch (NumberFormatException e) {
+            session.close(StatusCode.BAD_DATA, "Parking lot IDs must be numbers");
+            return;
+        }
+
+        Subscriber subscriber = new Subscriber(session, parkingLotIds);
+        subscribers.put(session, subscriber);
+        for (Integer id : parkingLotIds) {
+            subscribersByLot.computeIfAbsent(id, key -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        }
+
+        subscriber.send(parkingLotIds);
+    }
+
+    @OnWebSocketClose
+    public void onClose(Session session, int statusCode, String reason) {
+        Subscriber subscriber = subscribers.remove(session);
+        if (subscriber == null) {
+            return;
+        }
+
+        for (Integer id : subscriber.parkingLotIds) {
+            subscribersByLot.computeIfPresent(id, (key, lotSubscribers) -> {
+                lotSubscribers.remove(subscriber);
+                return lotSubscribers.isEmpty() ? null : lotSubscribers;
+            });
+        }
+    }
+
+    /**
+     * Send the parking lots changed since the last tick to their subscribers
+     */
+    private void tick() {
+        if (changedLots.isEmpty()) {
+            return;
+        }
+
+        Map<Subscriber, List<Integer>> updates = new HashMap<>();
+        for (Integer id : changedLots) {
+            changedLots.remove(id);
+
+            Set<Subscriber> lotSubscribers = subscribersByLot.get(id);
+            if (lotSubscribers != null) {
+                for (Subscriber subscriber : lotSubscribers) {
+                    updates.computeIfAbsent(subscriber, key -> new ArrayList<>()).add(id);
+                }
+            }
+        }
+
+        updates.forEach(Subscriber::send);
+    }
+
+    /**
+     * Stop sending updates, connections are closed with the server
+     */
+    public void close() {
+        ticker.shutdown();
+    }
+
+    private static class Subscriber implements WriteCallback {
+
+        private final Session session;
+
+        private final Set<Integer> parkingLotIds;
+
+        /**
+         * Changed parking lots waiting until the update in flight is sent
+         */
+        private final Set<Integer> pending = new LinkedHashSet<>();
+
+        private boolean sending;
+
+        /**
+         * Whether the first update with all subscribed parking lots was sent, later updates are sent only with some usage
+         */
+        private boolean subscribed;
+
+        private Subscriber(Session session, Set<Integer> parkingLotIds) {
+            this.session = session;
+            this.parkingLotIds = parkingLotIds;
+        }
+
+        /**
+         * Send usage of the parking lots, or merge them into the next update if the previous one isn't sent yet
+         */
+        private synchronized void send(Iterable<Integer> changed) {
+            for (Integer id : changed) {
+                pending.add(id);
+            }
+
+            if (sending || pending.isEmpty() || !session.isOpen()) {
+                return;
+            }
+
+            Map<Integer, Double> usages = new HashMap<>();
+            for (Integer id : pending) {
+                Double usage = Occupancy.getUsageInPercent(id);
+                if (usage != null) {
+                    usages.put(id, usage);
+                }
+            }
+            pending.clear();
+
+            if (usages.isEmpty() && subscribed) {
+                return;
+            }
+
+            try {
+                sending = true;
+                subscribed = true;
+                session.getRemote().sendString(JsonCodec.toJson(usages), this);
+
+            } catch (RuntimeException e) {
+                // closed while the update was prepared, onClose unsubscribes it
+                sending = false;
+            }
+        }
+
+        @Override
+        public synchronized void writeSuccess() {
+            sending = false;
+            send(new ArrayList<>());
+        }
+
+        @Override
+        public void writeFailed(Throwable error) {
+            // the connection is broken, closing it unsubscribes the client
+            session.close(StatusCode.SERVER_ERROR, "Sending usage failed");
+        }
+
+    }
+
+}
@@ -1,19 +1,91 @@
 package kopr.nikdy.viac.endpoints;
 
-import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import kopr.nikdy.viac.actions.*;
+import kopr.nikdy.viac.actors.Lanes;
 import kopr.nikdy.viac.actors.MasterActor;
+import kopr.nikdy.viac.cluster.ClusterDispatcher;
+import kopr.nikdy.viac.endpoints.AdmissionController.RouteClass;
+import kopr.nikdy.viac.entities.ParkingTicket;
+import kopr.nikdy.viac.persistance.JournaledTicketStore;
+import kopr.nikdy.viac.persistance.LotStore;
+import kopr.nikdy.viac.persistance.SqliteStore;
+import kopr.nikdy.viac.persistance.TicketStore;
+import kopr.nikdy.viac.threads.VirtualThreadDispatcher;
 
-import java.util.concurrent.CountDownLatch;
+import org.eclipse.jetty.http.HttpStatus;
+import spark.embeddedserver.EmbeddedServers;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static spark.Spark.*;
 
 public class Server {
 
-    public static void registerEndpoints() {
-        ActorSystem system = ActorSystem.create();
-        ActorRef master = system.actorOf(MasterActor.props());
+    /**
+     * Content type Spark sends when the route doesn't set any
+     */
+    private static final String DEFAULT_CONTENT_TYPE = "text/html; charset=utf-8";
+
+    /**
+     * Header with how many milliseconds the client waits for the response, shortens the request timeout
+     */
+    private static final String TIMEOUT_HEADER = "X-Request-Timeout";
+
+    private static AdmissionController admissionController;
+
+    private static ActionDispatcher dispatcher;
+
+    /**
+     * Visitor counts answered before, null when kopr.visitor-cache is disabled
+     */
+    private static VisitorCache visitorCache;
+
+    private static OccupancyStream occupancyStream;
+
+    /**
+     * Binary protocol of barrier controllers, null when kopr.gate-protocol is disabled
+     */
+    private static GateServer gateServer;
+
+    public static void registerEndpoints(TicketStore ticketStore, LotStore lotStore) {
+        Config config = ConfigFactory.load();
+        dispatcher = createDispatcher(config, ticketStore, lotStore);
+        long requestTimeout = config.getDuration("kopr.http.request-timeout").toMillis();
+        long transferTimeout = config.getDuration("kopr.http.transfer-timeout").toMillis();
+        int maxBatchItems = config.getInt("kopr.ticket-batch.max-items");
+        Duration maxBatchAge = config.getDuration("kopr.ticket-batch.max-age");
+        Duration maxClockSkew = config.getDuration("kopr.ticket-batch.max-clock-skew");
+        admissionController = new AdmissionController(config.getConfig("kopr.admission"));
+        visitorCache = config.getBoolean("kopr.visitor-cache.enabled") ? new VisitorCache(config.getConfig("kopr.visitor-cache")) : null;
+        Consumer<Action> onBatchCompleted = watchRemovals(ticketStore);
+        startGateServer(config, requestTimeout);
+
+        EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new AsyncJettyFactory());
+        port(config.getInt("kopr.http.port"));
+
+        /**
+         * Subscribe to usage of parking lots in percent, pushed when it changes instead of polling /parkingLot/usage
+         *
+         * request query params: ?id=<firstLot>&id=<secondLot>&id=...
+         * messages: {"firstLot": 98.0, "secondLot": 23.0, ...} *all subscribed lots first, then only the changed ones
+         */
+        occupancyStream = new OccupancyStream(config.getConfig("kopr.occupancy-stream"));
+        webSocket("/parkingLot/usage/stream", occupancyStream);
+        webSocketIdleTimeoutMillis((int) config.getDuration("kopr.occupancy-stream.idle-timeout").toMillis());
 
         /**
          * Add a parking Lot and return the generated object with ID
@@ -21,13 +93,9 @@ public class Server {
          * request body: {"name": str, "capacity": int}
          * response body: {"id": int, "name": str, "capacity": int}
          */
-        post("/parkingLot", (request, response) -> {
-            CountDownLatch pendingTasks = new CountDownLatch(1);
-            master.tell(new AddParkingLotAction(request, response, pendingTasks), ActorRef.noSender());
-
-            pendingTasks.await();
-            return response.body();
-        });
+        post("/parkingLot", (request, response) ->
+                dispatch(dispatcher, RouteClass.REPORT, new AddParkingLotAction(request, response), requestTimeout)
+        );
 
         /**
          * Get in percent how used are parking lots
@@ -35,28 +103,21 @@ public class Server {
          * request query params: ?id=<firstLot>&id=<secondLot>&id=...
          * response body: {"firstLot": "98", "secondLot": "23", ...}
          */
-        get("/parkingLot/usage", (request, response) -> {
-            CountDownLatch pendingTasks = new CountDownLatch(1);
-            master.tell(new GetParkingLotUsagesInPercentAction(request, response, pendingTasks), ActorRef.noSender());
-
-            pendingTasks.await();
-            return response.body();
-        });
+        get("/parkingLot/usage", (request, response) ->
+                dispatch(dispatcher, RouteClass.REPORT, new GetParkingLotUsagesInPercentAction(request, response), requestTimeout)
+        );
 
         /**
          * Get number of visitors during a specified day on a parking lot.
          * This counts every ticket that was added and later removed during the day.
+         * Response has an ETag, request with the same one in If-None-Match is answered with 304 and no body.
          *
          * request query params: ?day=<day> *2001-02-20
          * response body: 32
          */
-        get("/parkingLot/:lotId/visitors", (request, response) -> {
-            CountDownLatch pendingTasks = new CountDownLatch(1);
-            master.tell(new GetParkingLotVisitorsInDayAction(request, response, pendingTasks), ActorRef.noSender());
-
-            pendingTasks.await();
-            return response.body();
-        });
+        get("/parkingLot/:lotId/visitors", (request, response) ->
+                getVisitors(new GetParkingLotVisitorsInDayAction(request, response), requestTimeout)
+        );
 
         /**
          * Create a new ticket belonging to some parking lot
@@ -70,13 +131,62 @@ public class Server {
          *   "leave_time": null
          * }
          */
-        post("/ticket", (request, response) -> {
-            CountDownLatch pendingTasks = new CountDownLatch(1);
-            master.tell(new AddTicketAction(request, response, pendingTasks), ActorRef.noSender());
+        post("/ticket", (request, response) ->
+                dispatch(dispatcher, RouteClass.GATE, new AddTicketAction(request, response), requestTimeout)
+        );
 
-            pendingTasks.await();
-            return response.body();
-        });
+        /**
+         * Write arrivals and departures buffered by a gate, with the times they happened.
+         * Slots are reserved once per parking lot, all items are written in one transaction and every item gets its result.
+         * Departure of a ticket arriving earlier in the batch frees its slot for the arrivals after it.
+         * Arrival without ID gets a new one, missing times are set to now.
+         * Arrival with ID must have the parking lot in it, like the generated IDs.
+         * Items with times older than kopr.ticket-batch.max-age, in the future or with leave before arrival fail with 400.
+         *
+         * request body: [
+         *   {"event": "arrival", "car_licence_plate": str, "parking_lot_id": int, "arrival_time": date, "id": uuid},
+         *   {"event": "departure", "id": uuid, "leave_time": date},
+         *   ...
+         * ]
+         * response body: [
+         *   {"status": 200, "ticket": {...}},
+         *   {"status": 200, "id": uuid},
+         *   {"status": 400, "error": str},
+         *   ...
+         * ] *one result per item, in the same order
+         */
+        post("/ticket/batch", (request, response) ->
+                dispatch(dispatcher, RouteClass.GATE, new BatchTicketsAction(request, response, maxBatchItems, maxBatchAge, maxClockSkew), requestTimeout,
+                        onBatchCompleted)
+        );
+
+        /**
+         * Import tickets, the body is read and saved while it is uploaded.
+         * Tickets without ID get a new one, tickets with leave time are imported as removed.
+         * Body sent with header Content-Encoding: gzip is decompressed.
+         *
+         * request query params: ?format=<ndjson|csv> *ndjson when missing
+         * request body ndjson: {"id": uuid, "car_licence_plate": str, "parking_lot_id": int, "arrival_time": date, "leave_time": date}
+         *   one ticket per line, date as 2019-02-07T10:15:30
+         * request body csv: id,car_licence_plate,parking_lot_id,arrival_time,leave_time
+         *   header line followed by one ticket per line
+         * response body: number of imported tickets
+         */
+        post("/ticket/import", (request, response) ->
+                dispatch(dispatcher, RouteClass.TRANSFER, new ImportTicketsAction(request, response), transferTimeout,
+                        completed -> invalidateVisitors(null))
+        );
+
+        /**
+         * Export all tickets, open and removed ones, in the same formats as import.
+         * Tickets are written while they are read, the body is gzip compressed when the request accepts it.
+         *
+         * request query params: ?format=<ndjson|csv> *ndjson when missing
+         * response body: one ticket per line
+         */
+        get("/ticket/export", (request, response) ->
+                dispatch(dispatcher, RouteClass.TRANSFER, new ExportTicketsAction(request, response), transferTimeout)
+        );
 
         /**
          * Mark ticket as used and record it's leave time
@@ -90,14 +200,303 @@ public class Server {
          *   "leave_time": date
          * }
          */
-        delete("/ticket/:ticketId", (request, response) -> {
-            CountDownLatch pendingTasks = new CountDownLatch(1);
-            master.tell(new RemoveTicketAction(request, response, pendingTasks), ActorRef.noSender());
+        delete("/ticket/:ticketId", (request, response) ->
+                dispatch(dispatcher, RouteClass.GATE, new RemoveTicketAction(request, response), requestTimeout)
+        );
+
+    }
+
+    /**
+     * Execution mode is set by kopr.execution:
+     * <ul>
+     * <li>actors - actions go to the actor lanes of {@link MasterActor}</li>
+     * <li>virtual-threads - every action runs on its own virtual thread calling the stores directly</li>
+     * <li>cluster - parking lots are sharded over the nodes set by kopr.cluster, see {@link ClusterDispatcher}</li>
+     * </ul>
+     */
+    private static ActionDispatcher createDispatcher(Config config, TicketStore ticketStore, LotStore lotStore) {
+        String execution = config.getString("kopr.execution");
+
+        switch (execution) {
+            case "actors":
+                return Lanes.start(ActorSystem.create("default", config), ticketStore, lotStore);
+
+            case "virtual-threads":
+                return new VirtualThreadDispatcher(
+                        ticketStore,
+                        lotStore,
+                        config.getInt("kopr.ticket-transfer.chunk-size"),
+                        config.getInt("kopr.ticket-archiver.chunk-size"),
+                        config.getDuration("kopr.ticket-archiver.interval")
+                );
+
+            case "cluster":
+                if (!(ticketStore instanceof SqliteStore)) {
+                    throw new IllegalArgumentException("Cluster mode needs the sqlite store without the journal");
+                }
+                return ClusterDispatcher.start(config, (SqliteStore) ticketStore);
+
+            default:
+                throw new IllegalArgumentException("Unknown execution mode " + execution);
+        }
+    }
+
+    /**
+     * Listen for barrier controllers on the binary protocol of {@link GateServer}, if kopr.gate-protocol is enabled.
+     * The HTTP API runs without it when it can't be started.
+     */
+    private static void startGateServer(Config config, long requestTimeout) {
+        if (!config.getBoolean("kopr.gate-protocol.enabled")) {
+            return;
+        }
+
+        if (dispatcher instanceof ClusterDispatcher) {
+            throw new IllegalArgumentException("Gate protocol isn't supported in cluster mode");
+        }
+
+        try {
+            gateServer = GateServer.start(config.getConfig("kopr.gate-protocol"), dispatcher, admissionController, requestTimeout);
+
+        } catch (IOException e) {
+            System.err.println("Gate protocol listener not started: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Finish the work of the dispatcher that must not be cut by the shutdown, before the stores are closed
+     */
+    public static void close() {
+        if (occupancyStream != null) {
+            occupancyStream.close();
+        }
+
+        if (gateServer != null) {
+            gateServer.close();
+        }
 
-            pendingTasks.await();
-            return response.body();
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+    }
+
+    /**
+     * Answer visitors of the day from the cache without reaching the dispatcher, or dispatch the action and cache its answer
+     */
+    private static Object getVisitors(GetParkingLotVisitorsInDayAction action, long timeoutMillis) {
+        if (visitorCache == null) {
+            return dispatch(dispatcher, RouteClass.REPORT, action, timeoutMillis);
+        }
+
+        VisitorCache.Entry cached = visitorCache.get(action.getParkingLotId(), action.getDay());
+        if (cached != null) {
+            action.getResponse().header("ETag", cached.getEtag());
+            if (cached.matches(action.getRequest().headers("If-None-Match"))) {
+                action.getResponse().status(HttpStatus.NOT_MODIFIED_304);
+                return "";
+            }
+
+            return cached.getBody();
+        }
+
+        long generation = visitorCache.getGeneration();
+        return dispatch(dispatcher, RouteClass.REPORT, action, timeoutMillis, completed -> {
+            if (completed.getResponse().status() != HttpStatus.OK_200) {
+                return;
+            }
+
+            VisitorCache.Entry entry = visitorCache.put(action.getParkingLotId(), action.getDay(), completed.getResponse().body(), generation);
+            completed.getResponse().header("ETag", entry.getEtag());
+            if (entry.matches(completed.getRequest().headers("If-None-Match"))) {
+                completed.getResponse().status(HttpStatus.NOT_MODIFIED_304);
+                completed.getResponse().body(null);
+            }
+        });
+    }
+
+    /**
+     * Removals written to the journal reach SQLite only after the batch is completed,
+     * so their visitor counts are invalidated once the journal applies them, a count read before that isn't kept.
+     * Without the journal the removals are in SQLite when the batch completes.
+     *
+     * @return Invalidation after a batch is completed
+     */
+    private static Consumer<Action> watchRemovals(TicketStore ticketStore) {
+        if (!(ticketStore instanceof JournaledTicketStore)) {
+            return completed -> invalidateVisitors(((BatchTicketsAction) completed).getRemovalParkingLots());
+        }
+
+        ((JournaledTicketStore) ticketStore).setRemovalListener(removed -> {
+            if (visitorCache == null) {
+                return;
+            }
+
+            Set<Integer> parkingLotIds = new HashSet<>();
+            for (ParkingTicket ticket : removed) {
+                if (visitorCache.isClosed(ticket.getLeaveTime().toLocalDate())) {
+                    parkingLotIds.add(ticket.getParkingLotId());
+                }
+            }
+            invalidateVisitors(parkingLotIds);
+        });
+
+        return completed -> {
+        };
+    }
+
+    /**
+     * Tickets were written with past times, visitor counts of closed days may have changed
+     *
+     * @param parkingLotIds Parking lots of the tickets, null if they may be any
+     */
+    private static void invalidateVisitors(Collection<Integer> parkingLotIds) {
+        if (visitorCache == null) {
+            return;
+        }
+
+        if (parkingLotIds == null) {
+            visitorCache.invalidateAll();
+
+        } else if (!parkingLotIds.isEmpty()) {
+            visitorCache.invalidate(parkingLotIds);
+        }
+    }
+
+    private static Object dispatch(ActionDispatcher dispatcher, RouteClass routeClass, Action action, long timeoutMillis) {
+        return dispatch(dispatcher, routeClass, action, timeoutMillis, completed -> {
+        });
+    }
+
+    /**
+     * Hand the action to the dispatcher and release the request thread.
+     * The response is sent from the thread that completes the action, or with an error once the timeout passes.
+     * When the route class is at its limit, the request is rejected right away with 429.
+     *
+     * @param timeoutMillis How long to wait for the completion, 0 waits forever unless the client sets its own timeout
+     * @param onCompleted Called with the completed action before its response is sent
+     * @return Value for Spark, sent only when the request is rejected
+     */
+    private static Object dispatch(ActionDispatcher dispatcher, RouteClass routeClass, Action action, long timeoutMillis,
+                                   Consumer<Action> onCompleted) {
+        if (!admissionController.tryAdmit(routeClass)) {
+            action.getResponse().status(HttpStatus.TOO_MANY_REQUESTS_429);
+            action.getResponse().header("Retry-After", admissionController.getRetryAfter());
+            return "Too many requests, try again later";
+        }
+
+        long timeout = getTimeout(action, routeClass, timeoutMillis);
+        action.setTimeout(TimeUnit.MILLISECONDS.toNanos(timeout));
+
+        AsyncContext asyncContext;
+        try {
+            asyncContext = action.getRequest().raw().startAsync();
+            asyncContext.setTimeout(timeout);
+            asyncContext.addListener(new TimeoutListener(action));
+
+        } catch (RuntimeException e) {
+            admissionController.release(routeClass);
+            action.getResponse().status(HttpStatus.INTERNAL_SERVER_ERROR_500);
+            return "Failed processing request\n" + e.getMessage();
+        }
+
+        action.getCompletion().thenRun(() -> {
+            admissionController.release(routeClass);
+            onCompleted.accept(action);
+            sendResponse(action, asyncContext);
         });
 
+        try {
+            dispatcher.dispatch(action);
+
+        } catch (RuntimeException e) {
+            // like a dispatcher rejecting actions while shutting down, the completion releases the slot and sends the error
+            action.completeWithError("Failed processing request\n" + e.getMessage(), HttpStatus.Code.INTERNAL_SERVER_ERROR);
+        }
+
+        return "";
+    }
+
+    /**
+     * Transfers keep their route timeout, a request answered while it still streams would leave the transfer
+     * reading and writing a response that belongs to another request already.
+     *
+     * @return The shorter of the route timeout and the timeout sent by the client, 0 if neither is set
+     */
+    private static long getTimeout(Action action, RouteClass routeClass, long timeoutMillis) {
+        String header = action.getRequest().headers(TIMEOUT_HEADER);
+        if (header == null || routeClass == RouteClass.TRANSFER) {
+            return timeoutMillis;
+        }
+
+        try {
+            long clientTimeout = Math.max(Long.parseLong(header.trim()), 1);
+            return timeoutMillis == 0 ? clientTimeout : Math.min(timeoutMillis, clientTimeout);
+
+        } catch (NumberFormatException e) {
+            return timeoutMillis;
+        }
+    }
+
+    /**
+     * Write status and body of the completed action and finish the request.
+     * Actions streaming their body, like the export, have already committed the response.
+     */
+    private static void sendResponse(Action action, AsyncContext asyncContext) {
+        HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+        try {
+            if (!response.isCommitted()) {
+                if (response.getContentType() == null) {
+                    response.setContentType(DEFAULT_CONTENT_TYPE);
+                }
+
+                String body = action.getResponse().body();
+                if (body != null) {
+                    response.getOutputStream().write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+        } catch (IOException e) {
+            // client closed the connection, there is no one to send the response to
+            System.err.println(e.getMessage());
+
+        } finally {
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * Completes the action with an error if the actors don't complete it in time.
+     * Completed action is expired, so actors drop it when it reaches them.
+     */
+    private static class TimeoutListener implements AsyncListener {
+
+        private final Action action;
+
+        private TimeoutListener(Action action) {
+            this.action = action;
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            if (!action.completeWithError("Request timed out", HttpStatus.Code.SERVICE_UNAVAILABLE)) {
+                // claimed by a writer, it answers once the write is committed and the response has to wait for that
+                action.getCompletion().join();
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            // the client is gone, completing the action only keeps the actors from processing it
+            action.complete();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
     }
 
 }
@@ -0,0 +1,171 @@
+package kopr.nikdy.viac.endpoints;
+
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Visitor counts answered by the lanes, kept by the server so repeated requests don't reach the actors.
+ * A day is closed once it is over, its count changes only by tickets imported or sent in a batch with their own times,
+ * which invalidate the entries. Counts of closed days are kept until evicted, the others only for a short time.
+ * The least recently used entry is evicted when the cache is full.
+ */
+public class VisitorCache {
+
+    private final int maxEntries;
+
+    /**
+     * How long counts of days that aren't closed yet are kept, in nanoseconds
+     */
+    private final long openDayTtl;
+
+    /**
+     * How long after midnight the day is still open, so removals committed just after midnight are counted in it
+     */
+    private final Duration closingDelay;
+
+    private final Map<Long, Entry> entries;
+
+    /**
+     * Changed by every invalidation, a count read before it is not cached
+     */
+    private long generation;
+
+    /**
+     * @param config Configuration kopr.visitor-cache
+     */
+    public VisitorCache(Config config) {
+        this.maxEntries = config.getInt("max-entries");
+        this.openDayTtl = config.getDuration("open-day-ttl").toNanos();
+        this.closingDelay = config.getDuration("closing-delay");
+        this.entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return Cached count of the day, null if it isn't cached or expired
+     */
+    public synchronized Entry get(int parkingLotId, LocalDate day) {
+        Long key = getKey(parkingLotId, day);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expires && System.nanoTime() - entry.expiresAt >= 0) {
+            entries.remove(key);
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Cache the response body of the day, unless some tickets were written with past times since it was read
+     *
+     * @param generation {@link #getGeneration()} before the count was read
+     * @return Entry with the ETag of the body
+     */
+    public synchronized Entry put(int parkingLotId, LocalDate day, String body, long generation) {
+        String etag = "\"" + parkingLotId + "-" + day + "-" + body + "\"";
+        Entry entry = new Entry(body, etag, !isClosed(day), System.nanoTime() + openDayTtl);
+
+        if (generation == this.generation) {
+            entries.put(getKey(parkingLotId, day), entry);
+        }
+
+        return entry;
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Drop counts of the parking lots, their tickets were written with past times
+     */
+    public synchronized void invalidate(Collection<Integer> parkingLotIds) {
+        generation++;
+        entries.keySet().removeIf(key -> parkingLotIds.contains((int) (key >> 32)));
+    }
+
+    /**
+     * Drop all counts, tickets of any parking lot and day may have been written
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * @return Whether the day is over, its count is cached until invalidated
+     */
+    boolean isClosed(LocalDate day) {
+        return LocalDateTime.now().minus(closingDelay).toLocalDate().isAfter(day);
+    }
+
+    private static Long getKey(int parkingLotId, LocalDate day) {
+        return (long) parkingLotId << 32 | day.toEpochDay() & 0xFFFFFFFFL;
+    }
+
+    public static class Entry {
+
+        private final String body;
+
+        /**
+         * Strong ETag, the same body of the same parking lot and day always gets the same one
+         */
+        private final String etag;
+
+        /**
+         * Counts of closed days never expire
+         */
+        private final boolean expires;
+
+        /**
+         * When the entry expires, in nanoseconds of {@link System#nanoTime()}
+         */
+        private final long expiresAt;
+
+        private Entry(String body, String etag, boolean expires, long expiresAt) {
+            this.body = body;
+            this.etag = etag;
+            this.expires = expires;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * @param ifNoneMatch Header If-None-Match of the request, may be null
+         * @return true if the client already has this body
+         */
+        public boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+
+            for (String tag : ifNoneMatch.split(",")) {
+                String trimmed = tag.trim();
+                if (trimmed.equals("*") || trimmed.equals(etag) || trimmed.equals("W/" + etag)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+    }
+
+}
@@ -0,0 +1,105 @@
+package kopr.nikdy.viac.persistance;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection that keeps every statement it prepared, so SQLite parses and plans each query only once per connection.
+ * Statements live as long as the connection and must not be closed by the caller.
+ * Like the connection itself, it must be used by one thread at a time.
+ */
+public class CachedConnection {
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder prepareNanos = new LongAdder();
+
+    private final Connection connection;
+
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    public CachedConnection(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Get prepared statement for the query, preparing it only if this connection did not do so before.
+     * Parameters of previous use are cleared.
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return prepareStatement(sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    /**
+     * @param autoGeneratedKeys Whether generated keys can be read from the statement, see {@link Statement}
+     */
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+
+        if (statement == null) {
+            long start = System.nanoTime();
+            statement = connection.prepareStatement(sql, autoGeneratedKeys);
+            prepareNanos.add(System.nanoTime() - start);
+            misses.increment();
+
+            statements.put(sql, statement);
+
+        } else {
+            statement.clearParameters();
+            hits.increment();
+        }
+
+        return statement;
+    }
+
+    public Statement createStatement() throws SQLException {
+        return connection.createStatement();
+    }
+
+    public boolean getAutoCommit() throws SQLException {
+        return connection.getAutoCommit();
+    }
+
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        connection.setAutoCommit(autoCommit);
+    }
+
+    public void commit() throws SQLException {
+        connection.commit();
+    }
+
+    public void rollback() throws SQLException {
+        connection.rollback();
+    }
+
+    /**
+     * Close all cached statements and the connection
+     */
+    public void close() throws SQLException {
+        for (PreparedStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+
+        connection.close();
+    }
+
+    /**
+     * @return Hit rate and time spent preparing statements of all connections since startup
+     */
+    public static String describeStatistics() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        double hitRate = total == 0 ? 0 : 100.0 * hitCount / total;
+
+        return String.format("Statement cache: %d of %d statements reused (%.2f%% hit rate), %d us spent preparing",
+                hitCount, total, hitRate, TimeUnit.NANOSECONDS.toMicros(prepareNanos.sum()));
+    }
+
+}
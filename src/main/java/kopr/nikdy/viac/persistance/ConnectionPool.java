@@ -0,0 +1,57 @@
+package kopr.nikdy.viac.persistance;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed set of read only connections shared by threads querying the database.
+ * Every connection is used by at most one thread at a time.
+ */
+public class ConnectionPool {
+
+    private final List<CachedConnection> connections = new ArrayList<>();
+
+    private final BlockingQueue<CachedConnection> idleConnections;
+
+    /**
+     * @param connections Opened connections the pool hands out
+     */
+    public ConnectionPool(List<CachedConnection> connections) {
+        this.connections.addAll(connections);
+        this.idleConnections = new ArrayBlockingQueue<>(connections.size(), false, connections);
+    }
+
+    /**
+     * Take a connection from the pool, waiting until some is returned if all are in use.
+     * Every acquired connection has to be given back by {@link #release(CachedConnection)}.
+     */
+    public CachedConnection acquire() throws SQLException {
+        try {
+            return idleConnections.take();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+    }
+
+    /**
+     * Return connection to the pool, so other threads can use it
+     */
+    public void release(CachedConnection connection) {
+        idleConnections.offer(connection);
+    }
+
+    /**
+     * Close all connections of the pool
+     */
+    public void close() throws SQLException {
+        for (CachedConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+}
@@ -9,19 +9,20 @@ public class Convert {
 
     public static final int BITS_IN_BYTE = 8;
 
+    /**
+     * Most significant byte first, so comparing the bytes orders IDs like comparing their numbers
+     */
     public static byte[] toBytes(UUID uuid) throws SQLException {
         byte[] uuidBytes = new byte[16];
 
-        long leastSignificantBits = uuid.getLeastSignificantBits();
-        for (int i = 0; i < Long.BYTES; i++) {
-            uuidBytes[i] = (byte) leastSignificantBits;
-            leastSignificantBits >>= BITS_IN_BYTE;
-        }
-
         long mostSignificantBits = uuid.getMostSignificantBits();
-        for (int i = Long.BYTES; i < Long.BYTES * 2; i++) {
+        long leastSignificantBits = uuid.getLeastSignificantBits();
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
             uuidBytes[i] = (byte) mostSignificantBits;
-            mostSignificantBits >>= BITS_IN_BYTE;
+            uuidBytes[Long.BYTES + i] = (byte) leastSignificantBits;
+
+            mostSignificantBits >>>= BITS_IN_BYTE;
+            leastSignificantBits >>>= BITS_IN_BYTE;
         }
 
         return uuidBytes;
@@ -29,15 +30,10 @@ public class Convert {
 
     public static UUID fromBytes(byte[] bytes) {
         long mostSignificantBits = 0;
-        for (int i = 2 * Long.BYTES - 1; i >= Long.BYTES; i--) {
-            mostSignificantBits <<= BITS_IN_BYTE;
-            mostSignificantBits |= bytes[i];
-        }
-
         long leastSignificantBits = 0;
-        for (int i = Long.BYTES - 1; i >= 0; i--) {
-            leastSignificantBits <<= BITS_IN_BYTE;
-            leastSignificantBits |= bytes[i];
+        for (int i = 0; i < Long.BYTES; i++) {
+            mostSignificantBits = mostSignificantBits << BITS_IN_BYTE | (bytes[i] & 0xFF);
+            leastSignificantBits = leastSignificantBits << BITS_IN_BYTE | (bytes[Long.BYTES + i] & 0xFF);
         }
 
         return new UUID(mostSignificantBits, leastSignificantBits);
@@ -48,7 +44,7 @@ public class Convert {
     }
 
     public static LocalDateTime toLocalDateTime(Timestamp timestamp) {
-        return LocalDateTime.from(timestamp.toInstant());
+        return timestamp.toLocalDateTime();
     }
 
 }
@@ -0,0 +1,166 @@
+package kopr.nikdy.viac.persistance;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Rollup of visitors per parking lot and day, kept in parking_lot_daily_stats table.
+ * Visitor is a ticket that arrived and left during the same day. The rollup is updated together with the ticket
+ * removal, so reading visitors of a day is a single primary key lookup instead of scanning the tickets.
+ */
+public class DailyStats {
+
+    private static final String ADD_VISITOR_STATEMENT =
+            "INSERT INTO parking_lot_daily_stats(parking_lot, day, visitors) VALUES (?, ?, 1) " +
+                    "ON CONFLICT(parking_lot, day) DO UPDATE SET visitors = visitors + 1;";
+
+    static final String VISITORS_QUERY =
+            "SELECT visitors FROM parking_lot_daily_stats WHERE parking_lot = ? AND day = ?;";
+
+    /**
+     * Count the removed ticket in the rollup if it is a visitor of a single day
+     *
+     * @param connection Writer connection, in the same transaction as the ticket removal
+     */
+    public static void addVisitor(CachedConnection connection, int parkingLotId, LocalDateTime arrivalTime, LocalDateTime leaveTime)
+            throws SQLException {
+        LocalDate day = arrivalTime.toLocalDate();
+        if (!day.equals(leaveTime.toLocalDate())) {
+            return;
+        }
+
+        PreparedStatement statement = connection.prepareStatement(ADD_VISITOR_STATEMENT);
+        statement.setInt(1, parkingLotId);
+        statement.setLong(2, day.toEpochDay());
+        statement.executeUpdate();
+    }
+
+    /**
+     * @return Number of tickets that arrived and left the parking lot during the day
+     */
+    public static int getVisitors(CachedConnection connection, int parkingLotId, LocalDate day) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(VISITORS_QUERY);
+        statement.setInt(1, parkingLotId);
+        statement.setLong(2, day.toEpochDay());
+
+        try (ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getInt("visitors") : 0;
+        }
+    }
+
+    /**
+     * Throw away the rollup and compute it again from the tickets
+     *
+     * @param connection   Writer connection, should be in a transaction
+     * @param ticketTables Tables holding the tickets, all of them are counted
+     */
+    public static void rebuild(CachedConnection connection, String... ticketTables) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DELETE FROM parking_lot_daily_stats;");
+        }
+
+        PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO parking_lot_daily_stats(parking_lot, day, visitors) VALUES (?, ?, ?);"
+        );
+        for (Map.Entry<Integer, Map<LocalDate, Integer>> parkingLot : countTicketVisitors(connection, ticketTables).entrySet()) {
+            for (Map.Entry<LocalDate, Integer> day : parkingLot.getValue().entrySet()) {
+                insert.setInt(1, parkingLot.getKey());
+                insert.setLong(2, day.getKey().toEpochDay());
+                insert.setInt(3, day.getValue());
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Compare the rollup with visitors counted from the tickets
+     *
+     * @param ticketTables Tables holding the tickets, all of them are counted
+     * @return Description of every parking lot day where the counts differ, empty if the rollup is consistent
+     */
+    public static List<String> findMismatches(CachedConnection connection, String... ticketTables) throws SQLException {
+        Map<Integer, Map<LocalDate, Integer>> expected = countTicketVisitors(connection, ticketTables);
+        Map<Integer, Map<LocalDate, Integer>> actual = readRollup(connection);
+
+        Set<Integer> parkingLots = new TreeSet<>(expected.keySet());
+        parkingLots.addAll(actual.keySet());
+
+        List<String> mismatches = new ArrayList<>();
+        for (Integer parkingLot : parkingLots) {
+            Map<LocalDate, Integer> expectedDays = expected.getOrDefault(parkingLot, new HashMap<>());
+            Map<LocalDate, Integer> actualDays = actual.getOrDefault(parkingLot, new HashMap<>());
+
+            Set<LocalDate> days = new TreeSet<>(expectedDays.keySet());
+            days.addAll(actualDays.keySet());
+
+            for (LocalDate day : days) {
+                int expectedVisitors = expectedDays.getOrDefault(day, 0);
+                int actualVisitors = actualDays.getOrDefault(day, 0);
+
+                if (expectedVisitors != actualVisitors) {
+                    mismatches.add("Parking lot " + parkingLot + " on " + day + ": " +
+                            actualVisitors + " in rollup, " + expectedVisitors + " in tickets");
+                }
+            }
+        }
+
+        return mismatches;
+    }
+
+    /**
+     * @return Parking lot Id -> day -> visitors, counted from all removed tickets
+     */
+    private static Map<Integer, Map<LocalDate, Integer>> countTicketVisitors(CachedConnection connection, String... ticketTables)
+            throws SQLException {
+        Map<Integer, Map<LocalDate, Integer>> result = new HashMap<>();
+
+        for (String table : ticketTables) {
+            PreparedStatement statement = connection.prepareStatement(
+                    "SELECT parking_lot, arrival_time, leave_time FROM " + table + " WHERE leave_time IS NOT NULL;"
+            );
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    LocalDate arrivalDay = Convert.toLocalDateTime(resultSet.getTimestamp("arrival_time")).toLocalDate();
+                    LocalDate leaveDay = Convert.toLocalDateTime(resultSet.getTimestamp("leave_time")).toLocalDate();
+
+                    if (arrivalDay.equals(leaveDay)) {
+                        result.computeIfAbsent(resultSet.getInt("parking_lot"), parkingLot -> new HashMap<>())
+                                .merge(arrivalDay, 1, Integer::sum);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return Parking lot Id -> day -> visitors, as stored in the rollup
+     */
+    private static Map<Integer, Map<LocalDate, Integer>> readRollup(CachedConnection connection) throws SQLException {
+        Map<Integer, Map<LocalDate, Integer>> result = new HashMap<>();
+
+        PreparedStatement statement = connection.prepareStatement(
+                "SELECT parking_lot, day, visitors FROM parking_lot_daily_stats;"
+        );
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                result.computeIfAbsent(resultSet.getInt("parking_lot"), parkingLot -> new HashMap<>())
+                        .put(LocalDate.ofEpochDay(resultSet.getLong("day")), resultSet.getInt("visitors"));
+            }
+        }
+
+        return result;
+    }
+
+}
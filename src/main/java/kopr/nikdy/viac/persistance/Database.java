@@ -2,69 +2,225 @@ package kopr.nikdy.viac.persistance;
 
 import kopr.nikdy.viac.entities.ParkingLot;
 import kopr.nikdy.viac.entities.ParkingTicket;
+import org.sqlite.SQLiteConfig;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.*;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 
 public class Database {
 
     private static final String DATABASE_NAME = "parking_system";
 
-    private static Connection connection;
+    private static final String DATABASE_FILE = DATABASE_NAME + ".db";
+
+    /**
+     * Number of read only connections, so this many queries can run in parallel with the writes
+     */
+    private static final int READ_CONNECTIONS = 4;
+
+    /**
+     * How long a connection waits for a lock held by other connection before failing
+     */
+    private static final int BUSY_TIMEOUT_MILLIS = 5000;
+
+    private static final int CACHE_SIZE_KIB = 16 * 1024;
+
+    private static final long MMAP_SIZE_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Tickets are in the ticket table until the archiver moves closed ones to history
+     */
+    private static final String[] TICKET_TABLES = {"parking_ticket", "parking_ticket_history"};
+
+    /**
+     * Most tickets inserted by one statement of import, their 5 parameters each stay below the SQLite limit of 999
+     */
+    private static final int TICKETS_PER_INSERT = 100;
+
+    /**
+     * Most tickets read by one query of export, the reader connection is released between the chunks
+     */
+    private static final int EXPORT_CHUNK_SIZE = 1000;
+
+    /**
+     * Next chunk of tickets of both tables merged in ID order, after the last ID of the previous chunk.
+     * A ticket moved to history keeps its ID, so it is read once even when the archiver moves it between chunks.
+     */
+    private static final String EXPORT_QUERY =
+            "SELECT id, car_licence_plate, parking_lot, arrival_time, leave_time FROM parking_ticket WHERE id > ? " +
+                    "UNION ALL " +
+                    "SELECT id, car_licence_plate, parking_lot, arrival_time, leave_time FROM parking_ticket_history WHERE id > ? " +
+                    "ORDER BY id LIMIT ?;";
+
+    /**
+     * Open and archived tickets of one parking lot
+     */
+    private static final String PARKING_LOT_TICKETS_QUERY =
+            "SELECT id, car_licence_plate, parking_lot, arrival_time, leave_time FROM parking_ticket WHERE parking_lot = ? " +
+                    "UNION ALL " +
+                    "SELECT id, car_licence_plate, parking_lot, arrival_time, leave_time FROM parking_ticket_history WHERE parking_lot = ?;";
+
+    private static final String TICKET_EXISTS_QUERY =
+            "SELECT 1 FROM parking_ticket WHERE id = ? UNION ALL SELECT 1 FROM parking_ticket_history WHERE id = ?;";
+
+    private static final String OPEN_TICKET_QUERY =
+            "SELECT parking_lot, arrival_time FROM parking_ticket WHERE id = ? AND leave_time IS NULL;";
+
+    private static final String CLOSED_TICKETS_QUERY =
+            "SELECT id FROM parking_ticket WHERE leave_time IS NOT NULL LIMIT ?;";
+
+    private static final String ARCHIVE_STATEMENT =
+            "INSERT INTO parking_ticket_history(id, car_licence_plate, parking_lot, arrival_time, leave_time) " +
+                    "SELECT id, car_licence_plate, parking_lot, arrival_time, leave_time " +
+                    "FROM parking_ticket " +
+                    "WHERE id = ?;";
+
+    /**
+     * Usage query is prepared only for these numbers of IDs, requested IDs are padded up to the closest one.
+     * That way there is just a handful of statements to cache instead of one for every number of requested IDs.
+     */
+    private static final int[] USAGE_QUERY_SIZES = {1, 4, 16, 64, 256};
+
+    private static final String REMAINING_CAPACITY_QUERY =
+            "SELECT lot.capacity - (" +
+                    "SELECT COUNT(*) FROM parking_ticket AS ticket " +
+                    "WHERE ticket.parking_lot = lot.id AND ticket.leave_time IS NULL" +
+                    ") AS remaining " +
+                    "FROM parking_lot AS lot " +
+                    "WHERE lot.id = ?;";
+
+    private static final String[] USAGE_QUERIES = Arrays.stream(USAGE_QUERY_SIZES)
+            .mapToObj(Database::buildUsagesInPercentQuery)
+            .toArray(String[]::new);
+
+    /**
+     * Query plan step reading all rows of a table growing with the tickets, older SQLite versions print "SCAN TABLE name".
+     * Scan of a covering index still reads an entry for every row, only SEARCH steps are accepted.
+     */
+    private static final Pattern FULL_TICKET_SCAN =
+            Pattern.compile("^SCAN (TABLE )?(parking_ticket|parking_ticket_history|parking_lot_daily_stats)\\b");
+
+    /**
+     * The only connection writing to the database, guarded by {@link #WRITER_LOCK}
+     */
+    private static CachedConnection connection;
+
+    /**
+     * Reentrant, so the work of a transaction calls the other methods. Unlike a monitor, a virtual thread waiting
+     * for it or writing while holding it unmounts from its carrier thread instead of pinning it.
+     */
+    private static final ReentrantLock WRITER_LOCK = new ReentrantLock();
+
+    /**
+     * Read only connections used by queries, they do not wait for the writer thanks to WAL journal
+     */
+    private static ConnectionPool readConnections;
 
     /**
      * Connects to the database and initializes all needed schemas, tables, indexes
      *
+     * @param dataDirectory Directory of the database file, created if it doesn't exist
      * @throws ClassNotFoundException Driver not found
      * @throws SQLException           Error during table creation
+     * @throws IOException            Directory can't be created
      */
-    public static void initialize() throws ClassNotFoundException, SQLException {
+    public static void initialize(Path dataDirectory) throws ClassNotFoundException, SQLException, IOException {
         // load the sqlite-JDBC driver using the current class loader
         Class.forName("org.sqlite.JDBC");
 
-        connection = DriverManager.getConnection("jdbc:sqlite:" + DATABASE_NAME + ".db");
-        initializeTables();
+        Files.createDirectories(dataDirectory);
+        String databaseUrl = "jdbc:sqlite:" + dataDirectory.resolve(DATABASE_FILE);
+
+        SQLiteConfig writeConfig = createConfig();
+        writeConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        connection = new CachedConnection(writeConfig.createConnection(databaseUrl));
+        Migrations.migrate(connection);
+
+        SQLiteConfig readConfig = createConfig();
+        readConfig.setReadOnly(true);
+
+        List<CachedConnection> readers = new ArrayList<>();
+        for (int i = 0; i < READ_CONNECTIONS; i++) {
+            readers.add(new CachedConnection(readConfig.createConnection(databaseUrl)));
+        }
+        readConnections = new ConnectionPool(readers);
+    }
+
+    /**
+     * Connection settings shared by the writer and the readers.
+     * With WAL journal NORMAL synchronous mode is still safe against corruption, it only syncs on checkpoints.
+     */
+    private static SQLiteConfig createConfig() {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+        config.setCacheSize(-CACHE_SIZE_KIB);
+        config.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, String.valueOf(MMAP_SIZE_BYTES));
+        config.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+
+        return config;
     }
 
     /**
-     * Create parking_lot and parking_ticket tables if they do not exist already
+     * Check that none of the frequent queries reads a whole ticket table or the visitors rollup,
+     * run by the build against a new database, so a migration or query change dropping an index use fails it.
+     * Checked are usage, remaining capacity and visitors queries and the lookups of the open and archived tickets.
+     *
+     * @return Query plan steps scanning such table with their queries, empty if there is none
      */
-    private static void initializeTables() throws SQLException {
-        Statement statement = connection.createStatement();
+    public static List<String> checkQueryPlans() throws SQLException {
+        checkDatabaseInitialized();
+
+        List<String> queries = new ArrayList<>(Arrays.asList(USAGE_QUERIES));
+        queries.add(REMAINING_CAPACITY_QUERY);
+        queries.add(DailyStats.VISITORS_QUERY);
+        queries.add(OPEN_TICKET_QUERY);
+        queries.add(TICKET_EXISTS_QUERY);
+        queries.add(PARKING_LOT_TICKETS_QUERY);
 
-        statement.executeUpdate(
-                "CREATE TABLE IF NOT EXISTS parking_lot(" +
-                        "id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                        "capacity INTEGER NOT NULL CHECK ( capacity >= 0 )," +
-                        "name VARCHAR(256) UNIQUE NOT NULL" +
-                        ");"
-        );
-        statement.executeUpdate(
-                "CREATE TABLE IF NOT EXISTS parking_ticket(" +
-                        "id BLOB(16) PRIMARY KEY," +
-                        "car_licence_plate VARCHAR(16) NOT NULL," +
-                        "parking_lot INTEGER REFERENCES parking_lot(id) NOT NULL," +
-                        "arrival_time DATETIME DEFAULT CURRENT_TIMESTAMP," +
-                        "leave_time DATETIME" +
-                        ");"
-        );
-        statement.executeUpdate(
-                "CREATE INDEX IF NOT EXISTS time_index ON parking_ticket(arrival_time, leave_time);"
-        );
+        List<String> regressions = new ArrayList<>();
+        for (String query : queries) {
+            PreparedStatement statement = connection.prepareStatement("EXPLAIN QUERY PLAN " + query);
+            for (int i = 1; i <= statement.getParameterMetaData().getParameterCount(); i++) {
+                statement.setInt(i, 0);
+            }
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    String detail = resultSet.getString("detail");
+
+                    if (FULL_TICKET_SCAN.matcher(detail).find()) {
+                        regressions.add("'" + detail + "' in query: " + query);
+                    }
+                }
+            }
+        }
+
+        return regressions;
     }
 
     /**
-     * Closes database connection if possible
+     * Closes database connections if possible
      */
     public static void close() {
         try {
+            if (readConnections != null) {
+                readConnections.close();
+            }
+
             if (connection != null) {
                 connection.close();
             }
@@ -75,26 +231,157 @@ public class Database {
         }
     }
 
+    /**
+     * Runs all statements of the work in a single transaction, so they are committed with one write to the disk.
+     * If the work fails, everything it wrote is rolled back.
+     * Nested call runs in a savepoint of the already running transaction, so when it fails only its own writes are rolled back
+     * and the outer work, like a group commit skipping the failed write, commits the rest.
+     *
+     * @param work Database calls to run in the transaction
+     */
+    public static void inTransaction(TransactionWork work) throws SQLException, IOException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            if (!connection.getAutoCommit()) {
+                inSavepoint(work);
+                return;
+            }
+
+            connection.setAutoCommit(false);
+            try {
+                work.execute();
+                connection.commit();
+
+            } catch (SQLException | IOException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+
+            } finally {
+                connection.setAutoCommit(true);
+            }
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Savepoints of the same name nest, each statement works with the innermost one
+     */
+    private static void inSavepoint(TransactionWork work) throws SQLException, IOException {
+        connection.prepareStatement("SAVEPOINT nested_work;").execute();
+        try {
+            work.execute();
+
+        } catch (SQLException | IOException | RuntimeException e) {
+            connection.prepareStatement("ROLLBACK TO nested_work;").execute();
+            throw e;
+
+        } finally {
+            connection.prepareStatement("RELEASE nested_work;").execute();
+        }
+    }
+
     /**
      * Saves parking lot to a database and sets it's ID
      *
      * @param parkingLot Parking lot to save to a database
      */
-    public synchronized static void addParkingLot(ParkingLot parkingLot) throws SQLException {
-        checkDatabaseInitialized();
+    public static void addParkingLot(ParkingLot parkingLot) throws SQLException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
 
-        try (
-                PreparedStatement statement = connection.prepareStatement(
-                        "INSERT INTO parking_lot(name, capacity) VALUES (?, ?);",
-                        Statement.RETURN_GENERATED_KEYS
-                )
-        ) {
+            PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO parking_lot(name, capacity) VALUES (?, ?);",
+                    Statement.RETURN_GENERATED_KEYS
+            );
             statement.setString(1, parkingLot.getName());
             statement.setInt(2, parkingLot.getCapacity());
             checkSomeRowsAffected(statement.executeUpdate());
 
             int generatedId = getGeneratedId(statement);
             parkingLot.setId(generatedId);
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Saves parking lot with the ID it already has, like a parking lot moved from another node of the cluster
+     *
+     * @param parkingLot Parking lot with ID to save to a database
+     */
+    public static void importParkingLot(ParkingLot parkingLot) throws SQLException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            PreparedStatement statement = connection.prepareStatement("INSERT INTO parking_lot(id, name, capacity) VALUES (?, ?, ?);");
+            statement.setInt(1, parkingLot.getId());
+            statement.setString(2, parkingLot.getName());
+            statement.setInt(3, parkingLot.getCapacity());
+            checkSomeRowsAffected(statement.executeUpdate());
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * @return Parking lot with the ID, null if it isn't in the database
+     */
+    public static ParkingLot findParkingLot(int id) throws SQLException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            PreparedStatement statement = connection.prepareStatement("SELECT id, name, capacity FROM parking_lot WHERE id = ?;");
+            statement.setInt(1, id);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+
+                ParkingLot parkingLot = new ParkingLot();
+                parkingLot.setId(resultSet.getInt("id"));
+                parkingLot.setName(resultSet.getString("name"));
+                parkingLot.setCapacity(resultSet.getInt("capacity"));
+
+                return parkingLot;
+            }
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Delete parking lot with all its tickets and statistics in one transaction, once another node took them over
+     */
+    public static void deleteParkingLot(int id) throws SQLException, IOException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            inTransaction(() -> {
+                for (String table : new String[]{"parking_ticket", "parking_ticket_history", "parking_lot_daily_stats"}) {
+                    PreparedStatement delete = connection.prepareStatement("DELETE FROM " + table + " WHERE parking_lot = ?;");
+                    delete.setInt(1, id);
+                    delete.executeUpdate();
+                }
+
+                PreparedStatement delete = connection.prepareStatement("DELETE FROM parking_lot WHERE id = ?;");
+                delete.setInt(1, id);
+                checkSomeRowsAffected(delete.executeUpdate());
+            });
+
+        } finally {
+            WRITER_LOCK.unlock();
         }
     }
 
@@ -103,67 +390,594 @@ public class Database {
      *
      * @param ticket Ticket to save to a database
      */
-    public synchronized static void addTicket(ParkingTicket ticket) throws SQLException, IOException {
-        checkDatabaseInitialized();
+    public static void addTicket(ParkingTicket ticket) throws SQLException, IOException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
 
-        try (
-                PreparedStatement statement = connection.prepareStatement(
-                        "INSERT INTO parking_ticket(id, car_licence_plate, parking_lot, arrival_time) " +
-                                "VALUES (?, ?, ?, ?);",
-                        Statement.RETURN_GENERATED_KEYS
-                )
-        ) {
+            PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO parking_ticket(id, car_licence_plate, parking_lot, arrival_time) " +
+                            "VALUES (?, ?, ?, ?);"
+            );
             statement.setBytes(1, Convert.toBytes(ticket.getId()));
             statement.setString(2, ticket.getCarLicencePlate());
             statement.setInt(3, ticket.getParkingLotId());
             statement.setTimestamp(4, Convert.toTimestamp(ticket.getArrivalTime()));
 
             checkSomeRowsAffected(statement.executeUpdate());
+
+        } finally {
+            WRITER_LOCK.unlock();
         }
     }
 
+    /**
+     * Saves imported tickets in one transaction. Closed tickets go straight to the history and are counted in visitors.
+     *
+     * @param tickets Tickets with ID, parking lot and arrival time set
+     */
+    public static void addTickets(List<ParkingTicket> tickets) throws SQLException, IOException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            List<ParkingTicket> openTickets = new ArrayList<>();
+            List<ParkingTicket> closedTickets = new ArrayList<>();
+            for (ParkingTicket ticket : tickets) {
+                (ticket.getLeaveTime() == null ? openTickets : closedTickets).add(ticket);
+            }
+
+            inTransaction(() -> {
+                insertTickets("parking_ticket", openTickets);
+                insertTickets("parking_ticket_history", closedTickets);
+
+                for (ParkingTicket ticket : closedTickets) {
+                    DailyStats.addVisitor(connection, ticket.getParkingLotId(), ticket.getArrivalTime(), ticket.getLeaveTime());
+                }
+            });
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Insert tickets by statements of many rows, only the rest that doesn't fill such statement is inserted row by row
+     */
+    private static void insertTickets(String table, List<ParkingTicket> tickets) throws SQLException {
+        int from = 0;
+        while (from < tickets.size()) {
+            int rows = tickets.size() - from >= TICKETS_PER_INSERT ? TICKETS_PER_INSERT : 1;
+
+            PreparedStatement statement = connection.prepareStatement(buildInsertTicketsStatement(table, rows));
+            int parameter = 1;
+            for (ParkingTicket ticket : tickets.subList(from, from + rows)) {
+                statement.setBytes(parameter++, Convert.toBytes(ticket.getId()));
+                statement.setString(parameter++, ticket.getCarLicencePlate());
+                statement.setInt(parameter++, ticket.getParkingLotId());
+                statement.setTimestamp(parameter++, Convert.toTimestamp(ticket.getArrivalTime()));
+                statement.setTimestamp(parameter++, ticket.getLeaveTime() == null ? null : Convert.toTimestamp(ticket.getLeaveTime()));
+            }
+
+            checkSomeRowsAffected(statement.executeUpdate());
+            from += rows;
+        }
+    }
+
+    /**
+     * @param rows Number of tickets the statement has parameters for
+     */
+    private static String buildInsertTicketsStatement(String table, int rows) {
+        return "INSERT INTO " + table + "(id, car_licence_plate, parking_lot, arrival_time, leave_time) VALUES " +
+                String.join(",", Collections.nCopies(rows, "(?, ?, ?, ?, ?)")) +
+                ";";
+    }
+
+    /**
+     * Read all tickets, open and archived ones, in chunks ordered by ID.
+     * Every chunk is read by its own short query and passed to the sink after the reader is released,
+     * so a slow client holds neither a reader connection nor a read transaction keeping the WAL from checkpoints.
+     *
+     * @param sink Receives tickets in the order they are read
+     */
+    public static void exportTickets(TicketSink sink) throws SQLException, IOException {
+        checkDatabaseInitialized();
+
+        byte[] lastId = new byte[0];
+        List<ParkingTicket> chunk;
+        do {
+            chunk = readExportChunk(lastId);
+            for (ParkingTicket ticket : chunk) {
+                sink.accept(ticket);
+            }
+
+            if (!chunk.isEmpty()) {
+                lastId = Convert.toBytes(chunk.get(chunk.size() - 1).getId());
+            }
+        } while (chunk.size() == EXPORT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param lastId ID of the last exported ticket, empty before the first chunk
+     */
+    private static List<ParkingTicket> readExportChunk(byte[] lastId) throws SQLException {
+        CachedConnection reader = readConnections.acquire();
+        try {
+            PreparedStatement statement = reader.prepareStatement(EXPORT_QUERY);
+            statement.setBytes(1, lastId);
+            statement.setBytes(2, lastId);
+            statement.setInt(3, EXPORT_CHUNK_SIZE);
+
+            List<ParkingTicket> chunk = new ArrayList<>(EXPORT_CHUNK_SIZE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    chunk.add(readTicket(resultSet));
+                }
+            }
+
+            return chunk;
+
+        } finally {
+            readConnections.release(reader);
+        }
+    }
+
+    /**
+     * Pass every open and removed ticket of the parking lot to the sink.
+     * Both tables are read by one query, so a ticket moved by the archiver in the meantime is passed exactly once.
+     */
+    public static void exportParkingLotTickets(int id, TicketSink sink) throws SQLException, IOException {
+        checkDatabaseInitialized();
+
+        CachedConnection reader = readConnections.acquire();
+        try {
+            PreparedStatement statement = reader.prepareStatement(PARKING_LOT_TICKETS_QUERY);
+            statement.setInt(1, id);
+            statement.setInt(2, id);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    sink.accept(readTicket(resultSet));
+                }
+            }
+
+        } finally {
+            readConnections.release(reader);
+        }
+    }
+
+    private static ParkingTicket readTicket(ResultSet resultSet) throws SQLException {
+        ParkingTicket ticket = new ParkingTicket();
+        ticket.setId(Convert.fromBytes(resultSet.getBytes("id")));
+        ticket.setCarLicencePlate(resultSet.getString("car_licence_plate"));
+        ticket.setParkingLotId(resultSet.getInt("parking_lot"));
+
+        Timestamp arrivalTime = resultSet.getTimestamp("arrival_time");
+        ticket.setArrivalTime(arrivalTime == null ? null : Convert.toLocalDateTime(arrivalTime));
+
+        Timestamp leaveTime = resultSet.getTimestamp("leave_time");
+        ticket.setLeaveTime(leaveTime == null ? null : Convert.toLocalDateTime(leaveTime));
+
+        return ticket;
+    }
+
     /**
      * Mark ticket as used and set leave time as the time car with the ticket the left paring lot
      *
      * @param id Id of ticket that is removed. Removing means car with the ticket left parking lot and leave time is set
+     * @return Id of parking lot the ticket belonged to
      */
-    public synchronized static void removeTicket(UUID id) throws SQLException, IOException {
-        checkDatabaseInitialized();
+    public static int removeTicket(UUID id) throws SQLException, IOException {
+        WRITER_LOCK.lock();
+        try {
+            return removeTicket(id, LocalDateTime.now());
 
-        try (
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Mark ticket as used with the given leave time, used when the removal happened before it is written
+     *
+     * @param id        Id of ticket that is removed
+     * @param leaveTime Time the car with the ticket left the parking lot
+     * @return Id of parking lot the ticket belonged to
+     */
+    public static int removeTicket(UUID id, LocalDateTime leaveTime) throws SQLException, IOException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            ParkingTicket ticket = getOpenTicket(id);
+            if (leaveTime.isBefore(ticket.getArrivalTime())) {
+                throw new SQLException("Leave time of ticket " + id + " is before its arrival time " + ticket.getArrivalTime());
+            }
+
+            inTransaction(() -> {
                 PreparedStatement statement = connection.prepareStatement(
                         "UPDATE parking_ticket " +
                                 "SET leave_time = ? " +
                                 "WHERE id = ? AND " +
                                 "leave_time IS NULL;"
-                )
-        ) {
-            statement.setTimestamp(1, Convert.toTimestamp(LocalDateTime.now()));
+                );
+                statement.setTimestamp(1, Convert.toTimestamp(leaveTime));
+                statement.setBytes(2, Convert.toBytes(id));
+
+                checkSomeRowsAffected(statement.executeUpdate());
+                DailyStats.addVisitor(connection, ticket.getParkingLotId(), ticket.getArrivalTime(), leaveTime);
+            });
+
+            return ticket.getParkingLotId();
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Reads committed tickets, open or removed ones
+     *
+     * @return Whether a ticket with the ID is saved
+     */
+    public static boolean ticketExists(UUID id) throws SQLException {
+        checkDatabaseInitialized();
+
+        CachedConnection reader = readConnections.acquire();
+        try {
+            PreparedStatement statement = reader.prepareStatement(TICKET_EXISTS_QUERY);
+            statement.setBytes(1, Convert.toBytes(id));
             statement.setBytes(2, Convert.toBytes(id));
 
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+
+        } finally {
+            readConnections.release(reader);
+        }
+    }
+
+    /**
+     * Reads from the writer connection, so it sees writes of the running transaction
+     *
+     * @param id Id of ticket
+     * @return Ticket with parking lot and arrival time filled, null if it doesn't exist or was already removed
+     */
+    public static ParkingTicket findOpenTicket(UUID id) throws SQLException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            PreparedStatement statement = connection.prepareStatement(OPEN_TICKET_QUERY);
+            statement.setBytes(1, Convert.toBytes(id));
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    ParkingTicket ticket = new ParkingTicket();
+                    ticket.setId(id);
+                    ticket.setParkingLotId(resultSet.getInt("parking_lot"));
+                    ticket.setArrivalTime(Convert.toLocalDateTime(resultSet.getTimestamp("arrival_time")));
+
+                    return ticket;
+                }
+            }
+
+            return null;
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Called by writes holding the class lock
+     *
+     * @param id Id of ticket that wasn't removed yet
+     * @return Ticket with parking lot and arrival time filled
+     */
+    private static ParkingTicket getOpenTicket(UUID id) throws SQLException {
+        ParkingTicket ticket = findOpenTicket(id);
+        if (ticket == null) {
+            throw new SQLException("Ticket " + id + " not found or already removed.");
+        }
+
+        return ticket;
+    }
+
+    /**
+     * @return Position in the ticket journal up to which its events are applied to the ticket tables
+     */
+    public static long getJournalPosition() throws SQLException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            try (
+                    Statement statement = connection.createStatement();
+                    ResultSet resultSet = statement.executeQuery("SELECT position FROM journal_position WHERE id = 1;")
+            ) {
+                return resultSet.next() ? resultSet.getLong("position") : 0;
+            }
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Called in the transaction applying the journal events, so the position moves together with the tickets
+     *
+     * @param position Position in the ticket journal after the last applied event
+     */
+    public static void setJournalPosition(long position) throws SQLException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            PreparedStatement statement = connection.prepareStatement("UPDATE journal_position SET position = ? WHERE id = 1;");
+            statement.setLong(1, position);
             checkSomeRowsAffected(statement.executeUpdate());
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Count open tickets of all parking lots together with the last occupancy change the counts include.
+     * Holding the writer lock keeps the counts and the change in sync.
+     */
+    public static OccupancySnapshot scanOccupancy() throws SQLException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            return new OccupancySnapshot(
+                    getSnapshotState("database_id"),
+                    getLastOccupancyChange(),
+                    getCountsStatementResult(connection.prepareStatement("SELECT id, capacity AS count FROM parking_lot;")),
+                    getCountsStatementResult(connection.prepareStatement(
+                            "SELECT parking_lot AS id, COUNT(*) AS count " +
+                                    "FROM parking_ticket " +
+                                    "WHERE leave_time IS NULL " +
+                                    "GROUP BY parking_lot;"
+                    ))
+            );
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Apply occupancy changes logged after the snapshot and capacities of the parking lots in the database now.
+     * Parking lots are few, reading all of them also drops the ones moved to another node of the cluster.
+     *
+     * @return Snapshot including all changes so far, null if the snapshot is of another database
+     * or the changes after it are no longer kept
+     */
+    public static OccupancySnapshot catchUpOccupancy(OccupancySnapshot snapshot) throws SQLException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            long lastChange = getLastOccupancyChange();
+            if (snapshot.getDatabaseId() != getSnapshotState("database_id")
+                    || snapshot.getMark() < getSnapshotState("pruned") || snapshot.getMark() > lastChange) {
+                return null;
+            }
+
+            PreparedStatement lots = connection.prepareStatement("SELECT id, capacity AS count FROM parking_lot;");
+
+            PreparedStatement changes = connection.prepareStatement(
+                    "SELECT parking_lot AS id, SUM(delta) AS count " +
+                            "FROM occupancy_change " +
+                            "WHERE seq > ? AND seq <= ? " +
+                            "GROUP BY parking_lot;"
+            );
+            changes.setLong(1, snapshot.getMark());
+            changes.setLong(2, lastChange);
+
+            return snapshot.withChanges(lastChange, getCountsStatementResult(lots), getCountsStatementResult(changes));
+
+        } finally {
+            WRITER_LOCK.unlock();
         }
     }
 
+    /**
+     * Delete occupancy changes included in a written snapshot, older snapshots can't be caught up after that
+     *
+     * @param mark Last occupancy change of the written snapshot
+     */
+    public static void pruneOccupancyChanges(long mark) throws SQLException, IOException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            inTransaction(() -> {
+                PreparedStatement delete = connection.prepareStatement("DELETE FROM occupancy_change WHERE seq <= ?;");
+                delete.setLong(1, mark);
+                delete.executeUpdate();
+
+                PreparedStatement update = connection.prepareStatement("UPDATE occupancy_snapshot SET pruned = ? WHERE id = 1;");
+                update.setLong(1, mark);
+                checkSomeRowsAffected(update.executeUpdate());
+            });
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * AUTOINCREMENT keeps the last sequence number even after the changes are pruned
+     */
+    private static long getLastOccupancyChange() throws SQLException {
+        try (
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT seq FROM sqlite_sequence WHERE name = 'occupancy_change';")
+        ) {
+            return resultSet.next() ? resultSet.getLong("seq") : 0;
+        }
+    }
+
+    private static long getSnapshotState(String column) throws SQLException {
+        try (
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT " + column + " FROM occupancy_snapshot WHERE id = 1;")
+        ) {
+            if (!resultSet.next()) {
+                throw new SQLException("Occupancy snapshot state is missing");
+            }
+
+            return resultSet.getLong(column);
+        }
+    }
+
+    /**
+     * Recompute visitors per day rollup from the tickets
+     */
+    public static void rebuildDailyStats() throws SQLException, IOException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            inTransaction(() -> DailyStats.rebuild(connection, TICKET_TABLES));
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Compare visitors per day rollup with the tickets
+     *
+     * @return Description of every difference, empty if the rollup is consistent
+     */
+    public static List<String> checkDailyStats() throws SQLException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            return DailyStats.findMismatches(connection, TICKET_TABLES);
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Move closed tickets from the ticket table to the history in one short transaction.
+     * Open ticket queries then read only a small table, and the writer lock is held just for one chunk.
+     *
+     * @param chunkSize Most tickets moved at once
+     * @return Number of moved tickets, less than chunk size when no closed tickets are left
+     */
+    public static int archiveClosedTickets(int chunkSize) throws SQLException, IOException {
+        WRITER_LOCK.lock();
+        try {
+            checkDatabaseInitialized();
+
+            List<byte[]> ids = new ArrayList<>();
+            PreparedStatement query = connection.prepareStatement(CLOSED_TICKETS_QUERY);
+            query.setInt(1, chunkSize);
+            try (ResultSet resultSet = query.executeQuery()) {
+                while (resultSet.next()) {
+                    ids.add(resultSet.getBytes("id"));
+                }
+            }
+
+            inTransaction(() -> {
+                PreparedStatement archive = connection.prepareStatement(ARCHIVE_STATEMENT);
+                PreparedStatement delete = connection.prepareStatement("DELETE FROM parking_ticket WHERE id = ?;");
+
+                for (byte[] id : ids) {
+                    archive.setBytes(1, id);
+                    checkSomeRowsAffected(archive.executeUpdate());
+
+                    delete.setBytes(1, id);
+                    checkSomeRowsAffected(delete.executeUpdate());
+                }
+            });
+
+            return ids.size();
+
+        } finally {
+            WRITER_LOCK.unlock();
+        }
+    }
+
+    /**
+     * @return Map of Parking lot Id -> number of slots of all parking lots
+     */
+    public static Map<Integer, Integer> getParkingLotCapacities() throws SQLException {
+        checkDatabaseInitialized();
+
+        CachedConnection reader = readConnections.acquire();
+        try {
+            PreparedStatement statement = reader.prepareStatement("SELECT id, capacity AS count FROM parking_lot;");
+            return getCountsStatementResult(statement);
+
+        } finally {
+            readConnections.release(reader);
+        }
+    }
+
+    /**
+     * @return Map of Parking lot Id -> number of tickets that weren't removed yet, parking lots without them are missing
+     */
+    public static Map<Integer, Integer> getOpenTicketCounts() throws SQLException {
+        checkDatabaseInitialized();
+
+        CachedConnection reader = readConnections.acquire();
+        try {
+            PreparedStatement statement = reader.prepareStatement(
+                    "SELECT parking_lot AS id, COUNT(*) AS count " +
+                            "FROM parking_ticket " +
+                            "WHERE leave_time IS NULL " +
+                            "GROUP BY parking_lot;"
+            );
+            return getCountsStatementResult(statement);
+
+        } finally {
+            readConnections.release(reader);
+        }
+    }
+
+    /**
+     * Execute statement selecting id and count columns and collect them into a map
+     */
+    private static Map<Integer, Integer> getCountsStatementResult(PreparedStatement statement) throws SQLException {
+        Map<Integer, Integer> result = new HashMap<>();
+
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                result.put(resultSet.getInt("id"), resultSet.getInt("count"));
+            }
+        }
+
+        return result;
+    }
+
     /**
      * Get number of parking lot slots subtracted by number of tickets that weren't removed yet.
      *
      * @param id Id of parking lot to get remaining capacity
      * @return Number of free slots on the parking lot
      */
-    public synchronized static int getParkingLotRemainingCapacity(Integer id) throws SQLException {
+    public static int getParkingLotRemainingCapacity(Integer id) throws SQLException {
         checkDatabaseInitialized();
 
-        try (
-                PreparedStatement statement = connection.prepareStatement(
-                        "SELECT lot.capacity - COUNT(ticket.id) AS remaining " +
-                                "FROM parking_lot AS lot " +
-                                "LEFT JOIN parking_ticket AS ticket ON lot.id = ticket.parking_lot " +
-                                "WHERE lot.id = ? AND ticket.leave_time IS NULL;"
-                )
-        ) {
+        CachedConnection reader = readConnections.acquire();
+        try {
+            PreparedStatement statement = reader.prepareStatement(REMAINING_CAPACITY_QUERY);
             statement.setInt(1, id);
             return extractRemainingParkingLotCapacity(statement);
+
+        } finally {
+            readConnections.release(reader);
         }
     }
 
@@ -190,29 +1004,57 @@ public class Database {
      * @param ids IDs of parking lots to get usages of
      * @return Map of Parking lot Id -> usage
      */
-    public synchronized static Map<Integer, Double> getUsagesInPercent(List<Integer> ids) throws SQLException {
+    public static Map<Integer, Double> getUsagesInPercent(List<Integer> ids) throws SQLException {
         checkDatabaseInitialized();
 
-        try (PreparedStatement statement = connection.prepareStatement(buildUsagesInPercentQuery(ids))) {
-            for (int i = 0; i < ids.size(); i++) {
-                statement.setInt(i + 1, ids.get(i));
+        Map<Integer, Double> result = new HashMap<>();
+        int largestQuerySize = USAGE_QUERY_SIZES[USAGE_QUERY_SIZES.length - 1];
+
+        CachedConnection reader = readConnections.acquire();
+        try {
+            for (int from = 0; from < ids.size(); from += largestQuerySize) {
+                List<Integer> part = ids.subList(from, Math.min(from + largestQuerySize, ids.size()));
+                result.putAll(getUsagesInPercent(reader, part));
             }
 
-            return getUsagesInPercentStatementResult(statement);
+            return result;
+
+        } finally {
+            readConnections.release(reader);
         }
     }
 
+    /**
+     * Query usages of at most the largest query size of IDs. Missing parameters are filled with the last ID,
+     * repeated ID does not change the result of IN condition.
+     */
+    private static Map<Integer, Double> getUsagesInPercent(CachedConnection reader, List<Integer> ids) throws SQLException {
+        int query = 0;
+        while (USAGE_QUERY_SIZES[query] < ids.size()) {
+            query++;
+        }
+
+        PreparedStatement statement = reader.prepareStatement(USAGE_QUERIES[query]);
+        for (int i = 0; i < USAGE_QUERY_SIZES[query]; i++) {
+            statement.setInt(i + 1, ids.get(Math.min(i, ids.size() - 1)));
+        }
+
+        return getUsagesInPercentStatementResult(statement);
+    }
+
     /**
      * Build a statement, for querying parking lot usage with parameterized parking lot IDs
+     *
+     * @param parameters Number of IDs the statement has parameters for
      */
-    private static String buildUsagesInPercentQuery(List<Integer> ids) {
-        return "SELECT lot.id AS id, COUNT(ticket.id) / CAST(lot.capacity AS REAL) * 100 AS percentage " +
+    private static String buildUsagesInPercentQuery(int parameters) {
+        return "SELECT lot.id AS id, (" +
+                "SELECT COUNT(*) FROM parking_ticket AS ticket " +
+                "WHERE ticket.parking_lot = lot.id AND ticket.leave_time IS NULL" +
+                ") / CAST(lot.capacity AS REAL) * 100 AS percentage " +
                 "FROM parking_lot AS lot " +
-                "LEFT JOIN parking_ticket AS ticket ON ticket.parking_lot = lot.id " +
-                "WHERE ticket.leave_time IS NULL " +
-                "GROUP BY lot.id, lot.capacity " +
-                "HAVING lot.id IN (" +
-                ids.stream().map(value -> "?").collect(Collectors.joining(",")) +
+                "WHERE lot.id IN (" +
+                String.join(",", Collections.nCopies(parameters, "?")) +
                 ");";
     }
 
@@ -241,43 +1083,15 @@ public class Database {
      * @param date Day we want to count visitors at
      * @return Number of tickets that started and ended on the the day
      */
-    public synchronized static int getParkingLotVisitorsDuringDay(Integer id, LocalDate date) throws SQLException {
+    public static int getParkingLotVisitorsDuringDay(Integer id, LocalDate date) throws SQLException {
         checkDatabaseInitialized();
 
-        try (
-                PreparedStatement statement = connection.prepareStatement(
-                        "SELECT COUNT(ticket.id) AS count " +
-                                "FROM parking_lot AS lot " +
-                                "LEFT JOIN parking_ticket AS ticket ON ticket.parking_lot = lot.id " +
-                                "WHERE lot.id = ? AND " +
-                                "arrival_time >= ? AND " +
-                                "leave_time IS NOT NULL AND " +
-                                "leave_time <= ?;"
-                )
-        ) {
-            int hoursInDay = 24;
-
-            statement.setInt(1, id);
-            statement.setTimestamp(2, Convert.toTimestamp(date.atStartOfDay()));
-            statement.setTimestamp(3, Convert.toTimestamp(date.atStartOfDay().plusHours(hoursInDay)));
-
-            return getParkingLotVisitorsStatementResult(statement);
-        }
-    }
-
-    /**
-     * Execute the parkingLotVisitorsDuringDay statement and extract the result from it
-     *
-     * @return count of visitors, -1 if parking lot with such id was not found
-     */
-    private static int getParkingLotVisitorsStatementResult(PreparedStatement statement) throws SQLException {
-        try (ResultSet resultSet = statement.executeQuery()) {
-            if (resultSet.next()) {
-                return resultSet.getInt("count");
+        CachedConnection reader = readConnections.acquire();
+        try {
+            return DailyStats.getVisitors(reader, id, date);
 
-            } else {
-                return -1;
-            }
+        } finally {
+            readConnections.release(reader);
         }
     }
 
@@ -285,7 +1099,7 @@ public class Database {
      * Throw exception if database has not been properly initialized
      */
     private static void checkDatabaseInitialized() throws DatabaseNotInitializedException {
-        if (connection == null) {
+        if (connection == null || readConnections == null) {
             throw new DatabaseNotInitializedException();
         }
     }
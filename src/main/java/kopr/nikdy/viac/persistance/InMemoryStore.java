@@ -0,0 +1,184 @@
+package kopr.nikdy.viac.persistance;
+
+import kopr.nikdy.viac.entities.ParkingLot;
+import kopr.nikdy.viac.entities.ParkingTicket;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores keeping everything in concurrent maps, nothing survives a restart.
+ * Only open tickets are kept, a removed ticket is dropped after it is counted in visitors of its day,
+ * so the memory used is bounded by the parking lot capacities.
+ * Writes are applied immediately, a transaction only groups them and can't roll them back.
+ */
+public class InMemoryStore implements TicketStore, LotStore {
+
+    private final AtomicInteger lastParkingLotId = new AtomicInteger();
+
+    private final Map<Integer, ParkingLot> parkingLots = new ConcurrentHashMap<>();
+
+    /**
+     * Parking lot name -> Id, names are unique like in the database
+     */
+    private final Map<String, Integer> parkingLotNames = new ConcurrentHashMap<>();
+
+    private final Map<UUID, ParkingTicket> openTickets = new ConcurrentHashMap<>();
+
+    private final Map<Integer, AtomicInteger> openTicketCounts = new ConcurrentHashMap<>();
+
+    /**
+     * Parking lot Id -> day -> visitors
+     */
+    private final Map<Integer, Map<LocalDate, AtomicInteger>> visitors = new ConcurrentHashMap<>();
+
+    @Override
+    public void addParkingLot(ParkingLot parkingLot) throws SQLException {
+        int id = lastParkingLotId.incrementAndGet();
+
+        if (parkingLotNames.putIfAbsent(parkingLot.getName(), id) != null) {
+            throw new SQLException("Parking lot " + parkingLot.getName() + " already exists.");
+        }
+
+        parkingLot.setId(id);
+        parkingLots.put(id, parkingLot);
+    }
+
+    @Override
+    public Map<Integer, Integer> getParkingLotCapacities() {
+        Map<Integer, Integer> result = new HashMap<>();
+        parkingLots.forEach((id, parkingLot) -> result.put(id, parkingLot.getCapacity()));
+
+        return result;
+    }
+
+    @Override
+    public Map<Integer, Double> getUsagesInPercent(List<Integer> ids) {
+        Map<Integer, Double> result = new HashMap<>();
+
+        for (Integer id : ids) {
+            ParkingLot parkingLot = parkingLots.get(id);
+            if (parkingLot == null) {
+                continue;
+            }
+
+            // the database returns NULL for division by zero, which is read as 0
+            int capacity = parkingLot.getCapacity();
+            result.put(id, capacity == 0 ? 0 : getOpenTicketCount(id) / (double) capacity * 100);
+        }
+
+        return result;
+    }
+
+    @Override
+    public int getParkingLotVisitorsDuringDay(Integer id, LocalDate date) {
+        AtomicInteger count = visitors.getOrDefault(id, new HashMap<>()).get(date);
+        return count == null ? 0 : count.get();
+    }
+
+    @Override
+    public void inTransaction(TransactionWork work) throws SQLException, IOException {
+        work.execute();
+    }
+
+    @Override
+    public void addTicket(ParkingTicket ticket) throws SQLException {
+        if (openTickets.putIfAbsent(ticket.getId(), ticket) != null) {
+            throw new SQLException("Ticket " + ticket.getId() + " already exists.");
+        }
+
+        openTicketCounts.computeIfAbsent(ticket.getParkingLotId(), parkingLot -> new AtomicInteger()).incrementAndGet();
+    }
+
+    /**
+     * Closed tickets are only counted in visitors, like removed tickets
+     */
+    @Override
+    public void addTickets(List<ParkingTicket> tickets) throws SQLException {
+        for (ParkingTicket ticket : tickets) {
+            if (ticket.getLeaveTime() == null) {
+                addTicket(ticket);
+
+            } else {
+                addVisitor(ticket.getParkingLotId(), ticket.getArrivalTime(), ticket.getLeaveTime());
+            }
+        }
+    }
+
+    /**
+     * Only open tickets are kept, so only they are exported
+     */
+    @Override
+    public void exportTickets(TicketSink sink) throws IOException {
+        for (ParkingTicket ticket : openTickets.values()) {
+            sink.accept(ticket);
+        }
+    }
+
+    @Override
+    public int removeTicket(UUID id) throws SQLException {
+        return removeTicket(id, LocalDateTime.now());
+    }
+
+    @Override
+    public int removeTicket(UUID id, LocalDateTime leaveTime) throws SQLException {
+        ParkingTicket ticket = openTickets.get(id);
+        if (ticket == null) {
+            throw new SQLException("Ticket " + id + " not found or already removed.");
+        }
+        if (leaveTime.isBefore(ticket.getArrivalTime())) {
+            throw new SQLException("Leave time of ticket " + id + " is before its arrival time " + ticket.getArrivalTime());
+        }
+        if (!openTickets.remove(id, ticket)) {
+            throw new SQLException("Ticket " + id + " not found or already removed.");
+        }
+
+        openTicketCounts.get(ticket.getParkingLotId()).decrementAndGet();
+        addVisitor(ticket.getParkingLotId(), ticket.getArrivalTime(), leaveTime);
+
+        return ticket.getParkingLotId();
+    }
+
+    @Override
+    public Map<Integer, Integer> getOpenTicketCounts() {
+        Map<Integer, Integer> result = new HashMap<>();
+        openTicketCounts.forEach((id, count) -> {
+            if (count.get() > 0) {
+                result.put(id, count.get());
+            }
+        });
+
+        return result;
+    }
+
+    @Override
+    public int archiveClosedTickets(int chunkSize) {
+        return 0;
+    }
+
+    /**
+     * Count the ticket in visitors if it arrived and left during the same day
+     */
+    private void addVisitor(Integer parkingLotId, LocalDateTime arrivalTime, LocalDateTime leaveTime) {
+        LocalDate day = arrivalTime.toLocalDate();
+        if (day.equals(leaveTime.toLocalDate())) {
+            visitors.computeIfAbsent(parkingLotId, parkingLot -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(day, visitorsDay -> new AtomicInteger())
+                    .incrementAndGet();
+        }
+    }
+
+    private int getOpenTicketCount(Integer id) {
+        AtomicInteger count = openTicketCounts.get(id);
+        return count == null ? 0 : count.get();
+    }
+
+}
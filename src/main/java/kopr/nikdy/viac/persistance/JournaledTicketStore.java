@@ -0,0 +1,483 @@
+package kopr.nikdy.viac.persistance;
+
+import kopr.nikdy.viac.entities.ParkingTicket;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Ticket store writing added and removed tickets to the {@link TicketJournal} first.
+ * A write is done once its event is appended and flushed by the flush policy, the SQLite ticket tables are updated
+ * from the journal in the background together with the position of the last applied event.
+ * At startup the events after that position are applied before anything else is read.
+ * <p>
+ * Ticket reads, imports, exports and archiving go to SQLite directly, so queries see a write once it is applied.
+ */
+public class JournaledTicketStore implements TicketStore {
+
+    public enum FlushPolicy {
+
+        /**
+         * Force the journal to the disk before the writes of a transaction are done, one force per transaction
+         */
+        COMMIT,
+
+        /**
+         * Writes are done once they are in the mapped memory, which survives a crash of the process,
+         * the journal is forced to the disk periodically
+         */
+        INTERVAL
+
+    }
+
+    private final SqliteStore store;
+
+    private final TicketJournal journal;
+
+    private final FlushPolicy flushPolicy;
+
+    /**
+     * Most events applied to SQLite in one transaction
+     */
+    private final int applyBatchSize;
+
+    private final BlockingQueue<JournalEntry> unapplied = new LinkedBlockingQueue<>();
+
+    /**
+     * Tickets added to the journal but not to SQLite yet, removals need their parking lot
+     */
+    private final Map<UUID, ParkingTicket> unappliedAdds = new HashMap<>();
+
+    /**
+     * Tickets removed in the journal but not in SQLite yet, they can't be removed again
+     */
+    private final Set<UUID> unappliedRemovals = new HashSet<>();
+
+    /**
+     * Events of the running transaction, appended to the journal once it succeeds
+     */
+    private final List<TicketEvent> transactionEvents = new ArrayList<>();
+
+    private int transactionDepth;
+
+    /**
+     * Guards the journal and the unapplied tickets, a virtual thread waiting for it doesn't pin its carrier thread
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Thread applier = new Thread(this::applyEvents, "ticket-journal-applier");
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * How long closing waits for the applier, events it didn't apply by then are replayed at the next start
+     */
+    private final Duration closeTimeout;
+
+    private volatile boolean running = true;
+
+    /**
+     * Called by the applier with tickets removed by the applied events, once they are in SQLite
+     */
+    private volatile Consumer<List<ParkingTicket>> removalListener = removed -> {
+    };
+
+    /**
+     * Apply events written after the last applied position and start applying new ones in the background
+     */
+    public JournaledTicketStore(SqliteStore store, TicketJournal journal, FlushPolicy flushPolicy, Duration flushInterval,
+                                int applyBatchSize, Duration closeTimeout) throws SQLException, IOException {
+        this.store = store;
+        this.journal = journal;
+        this.flushPolicy = flushPolicy;
+        this.applyBatchSize = applyBatchSize;
+        this.closeTimeout = closeTimeout;
+
+        List<JournalEntry> replayed = new ArrayList<>();
+        journal.open(store.getJournalPosition(), (event, position) -> {
+            replayed.add(new JournalEntry(event, position));
+            if (replayed.size() == applyBatchSize) {
+                apply(replayed);
+                replayed.clear();
+            }
+        });
+        if (!replayed.isEmpty()) {
+            apply(replayed);
+        }
+
+        applier.setDaemon(true);
+        applier.start();
+
+        if (flushPolicy == FlushPolicy.INTERVAL) {
+            flusher.scheduleWithFixedDelay(this::force, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Events of the work are appended together once it succeeds, with the COMMIT policy they share one force.
+     * Nested work failing drops only its own events, the outer work appends the rest.
+     */
+    @Override
+    public void inTransaction(TransactionWork work) throws SQLException, IOException {
+        lock.lock();
+        try {
+            int savepoint = transactionEvents.size();
+            transactionDepth++;
+            try {
+                work.execute();
+
+                if (transactionDepth == 1) {
+                    commit();
+                }
+
+            } catch (SQLException | IOException | RuntimeException e) {
+                rollback(savepoint);
+                throw e;
+
+            } finally {
+                transactionDepth--;
+            }
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The ticket is checked like SQLite would check it before the write is acknowledged,
+     * an event failing only when it is applied would be lost and replayed after a restart
+     */
+    @Override
+    public void addTicket(ParkingTicket ticket) throws SQLException, IOException {
+        lock.lock();
+        try {
+            if (ticket.getId() == null || ticket.getParkingLotId() == null || ticket.getArrivalTime() == null
+                    || ticket.getCarLicencePlate() == null) {
+                throw new SQLException("Ticket needs ID, parking lot, arrival time and licence plate.");
+            }
+
+            if (ticket.getCarLicencePlate().getBytes(StandardCharsets.UTF_8).length > TicketEvent.MAX_LICENCE_PLATE_BYTES) {
+                throw new SQLException("Licence plate of ticket " + ticket.getId() + " is too long.");
+            }
+
+            if (unappliedAdds.containsKey(ticket.getId()) || store.ticketExists(ticket.getId())) {
+                throw new SQLException("Ticket " + ticket.getId() + " already exists.");
+            }
+
+            unappliedAdds.put(ticket.getId(), ticket);
+            write(TicketEvent.added(ticket));
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Imported tickets go to SQLite directly, they are already durable once the import transaction commits.
+     * A ticket still waiting in the journal is rejected, the import would make its acknowledged event fail when applied.
+     */
+    @Override
+    public void addTickets(List<ParkingTicket> tickets) throws SQLException, IOException {
+        lock.lock();
+        try {
+            for (ParkingTicket ticket : tickets) {
+                if (unappliedAdds.containsKey(ticket.getId()) || unappliedRemovals.contains(ticket.getId())) {
+                    throw new SQLException("Ticket " + ticket.getId() + " is being written by a gate, import it again later.");
+                }
+            }
+
+            store.addTickets(tickets);
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void exportTickets(TicketSink sink) throws SQLException, IOException {
+        store.exportTickets(sink);
+    }
+
+    @Override
+    public int removeTicket(UUID id) throws SQLException, IOException {
+        return removeTicket(id, LocalDateTime.now());
+    }
+
+    @Override
+    public int removeTicket(UUID id, LocalDateTime leaveTime) throws SQLException, IOException {
+        lock.lock();
+        try {
+            ParkingTicket ticket = unappliedRemovals.contains(id) ? null : unappliedAdds.get(id);
+            if (ticket == null && !unappliedRemovals.contains(id)) {
+                ticket = store.findOpenTicket(id);
+            }
+
+            if (ticket == null) {
+                throw new SQLException("Ticket " + id + " not found or already removed.");
+            }
+            if (leaveTime.isBefore(ticket.getArrivalTime())) {
+                throw new SQLException("Leave time of ticket " + id + " is before its arrival time " + ticket.getArrivalTime());
+            }
+
+            unappliedRemovals.add(id);
+            write(TicketEvent.removed(id, leaveTime));
+
+            return ticket.getParkingLotId();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<Integer, Integer> getOpenTicketCounts() throws SQLException {
+        return store.getOpenTicketCounts();
+    }
+
+    @Override
+    public int archiveClosedTickets(int chunkSize) throws SQLException, IOException {
+        return store.archiveClosedTickets(chunkSize);
+    }
+
+    /**
+     * @param listener Gets ID, parking lot and leave time of tickets whose removal was applied, reads of SQLite see it from then
+     */
+    public void setRemovalListener(Consumer<List<ParkingTicket>> listener) {
+        this.removalListener = listener;
+    }
+
+    /**
+     * Apply appended events to SQLite for at most the close timeout and force the journal, called at shutdown before the database is closed.
+     * When SQLite keeps failing the applier is stopped, the shutdown doesn't wait for it and the events are replayed at the next start.
+     */
+    public void close() {
+        running = false;
+        flusher.shutdown();
+
+        try {
+            applier.join(closeTimeout.toMillis());
+            if (applier.isAlive()) {
+                applier.interrupt();
+                applier.join(closeTimeout.toMillis());
+                System.err.println("Journal events not applied in " + closeTimeout + ", " + unapplied.size()
+                        + " of them and the batch being applied are replayed at the next start");
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        force();
+    }
+
+    private void write(TicketEvent event) throws IOException {
+        transactionEvents.add(event);
+
+        if (transactionDepth == 0) {
+            try {
+                commit();
+
+            } catch (IOException | RuntimeException e) {
+                rollback(0);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Append the events of the transaction, none of them is in the journal if it fails
+     */
+    private void commit() throws IOException {
+        long[] positions = journal.append(transactionEvents);
+
+        List<JournalEntry> entries = new ArrayList<>(transactionEvents.size());
+        for (int i = 0; i < positions.length; i++) {
+            entries.add(new JournalEntry(transactionEvents.get(i), positions[i]));
+        }
+        transactionEvents.clear();
+
+        if (flushPolicy == FlushPolicy.COMMIT) {
+            journal.force();
+        }
+
+        unapplied.addAll(entries);
+    }
+
+    /**
+     * @param savepoint Number of events of the transaction that are kept
+     */
+    private void rollback(int savepoint) {
+        List<TicketEvent> rolledBack = transactionEvents.subList(savepoint, transactionEvents.size());
+        for (TicketEvent event : rolledBack) {
+            if (event.getType() == TicketEvent.Type.ADD) {
+                unappliedAdds.remove(event.getTicket().getId());
+
+            } else {
+                unappliedRemovals.remove(event.getTicket().getId());
+            }
+        }
+
+        rolledBack.clear();
+    }
+
+    private void force() {
+        lock.lock();
+        try {
+            journal.force();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Background loop applying appended events in batches, until the store is closed and all events are applied
+     */
+    private void applyEvents() {
+        List<JournalEntry> batch = new ArrayList<>(applyBatchSize);
+
+        while (running || !unapplied.isEmpty()) {
+            try {
+                JournalEntry first = unapplied.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                unapplied.drainTo(batch, applyBatchSize - 1);
+
+                applyUntilDone(batch);
+                forgetApplied(batch);
+                batch.clear();
+
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The events are already acknowledged, so failing to apply them can't drop them, they are retried until it works
+     */
+    private void applyUntilDone(List<JournalEntry> batch) throws InterruptedException {
+        while (true) {
+            try {
+                apply(batch);
+                return;
+
+            } catch (SQLException | IOException e) {
+                System.err.println("Applying journal events failed, retrying: " + e.getMessage());
+                Thread.sleep(1000);
+            }
+        }
+    }
+
+    /**
+     * Apply the events and move the applied position after the last of them in one transaction.
+     * Writes and imports are checked against SQLite and the unapplied events before they are accepted, so an event
+     * failing on its own means the database was changed behind the store. It is skipped with its whole content
+     * reported, the rest of the journal can't wait for it.
+     */
+    private void apply(List<JournalEntry> batch) throws SQLException, IOException {
+        List<ParkingTicket> removed = new ArrayList<>();
+
+        store.inTransaction(() -> {
+            for (JournalEntry entry : batch) {
+                try {
+                    applyEvent(entry.event, removed);
+
+                } catch (SQLException e) {
+                    System.err.println("Skipping acknowledged journal event at " + entry.position + ", " + entry.event.getType()
+                            + " of ticket " + describe(entry.event.getTicket()) + ": " + e.getMessage());
+                }
+            }
+
+            store.setJournalPosition(batch.get(batch.size() - 1).position);
+        });
+
+        if (!removed.isEmpty()) {
+            removalListener.accept(removed);
+        }
+    }
+
+    private static String describe(ParkingTicket ticket) {
+        return ticket.getId() + " (parking lot " + ticket.getParkingLotId() + ", plate " + ticket.getCarLicencePlate()
+                + ", arrival " + ticket.getArrivalTime() + ", leave " + ticket.getLeaveTime() + ")";
+    }
+
+    private void applyEvent(TicketEvent event, List<ParkingTicket> removed) throws SQLException, IOException {
+        ParkingTicket ticket = event.getTicket();
+
+        if (event.getType() == TicketEvent.Type.ADD) {
+            store.addTicket(ticket);
+
+        } else {
+            ParkingTicket removal = new ParkingTicket();
+            removal.setId(ticket.getId());
+            removal.setParkingLotId(store.removeTicket(ticket.getId(), ticket.getLeaveTime()));
+            removal.setLeaveTime(ticket.getLeaveTime());
+            removed.add(removal);
+        }
+    }
+
+    /**
+     * Once the events are in SQLite, the tickets are found there and segments before them aren't needed
+     */
+    private void forgetApplied(List<JournalEntry> batch) {
+        lock.lock();
+        try {
+            for (JournalEntry entry : batch) {
+                if (entry.event.getType() == TicketEvent.Type.ADD) {
+                    unappliedAdds.remove(entry.event.getTicket().getId());
+
+                } else {
+                    unappliedRemovals.remove(entry.event.getTicket().getId());
+                }
+            }
+
+            try {
+                journal.deleteBefore(batch.get(batch.size() - 1).position);
+
+            } catch (IOException e) {
+                System.err.println("Deleting applied journal segments failed: " + e.getMessage());
+            }
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class JournalEntry {
+
+        private final TicketEvent event;
+
+        /**
+         * Position after the event
+         */
+        private final long position;
+
+        private JournalEntry(TicketEvent event, long position) {
+            this.event = event;
+            this.position = position;
+        }
+
+    }
+
+}
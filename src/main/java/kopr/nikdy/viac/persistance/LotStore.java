@@ -0,0 +1,36 @@
+package kopr.nikdy.viac.persistance;
+
+import kopr.nikdy.viac.entities.ParkingLot;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage of parking lots and the statistics read about them
+ */
+public interface LotStore {
+
+    /**
+     * Save parking lot and set its generated ID
+     */
+    void addParkingLot(ParkingLot parkingLot) throws SQLException;
+
+    /**
+     * @return Map of Parking lot Id -> number of slots of all parking lots
+     */
+    Map<Integer, Integer> getParkingLotCapacities() throws SQLException;
+
+    /**
+     * @param ids IDs of parking lots to get usages of
+     * @return Map of Parking lot Id -> usage in percent, parking lots that don't exist are missing
+     */
+    Map<Integer, Double> getUsagesInPercent(List<Integer> ids) throws SQLException;
+
+    /**
+     * @return Number of tickets of the parking lot that were added and removed during the day
+     */
+    int getParkingLotVisitorsDuringDay(Integer id, LocalDate date) throws SQLException;
+
+}
@@ -0,0 +1,222 @@
+package kopr.nikdy.viac.persistance;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Versioned changes of the database schema.
+ * Version of the database is kept in SQLite user_version, every migration newer than it is applied
+ * in its own transaction together with the version bump. Migrations are only ever appended, never changed.
+ */
+public class Migrations {
+
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            // 1: initial schema, databases created before migrations already have it
+            sql(
+                    "CREATE TABLE IF NOT EXISTS parking_lot(" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            "capacity INTEGER NOT NULL CHECK ( capacity >= 0 )," +
+                            "name VARCHAR(256) UNIQUE NOT NULL" +
+                            ");",
+                    "CREATE TABLE IF NOT EXISTS parking_ticket(" +
+                            "id BLOB(16) PRIMARY KEY," +
+                            "car_licence_plate VARCHAR(16) NOT NULL," +
+                            "parking_lot INTEGER REFERENCES parking_lot(id) NOT NULL," +
+                            "arrival_time DATETIME DEFAULT CURRENT_TIMESTAMP," +
+                            "leave_time DATETIME" +
+                            ");",
+                    "CREATE INDEX IF NOT EXISTS time_index ON parking_ticket(arrival_time, leave_time);"
+            ),
+
+            // 2: every hot query filters by parking lot first, so indexes have to start with it
+            sql(
+                    "DROP INDEX IF EXISTS time_index;",
+                    "CREATE INDEX ticket_lot_time_index ON parking_ticket(parking_lot, arrival_time, leave_time);",
+                    "CREATE INDEX open_ticket_index ON parking_ticket(parking_lot, leave_time) WHERE leave_time IS NULL;"
+            ),
+
+            // 3: visitors per day are read from a rollup maintained by ticket removals, filled from existing tickets
+            connection -> {
+                sql(
+                        "CREATE TABLE parking_lot_daily_stats(" +
+                                "parking_lot INTEGER REFERENCES parking_lot(id) NOT NULL," +
+                                "day INTEGER NOT NULL," +
+                                "visitors INTEGER NOT NULL," +
+                                "PRIMARY KEY (parking_lot, day)" +
+                                ") WITHOUT ROWID;"
+                ).apply(connection);
+                DailyStats.rebuild(connection, "parking_ticket");
+            },
+
+            // 4: closed tickets are moved to history by the archiver, so the ticket table holds mostly open tickets
+            sql(
+                    "CREATE TABLE parking_ticket_history(" +
+                            "id BLOB(16) PRIMARY KEY," +
+                            "car_licence_plate VARCHAR(16) NOT NULL," +
+                            "parking_lot INTEGER REFERENCES parking_lot(id) NOT NULL," +
+                            "arrival_time DATETIME," +
+                            "leave_time DATETIME NOT NULL" +
+                            ");",
+                    "CREATE INDEX history_lot_time_index ON parking_ticket_history(parking_lot, arrival_time, leave_time);"
+            ),
+
+            // 5: ticket IDs are stored most significant byte first and ticket tables are clustered on them
+            connection -> {
+                rebuildClustered(connection, "parking_ticket",
+                        "id BLOB(16) PRIMARY KEY," +
+                                "car_licence_plate VARCHAR(16) NOT NULL," +
+                                "parking_lot INTEGER REFERENCES parking_lot(id) NOT NULL," +
+                                "arrival_time DATETIME DEFAULT CURRENT_TIMESTAMP," +
+                                "leave_time DATETIME"
+                );
+                rebuildClustered(connection, "parking_ticket_history",
+                        "id BLOB(16) PRIMARY KEY," +
+                                "car_licence_plate VARCHAR(16) NOT NULL," +
+                                "parking_lot INTEGER REFERENCES parking_lot(id) NOT NULL," +
+                                "arrival_time DATETIME," +
+                                "leave_time DATETIME NOT NULL"
+                );
+                sql(
+                        "CREATE INDEX ticket_lot_time_index ON parking_ticket(parking_lot, arrival_time, leave_time);",
+                        "CREATE INDEX open_ticket_index ON parking_ticket(parking_lot, leave_time) WHERE leave_time IS NULL;",
+                        "CREATE INDEX history_lot_time_index ON parking_ticket_history(parking_lot, arrival_time, leave_time);"
+                ).apply(connection);
+            },
+
+            // 6: position in the ticket journal up to which its events are applied, updated together with the tickets
+            sql(
+                    "CREATE TABLE journal_position(" +
+                            "id INTEGER PRIMARY KEY CHECK ( id = 1 )," +
+                            "position INTEGER NOT NULL" +
+                            ");",
+                    "INSERT INTO journal_position(id, position) VALUES (1, 0);"
+            ),
+
+            // 7: changes of open ticket counts logged by triggers, so the occupancy snapshot only replays what came after it
+            sql(
+                    "CREATE TABLE occupancy_change(" +
+                            "seq INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            "parking_lot INTEGER NOT NULL," +
+                            "delta INTEGER NOT NULL" +
+                            ");",
+                    "CREATE TRIGGER open_ticket_added AFTER INSERT ON parking_ticket WHEN NEW.leave_time IS NULL " +
+                            "BEGIN INSERT INTO occupancy_change(parking_lot, delta) VALUES (NEW.parking_lot, 1); END;",
+                    "CREATE TRIGGER open_ticket_closed AFTER UPDATE OF leave_time ON parking_ticket " +
+                            "WHEN OLD.leave_time IS NULL AND NEW.leave_time IS NOT NULL " +
+                            "BEGIN INSERT INTO occupancy_change(parking_lot, delta) VALUES (OLD.parking_lot, -1); END;",
+                    "CREATE TRIGGER open_ticket_deleted AFTER DELETE ON parking_ticket WHEN OLD.leave_time IS NULL " +
+                            "BEGIN INSERT INTO occupancy_change(parking_lot, delta) VALUES (OLD.parking_lot, -1); END;",
+                    "CREATE TABLE occupancy_snapshot(" +
+                            "id INTEGER PRIMARY KEY CHECK ( id = 1 )," +
+                            "database_id INTEGER NOT NULL," +
+                            "pruned INTEGER NOT NULL" +
+                            ");",
+                    "INSERT INTO occupancy_snapshot(id, database_id, pruned) VALUES (1, random(), 0);"
+            )
+    );
+
+    /**
+     * Bring the database schema to the latest version
+     *
+     * @param connection Writer connection
+     */
+    public static void migrate(CachedConnection connection) throws SQLException {
+        int version = getVersion(connection);
+
+        for (int i = version; i < MIGRATIONS.size(); i++) {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                MIGRATIONS.get(i).apply(connection);
+                statement.executeUpdate("PRAGMA user_version = " + (i + 1) + ";");
+                connection.commit();
+
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw new SQLException("Migration to version " + (i + 1) + " failed", e);
+
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static int getVersion(CachedConnection connection) throws SQLException {
+        try (
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("PRAGMA user_version;")
+        ) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Replace the ticket table by a WITHOUT ROWID table with the given columns, which stores rows in primary key order.
+     * IDs were stored least significant byte first, reversing their bytes converts them to the current order.
+     * Indexes of the table are dropped with it.
+     */
+    private static void rebuildClustered(CachedConnection connection, String table, String columns) throws SQLException {
+        String clusteredTable = table + "_clustered";
+
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE " + clusteredTable + "(" + columns + ") WITHOUT ROWID;");
+        }
+
+        PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO " + clusteredTable + "(id, car_licence_plate, parking_lot, arrival_time, leave_time) " +
+                        "VALUES (?, ?, ?, ?, ?);"
+        );
+        try (
+                Statement statement = connection.createStatement();
+                ResultSet tickets = statement.executeQuery(
+                        "SELECT id, car_licence_plate, parking_lot, arrival_time, leave_time FROM " + table + ";"
+                )
+        ) {
+            while (tickets.next()) {
+                insert.setBytes(1, reversed(tickets.getBytes("id")));
+                for (int column = 2; column <= 5; column++) {
+                    insert.setObject(column, tickets.getObject(column));
+                }
+                insert.executeUpdate();
+            }
+        }
+
+        sql(
+                "DROP TABLE " + table + ";",
+                "ALTER TABLE " + clusteredTable + " RENAME TO " + table + ";"
+        ).apply(connection);
+    }
+
+    static byte[] reversed(byte[] bytes) {
+        byte[] result = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i] = bytes[bytes.length - 1 - i];
+        }
+
+        return result;
+    }
+
+    /**
+     * Migration consisting only of SQL statements run in the given order
+     */
+    private static Migration sql(String... statements) {
+        return connection -> {
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : statements) {
+                    statement.executeUpdate(sql);
+                }
+            }
+        };
+    }
+
+    @FunctionalInterface
+    private interface Migration {
+
+        void apply(CachedConnection connection) throws SQLException;
+
+    }
+
+}
@@ -0,0 +1,242 @@
+package kopr.nikdy.viac.persistance;
+
+import kopr.nikdy.viac.entities.ParkingLot;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * In memory count of occupied slots of every parking lot, loaded from the stores at startup.
+ * A slot is reserved before the ticket is saved and released after the ticket is removed,
+ * so the capacity of a parking lot is never exceeded even when many gates add tickets at once.
+ * <p>
+ * On the actor lanes the ticket actor owning a parking lot counts its slots itself and is the only one changing them,
+ * it {@link #publish}es the count here for readers on other threads. Without the actors the slots are reserved here directly.
+ */
+public class Occupancy {
+
+    private static final Map<Integer, Slots> parkingLots = new ConcurrentHashMap<>();
+
+    /**
+     * Told the ID of every parking lot whose occupancy changed, called by the writing thread so it must not block
+     */
+    private static volatile IntConsumer changeListener = id -> {
+    };
+
+    /**
+     * @param listener Told the ID of every parking lot whose occupancy changed, must not block
+     */
+    public static void setChangeListener(IntConsumer listener) {
+        changeListener = listener;
+    }
+
+    /**
+     * Load capacities and number of not removed tickets of all parking lots from the stores
+     */
+    public static void initialize(LotStore lotStore, TicketStore ticketStore) throws SQLException {
+        initialize(lotStore.getParkingLotCapacities(), ticketStore.getOpenTicketCounts());
+    }
+
+    /**
+     * Load capacities and number of not removed tickets of all parking lots from a snapshot
+     */
+    public static void initialize(OccupancySnapshot snapshot) {
+        initialize(snapshot.getCapacities(), snapshot.getOpenTickets());
+    }
+
+    private static void initialize(Map<Integer, Integer> capacities, Map<Integer, Integer> openTickets) {
+        parkingLots.clear();
+        capacities.forEach((id, capacity) -> parkingLots.put(id, new Slots(capacity, openTickets.getOrDefault(id, 0))));
+    }
+
+    /**
+     * Start tracking a newly created, empty parking lot
+     */
+    public static void addParkingLot(ParkingLot parkingLot) {
+        addParkingLot(parkingLot, 0);
+    }
+
+    /**
+     * Start tracking a parking lot with tickets, like one moved from another node of the cluster
+     */
+    public static void addParkingLot(ParkingLot parkingLot, int occupied) {
+        parkingLots.put(parkingLot.getId(), new Slots(parkingLot.getCapacity(), occupied));
+        changeListener.accept(parkingLot.getId());
+    }
+
+    /**
+     * Stop tracking a parking lot moved to another node of the cluster
+     */
+    public static void removeParkingLot(Integer id) {
+        parkingLots.remove(id);
+        changeListener.accept(id);
+    }
+
+    /**
+     * Atomically take one free slot of the parking lot
+     *
+     * @param id Id of parking lot to reserve the slot at
+     * @return false if the parking lot is full or doesn't exist
+     */
+    public static boolean tryReserve(Integer id) {
+        Slots slots = id == null ? null : parkingLots.get(id);
+        if (slots == null || !slots.tryReserve()) {
+            return false;
+        }
+
+        changeListener.accept(id);
+        return true;
+    }
+
+    /**
+     * Atomically take free slots for several tickets of the parking lot at once, as many as there are
+     *
+     * @param id    Id of parking lot to reserve the slots at
+     * @param count Number of slots wanted
+     * @return Number of slots reserved, 0 if the parking lot is full or doesn't exist
+     */
+    public static int tryReserve(Integer id, int count) {
+        Slots slots = id == null ? null : parkingLots.get(id);
+        int reserved = slots == null ? 0 : slots.tryReserve(count);
+        if (reserved > 0) {
+            changeListener.accept(id);
+        }
+
+        return reserved;
+    }
+
+    /**
+     * Take one slot without checking the capacity, for tickets that already exist like the imported ones.
+     * Parking lot over its capacity stays full until enough tickets are removed.
+     *
+     * @param id Id of parking lot to take the slot at
+     */
+    public static void occupy(Integer id) {
+        Slots slots = parkingLots.get(id);
+        if (slots != null) {
+            slots.occupy();
+            changeListener.accept(id);
+        }
+    }
+
+    /**
+     * Give back a slot taken by {@link #tryReserve(Integer)} or by a ticket that was removed
+     *
+     * @param id Id of parking lot to release the slot at
+     */
+    public static void release(Integer id) {
+        Slots slots = parkingLots.get(id);
+        if (slots != null) {
+            slots.release();
+            changeListener.accept(id);
+        }
+    }
+
+    /**
+     * Slots of the parking lot for its owner, which counts them itself and publishes the count by {@link #publish}.
+     * Parking lot added again, like one moved back from another node, gets new slots with the count of its tickets.
+     *
+     * @return null if parking lot with such id doesn't exist
+     */
+    public static Slots getSlots(Integer id) {
+        return id == null ? null : parkingLots.get(id);
+    }
+
+    /**
+     * Show the count of the owner of the parking lot to the readers, ignored if the slots were replaced in the meantime
+     *
+     * @param slots    Slots the owner got by {@link #getSlots(Integer)}
+     * @param occupied Occupied slots counted by the owner
+     */
+    public static void publish(Integer id, Slots slots, int occupied) {
+        if (parkingLots.get(id) == slots) {
+            slots.occupied.set(occupied);
+            changeListener.accept(id);
+        }
+    }
+
+    /**
+     * @param id Id of parking lot to get remaining capacity
+     * @return Number of free slots on the parking lot, -1 if parking lot with such id doesn't exist
+     */
+    public static int getRemainingCapacity(Integer id) {
+        Slots slots = parkingLots.get(id);
+        return slots == null ? -1 : slots.getRemaining();
+    }
+
+    /**
+     * @param id Id of parking lot to get usage of
+     * @return Occupied slots in percent of the capacity, like {@link LotStore#getUsagesInPercent}, null if parking lot with such id doesn't exist
+     */
+    public static Double getUsageInPercent(Integer id) {
+        Slots slots = parkingLots.get(id);
+        return slots == null ? null : slots.getUsageInPercent();
+    }
+
+    public static class Slots {
+
+        private final int capacity;
+
+        private final AtomicInteger occupied;
+
+        private Slots(int capacity, int occupied) {
+            this.capacity = capacity;
+            this.occupied = new AtomicInteger(occupied);
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public int getOccupied() {
+            return occupied.get();
+        }
+
+        private boolean tryReserve() {
+            int current;
+            do {
+                current = occupied.get();
+                if (current >= capacity) {
+                    return false;
+                }
+            } while (!occupied.compareAndSet(current, current + 1));
+
+            return true;
+        }
+
+        private int tryReserve(int count) {
+            int current;
+            int reserved;
+            do {
+                current = occupied.get();
+                reserved = Math.max(Math.min(count, capacity - current), 0);
+                if (reserved == 0) {
+                    return 0;
+                }
+            } while (!occupied.compareAndSet(current, current + reserved));
+
+            return reserved;
+        }
+
+        private void occupy() {
+            occupied.incrementAndGet();
+        }
+
+        private void release() {
+            occupied.updateAndGet(current -> Math.max(current - 1, 0));
+        }
+
+        private int getRemaining() {
+            return Math.max(capacity - occupied.get(), 0);
+        }
+
+        private double getUsageInPercent() {
+            return capacity == 0 ? 0 : occupied.get() / (double) capacity * 100;
+        }
+
+    }
+
+}
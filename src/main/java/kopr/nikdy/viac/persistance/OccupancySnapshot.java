@@ -0,0 +1,176 @@
+package kopr.nikdy.viac.persistance;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Capacities and open ticket counts of all parking lots as of one occupancy change of the database.
+ * File of the snapshot is the header, id, capacity and open tickets of every parking lot and CRC32 of all of it.
+ */
+public class OccupancySnapshot {
+
+    private static final int MAGIC = 0x4B4F4343;
+
+    private static final int VERSION = 1;
+
+    /**
+     * Magic, version, database id, mark and number of parking lots
+     */
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4;
+
+    private static final int LOT_BYTES = 4 + 4 + 4;
+
+    /**
+     * Random id of the database the snapshot was taken from, a snapshot of another database is never loaded
+     */
+    private final long databaseId;
+
+    /**
+     * Sequence number of the last occupancy change included in the snapshot
+     */
+    private final long mark;
+
+    private final Map<Integer, Integer> capacities;
+
+    private final Map<Integer, Integer> openTickets;
+
+    OccupancySnapshot(long databaseId, long mark, Map<Integer, Integer> capacities, Map<Integer, Integer> openTickets) {
+        this.databaseId = databaseId;
+        this.mark = mark;
+        this.capacities = capacities;
+        this.openTickets = openTickets;
+    }
+
+    public long getDatabaseId() {
+        return databaseId;
+    }
+
+    public long getMark() {
+        return mark;
+    }
+
+    /**
+     * @return Map of Parking lot Id -> number of slots
+     */
+    public Map<Integer, Integer> getCapacities() {
+        return Collections.unmodifiableMap(capacities);
+    }
+
+    /**
+     * @return Map of Parking lot Id -> number of open tickets, parking lots without them are missing
+     */
+    public Map<Integer, Integer> getOpenTickets() {
+        return Collections.unmodifiableMap(openTickets);
+    }
+
+    /**
+     * @param currentCapacities Capacities of all parking lots now, parking lots missing in them are dropped
+     * @param deltas            Parking lot Id -> change of open ticket count after the snapshot
+     * @return Snapshot including the changes up to the new mark
+     */
+    OccupancySnapshot withChanges(long newMark, Map<Integer, Integer> currentCapacities, Map<Integer, Integer> deltas) {
+        Map<Integer, Integer> changedOpenTickets = new HashMap<>(openTickets);
+        deltas.forEach((id, delta) -> changedOpenTickets.merge(id, delta, (count, change) -> count + change == 0 ? null : count + change));
+        changedOpenTickets.keySet().retainAll(currentCapacities.keySet());
+
+        return new OccupancySnapshot(databaseId, newMark, currentCapacities, changedOpenTickets);
+    }
+
+    /**
+     * Map the snapshot file and read it
+     *
+     * @return null if there is no snapshot file or it is damaged
+     */
+    public static OccupancySnapshot read(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        if (buffer.capacity() < HEADER_BYTES + 4 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            return null;
+        }
+
+        int lots = buffer.getInt(HEADER_BYTES - 4);
+        int length = HEADER_BYTES + lots * LOT_BYTES;
+        if (lots < 0 || buffer.capacity() != length + 4 || buffer.getInt(length) != checksum(buffer, length)) {
+            return null;
+        }
+
+        buffer.position(8);
+        long databaseId = buffer.getLong();
+        long mark = buffer.getLong();
+        buffer.getInt();
+
+        Map<Integer, Integer> capacities = new HashMap<>(lots * 2);
+        Map<Integer, Integer> openTickets = new HashMap<>(lots * 2);
+        for (int i = 0; i < lots; i++) {
+            int id = buffer.getInt();
+            capacities.put(id, buffer.getInt());
+
+            int open = buffer.getInt();
+            if (open != 0) {
+                openTickets.put(id, open);
+            }
+        }
+
+        return new OccupancySnapshot(databaseId, mark, capacities, openTickets);
+    }
+
+    /**
+     * Write the snapshot next to the file and replace the file by it, so a crash leaves either the old or the new snapshot
+     */
+    public void write(Path file) throws IOException {
+        int length = HEADER_BYTES + capacities.size() * LOT_BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate(length + 4);
+
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(databaseId);
+        buffer.putLong(mark);
+        buffer.putInt(capacities.size());
+        capacities.forEach((id, capacity) -> {
+            buffer.putInt(id);
+            buffer.putInt(capacity);
+            buffer.putInt(openTickets.getOrDefault(id, 0));
+        });
+        buffer.putInt(checksum(buffer, length));
+        buffer.flip();
+
+        Path written = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(written,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+
+        Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int checksum(ByteBuffer buffer, int length) {
+        ByteBuffer content = buffer.duplicate();
+        content.position(0).limit(length);
+
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        return (int) crc.getValue();
+    }
+
+}
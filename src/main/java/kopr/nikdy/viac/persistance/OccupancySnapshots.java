@@ -0,0 +1,81 @@
+package kopr.nikdy.viac.persistance;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the occupancy snapshot file up to date, so startup loads it and replays only the changes made after it
+ * instead of counting open tickets of the whole ticket table.
+ * The snapshot is caught up from the change log of the database, not from {@link Occupancy},
+ * whose counts also include reserved slots of tickets not saved yet.
+ */
+public class OccupancySnapshots {
+
+    private final Path file;
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+    private OccupancySnapshot snapshot;
+
+    public OccupancySnapshots(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the snapshot file and catch it up with the database, count the tickets if there is no usable snapshot
+     */
+    public synchronized OccupancySnapshot load() throws SQLException, IOException {
+        long start = System.nanoTime();
+
+        OccupancySnapshot stored = OccupancySnapshot.read(file);
+        snapshot = stored == null ? null : Database.catchUpOccupancy(stored);
+
+        if (snapshot != null) {
+            System.err.println("Occupancy loaded from snapshot, replayed " + (snapshot.getMark() - stored.getMark())
+                    + " changes in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        } else {
+            snapshot = Database.scanOccupancy();
+            System.err.println("Occupancy counted from tickets in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Write the snapshot periodically, changes replayed at startup are at most one interval old
+     */
+    public void start(Duration interval) {
+        writer.scheduleWithFixedDelay(this::write, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Catch the snapshot up, write it and drop the changes it includes from the database
+     */
+    public synchronized void write() {
+        try {
+            OccupancySnapshot caughtUp = Database.catchUpOccupancy(snapshot);
+            snapshot = caughtUp == null ? Database.scanOccupancy() : caughtUp;
+
+            snapshot.write(file);
+            Database.pruneOccupancyChanges(snapshot.getMark());
+
+        } catch (SQLException | IOException e) {
+            System.err.println("Writing occupancy snapshot failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the last snapshot, called at shutdown while the database is still open
+     */
+    public void close() {
+        writer.shutdown();
+        write();
+    }
+
+}
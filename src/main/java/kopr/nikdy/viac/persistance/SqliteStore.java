@@ -0,0 +1,129 @@
+package kopr.nikdy.viac.persistance;
+
+import kopr.nikdy.viac.entities.ParkingLot;
+import kopr.nikdy.viac.entities.ParkingTicket;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Stores backed by the SQLite {@link Database}, which has to be initialized first
+ */
+public class SqliteStore implements TicketStore, LotStore {
+
+    @Override
+    public void addParkingLot(ParkingLot parkingLot) throws SQLException {
+        Database.addParkingLot(parkingLot);
+    }
+
+    /**
+     * Save parking lot keeping its ID
+     */
+    public void importParkingLot(ParkingLot parkingLot) throws SQLException {
+        Database.importParkingLot(parkingLot);
+    }
+
+    /**
+     * @return null if there is no parking lot with the ID
+     */
+    public ParkingLot findParkingLot(int id) throws SQLException {
+        return Database.findParkingLot(id);
+    }
+
+    /**
+     * Pass every ticket of the parking lot to the sink
+     */
+    public void exportParkingLotTickets(int id, TicketSink sink) throws SQLException, IOException {
+        Database.exportParkingLotTickets(id, sink);
+    }
+
+    /**
+     * Delete parking lot together with its tickets and statistics
+     */
+    public void deleteParkingLot(int id) throws SQLException, IOException {
+        Database.deleteParkingLot(id);
+    }
+
+    @Override
+    public Map<Integer, Integer> getParkingLotCapacities() throws SQLException {
+        return Database.getParkingLotCapacities();
+    }
+
+    @Override
+    public Map<Integer, Double> getUsagesInPercent(List<Integer> ids) throws SQLException {
+        return Database.getUsagesInPercent(ids);
+    }
+
+    @Override
+    public int getParkingLotVisitorsDuringDay(Integer id, LocalDate date) throws SQLException {
+        return Database.getParkingLotVisitorsDuringDay(id, date);
+    }
+
+    @Override
+    public void inTransaction(TransactionWork work) throws SQLException, IOException {
+        Database.inTransaction(work);
+    }
+
+    @Override
+    public void addTicket(ParkingTicket ticket) throws SQLException, IOException {
+        Database.addTicket(ticket);
+    }
+
+    @Override
+    public void addTickets(List<ParkingTicket> tickets) throws SQLException, IOException {
+        Database.addTickets(tickets);
+    }
+
+    @Override
+    public void exportTickets(TicketSink sink) throws SQLException, IOException {
+        Database.exportTickets(sink);
+    }
+
+    @Override
+    public int removeTicket(UUID id) throws SQLException, IOException {
+        return Database.removeTicket(id);
+    }
+
+    @Override
+    public int removeTicket(UUID id, LocalDateTime leaveTime) throws SQLException, IOException {
+        return Database.removeTicket(id, leaveTime);
+    }
+
+    /**
+     * @return Whether the ticket is saved, open or removed
+     */
+    public boolean ticketExists(UUID id) throws SQLException {
+        return Database.ticketExists(id);
+    }
+
+    /**
+     * @return Ticket that wasn't removed yet, null if there is no such ticket
+     */
+    public ParkingTicket findOpenTicket(UUID id) throws SQLException {
+        return Database.findOpenTicket(id);
+    }
+
+    public long getJournalPosition() throws SQLException {
+        return Database.getJournalPosition();
+    }
+
+    public void setJournalPosition(long position) throws SQLException {
+        Database.setJournalPosition(position);
+    }
+
+    @Override
+    public Map<Integer, Integer> getOpenTicketCounts() throws SQLException {
+        return Database.getOpenTicketCounts();
+    }
+
+    @Override
+    public int archiveClosedTickets(int chunkSize) throws SQLException, IOException {
+        return Database.archiveClosedTickets(chunkSize);
+    }
+
+}
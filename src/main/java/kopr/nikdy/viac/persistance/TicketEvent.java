@@ -0,0 +1,126 @@
+package kopr.nikdy.viac.persistance;
+
+import kopr.nikdy.viac.entities.ParkingTicket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.UUID;
+
+/**
+ * Added or removed ticket as it is written in the {@link TicketJournal}.
+ * Times are kept as written, so replaying the event gives the same ticket as applying it right away.
+ */
+public class TicketEvent {
+
+    /**
+     * Type, ID, parking lot, arrival time and length of licence plate
+     */
+    private static final int ADD_BYTES = 1 + 16 + 4 + 12 + 2;
+
+    /**
+     * Type, ID and leave time
+     */
+    private static final int REMOVE_BYTES = 1 + 16 + 12;
+
+    /**
+     * Longest licence plate in UTF-8, its length is written as an unsigned short
+     */
+    static final int MAX_LICENCE_PLATE_BYTES = 0xFFFF;
+
+    public enum Type {
+        ADD, REMOVE
+    }
+
+    private final Type type;
+
+    /**
+     * Whole ticket for an added ticket, only ID and leave time for a removed one
+     */
+    private final ParkingTicket ticket;
+
+    private TicketEvent(Type type, ParkingTicket ticket) {
+        this.type = type;
+        this.ticket = ticket;
+    }
+
+    public static TicketEvent added(ParkingTicket ticket) {
+        return new TicketEvent(Type.ADD, ticket);
+    }
+
+    public static TicketEvent removed(UUID id, LocalDateTime leaveTime) {
+        ParkingTicket ticket = new ParkingTicket();
+        ticket.setId(id);
+        ticket.setLeaveTime(leaveTime);
+
+        return new TicketEvent(Type.REMOVE, ticket);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public ParkingTicket getTicket() {
+        return ticket;
+    }
+
+    /**
+     * Type, ID, then parking lot, arrival time and licence plate of an added ticket or leave time of a removed one
+     *
+     * @throws IllegalArgumentException if the licence plate is too long
+     */
+    byte[] encode() {
+        byte[] licencePlate = type == Type.ADD ? ticket.getCarLicencePlate().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (licencePlate.length > MAX_LICENCE_PLATE_BYTES) {
+            throw new IllegalArgumentException("Licence plate of " + licencePlate.length + " bytes is too long");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(type == Type.ADD ? ADD_BYTES + licencePlate.length : REMOVE_BYTES);
+
+        buffer.put((byte) type.ordinal());
+        buffer.putLong(ticket.getId().getMostSignificantBits());
+        buffer.putLong(ticket.getId().getLeastSignificantBits());
+
+        if (type == Type.ADD) {
+            buffer.putInt(ticket.getParkingLotId());
+            putTime(buffer, ticket.getArrivalTime());
+            buffer.putShort((short) licencePlate.length);
+            buffer.put(licencePlate);
+
+        } else {
+            putTime(buffer, ticket.getLeaveTime());
+        }
+
+        return buffer.array();
+    }
+
+    static TicketEvent decode(ByteBuffer payload) {
+        Type type = Type.values()[payload.get()];
+        UUID id = new UUID(payload.getLong(), payload.getLong());
+
+        if (type == Type.REMOVE) {
+            return removed(id, getTime(payload));
+        }
+
+        ParkingTicket ticket = new ParkingTicket();
+        ticket.setId(id);
+        ticket.setParkingLotId(payload.getInt());
+        ticket.setArrivalTime(getTime(payload));
+
+        byte[] licencePlate = new byte[payload.getShort() & 0xFFFF];
+        payload.get(licencePlate);
+        ticket.setCarLicencePlate(new String(licencePlate, StandardCharsets.UTF_8));
+
+        return added(ticket);
+    }
+
+    private static void putTime(ByteBuffer buffer, LocalDateTime time) {
+        buffer.putLong(time.toEpochSecond(ZoneOffset.UTC));
+        buffer.putInt(time.getNano());
+    }
+
+    private static LocalDateTime getTime(ByteBuffer buffer) {
+        return LocalDateTime.ofEpochSecond(buffer.getLong(), buffer.getInt(), ZoneOffset.UTC);
+    }
+
+}
@@ -0,0 +1,67 @@
+package kopr.nikdy.viac.persistance;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of time ordered ticket IDs in the UUID version 7 layout:
+ * 48 bits of unix time in milliseconds, version, 12 bits of sequence, variant, 32 bits of parking lot ID and 30 random bits.
+ * Stored by {@link Convert#toBytes(UUID)} they sort in the order they were generated,
+ * so new tickets are appended to the end of the primary key instead of landing at random pages.
+ * The parking lot lets a removal be routed to the actor owning the lot without reading the ticket.
+ * Random bits come from {@link ThreadLocalRandom}, IDs are unique but not meant to be unguessable.
+ */
+public class TicketIds {
+
+    private static final int SEQUENCE_BITS = 12;
+
+    private static final long VERSION = 0x7000L;
+
+    private static final long VARIANT = 0x8000000000000000L;
+
+    private static final int RANDOM_BITS = 30;
+
+    private static final long RANDOM_MASK = (1L << RANDOM_BITS) - 1;
+
+    private static final long PARKING_LOT_MASK = 0xFFFFFFFFL;
+
+    /**
+     * Milliseconds shifted by sequence bits together with the sequence of the last generated ID.
+     * When more than 4096 IDs are generated in one millisecond, the sequence overflows into the next millisecond,
+     * which keeps the IDs ordered at the cost of running slightly ahead of the clock.
+     */
+    private static final AtomicLong lastTimeAndSequence = new AtomicLong();
+
+    /**
+     * @param parkingLotId Parking lot of the ticket kept in the ID, null is kept as 0
+     */
+    public static UUID next(Integer parkingLotId) {
+        long parkingLot = parkingLotId == null ? 0 : parkingLotId & PARKING_LOT_MASK;
+
+        long now = System.currentTimeMillis() << SEQUENCE_BITS;
+        long timeAndSequence = lastTimeAndSequence.updateAndGet(last -> Math.max(now, last + 1));
+
+        long timestamp = timeAndSequence >>> SEQUENCE_BITS;
+        long sequence = timeAndSequence & ((1L << SEQUENCE_BITS) - 1);
+
+        long mostSignificantBits = timestamp << 16 | VERSION | sequence;
+        long leastSignificantBits = VARIANT
+                | parkingLot << RANDOM_BITS
+                | ThreadLocalRandom.current().nextLong() & RANDOM_MASK;
+
+        return new UUID(mostSignificantBits, leastSignificantBits);
+    }
+
+    /**
+     * Parking lot kept in the ID by {@link #next(Integer)}.
+     * IDs generated elsewhere, like imported ones or IDs of older tickets, give an arbitrary number.
+     *
+     * @param id Ticket ID
+     * @return Parking lot the ID was generated for
+     */
+    public static int getParkingLotId(UUID id) {
+        return (int) (id.getLeastSignificantBits() >>> RANDOM_BITS & PARKING_LOT_MASK);
+    }
+
+}
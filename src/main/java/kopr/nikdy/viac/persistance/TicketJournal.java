@@ -0,0 +1,248 @@
+package kopr.nikdy.viac.persistance;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of {@link TicketEvent}s in memory mapped segment files.
+ * Every record is the length of its payload, CRC32 of the payload and the payload. Segments are created filled with zeros,
+ * so zero length marks the end of the written records. When a record doesn't fit in the segment, a new one is started.
+ * Position of a record is the base position of its segment, which is also the segment file name, plus its offset.
+ * Not thread safe, the owner has to serialize the calls.
+ */
+public class TicketJournal {
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final int HEADER_BYTES = 8;
+
+    private final Path directory;
+
+    /**
+     * Size of newly created segments, existing ones keep the size they were created with
+     */
+    private final int segmentSize;
+
+    /**
+     * Base position -> size of every segment in the directory
+     */
+    private final TreeMap<Long, Integer> segments = new TreeMap<>();
+
+    private long segmentBase;
+
+    private MappedByteBuffer segment;
+
+    /**
+     * Segments filled since the last force, they are written to the disk by the next force too
+     */
+    private final List<MappedByteBuffer> unforcedSegments = new ArrayList<>();
+
+    public TicketJournal(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Pass every event written after the position to the consumer and get ready to append after the last of them.
+     * A record cut by a crash at the end of the journal is erased, as it was never acknowledged.
+     *
+     * @param fromPosition Position after the last event already applied
+     * @return Position of the end of the journal
+     * @throws IOException Journal is corrupted before its last segment
+     */
+    public long open(long fromPosition, EventConsumer consumer) throws IOException, SQLException {
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), (int) Files.size(file));
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            startSegment(fromPosition);
+            return fromPosition;
+        }
+
+        Long first = segments.floorKey(fromPosition);
+        if (first == null) {
+            first = segments.firstKey();
+        }
+
+        for (Map.Entry<Long, Integer> entry : segments.tailMap(first, true).entrySet()) {
+            long base = entry.getKey();
+            boolean last = base == segments.lastKey();
+            MappedByteBuffer buffer = map(base, entry.getValue());
+            buffer.position((int) Math.min(Math.max(fromPosition - base, 0), buffer.capacity()));
+
+            while (true) {
+                int offset = buffer.position();
+                int length = buffer.remaining() >= HEADER_BYTES ? buffer.getInt(offset) : 0;
+                if (length == 0) {
+                    break;
+                }
+
+                ByteBuffer payload = readRecord(buffer, length);
+                if (payload == null) {
+                    if (!last) {
+                        throw new IOException("Journal segment " + base + " is corrupted at offset " + offset);
+                    }
+
+                    erase(buffer, offset);
+                    break;
+                }
+
+                consumer.accept(TicketEvent.decode(payload), base + buffer.position());
+            }
+
+            if (last) {
+                segmentBase = base;
+                segment = buffer;
+            }
+        }
+
+        return segmentBase + segment.position();
+    }
+
+    /**
+     * Write the events of a transaction after the last one, they are durable only after the next {@link #force()}.
+     * All of them are encoded and go to one segment, which has room for them before the first is written,
+     * so a failure leaves none of them in the journal to be replayed.
+     *
+     * @return Positions after each of the events
+     */
+    public long[] append(List<TicketEvent> events) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(events.size());
+        long length = 0;
+        for (TicketEvent event : events) {
+            byte[] payload = event.encode();
+            payloads.add(payload);
+            length += HEADER_BYTES + payload.length;
+        }
+
+        if (length > segmentSize) {
+            throw new IOException("Journal records of " + length + " bytes don't fit in a segment");
+        }
+
+        if (segment.remaining() < length) {
+            MappedByteBuffer filled = segment;
+            startSegment(segmentBase + segment.capacity());
+            unforcedSegments.add(filled);
+        }
+
+        long[] positions = new long[payloads.size()];
+        for (int i = 0; i < payloads.size(); i++) {
+            CRC32 crc = new CRC32();
+            crc.update(payloads.get(i));
+
+            segment.putInt(payloads.get(i).length);
+            segment.putInt((int) crc.getValue());
+            segment.put(payloads.get(i));
+
+            positions[i] = segmentBase + segment.position();
+        }
+
+        return positions;
+    }
+
+    /**
+     * Write all appended events to the disk
+     */
+    public void force() {
+        unforcedSegments.forEach(MappedByteBuffer::force);
+        unforcedSegments.clear();
+        segment.force();
+    }
+
+    /**
+     * Delete segments with all their events before the position, they are no longer needed for replay
+     */
+    public void deleteBefore(long position) throws IOException {
+        while (segments.firstKey() != segmentBase && segments.firstKey() + segments.firstEntry().getValue() <= position) {
+            Files.deleteIfExists(getSegmentPath(segments.pollFirstEntry().getKey()));
+        }
+    }
+
+    /**
+     * The segment is mapped before anything else changes, a failure keeps appending to the current one
+     */
+    private void startSegment(long base) throws IOException {
+        MappedByteBuffer started = map(base, segmentSize);
+        segments.put(base, segmentSize);
+        segmentBase = base;
+        segment = started;
+    }
+
+    /**
+     * Mapping stays valid after the channel is closed
+     */
+    private MappedByteBuffer map(long base, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(getSegmentPath(base),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * @return Payload of the record at the buffer position moving the position after it, null if the record is damaged
+     */
+    private static ByteBuffer readRecord(MappedByteBuffer buffer, int length) {
+        int offset = buffer.position();
+        if (length < 0 || length > buffer.remaining() - HEADER_BYTES) {
+            return null;
+        }
+
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(offset + HEADER_BYTES).limit(offset + HEADER_BYTES + length);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+            return null;
+        }
+
+        buffer.position(offset + HEADER_BYTES + length);
+        return payload.slice();
+    }
+
+    /**
+     * Zero the rest of the segment, so the damaged record isn't mistaken for a written one later
+     */
+    private static void erase(MappedByteBuffer buffer, int offset) {
+        buffer.position(offset);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0);
+        }
+        buffer.position(offset);
+        buffer.force();
+    }
+
+    private Path getSegmentPath(long base) {
+        return directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+    }
+
+    @FunctionalInterface
+    public interface EventConsumer {
+
+        /**
+         * @param position Position after the event
+         */
+        void accept(TicketEvent event, long position) throws SQLException, IOException;
+
+    }
+
+}
@@ -0,0 +1,15 @@
+package kopr.nikdy.viac.persistance;
+
+import kopr.nikdy.viac.entities.ParkingTicket;
+
+import java.io.IOException;
+
+/**
+ * Receiver of exported tickets, called once for every ticket while it is read from the store
+ */
+@FunctionalInterface
+public interface TicketSink {
+
+    void accept(ParkingTicket ticket) throws IOException;
+
+}
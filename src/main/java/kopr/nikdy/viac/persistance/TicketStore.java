@@ -0,0 +1,63 @@
+package kopr.nikdy.viac.persistance;
+
+import kopr.nikdy.viac.entities.ParkingTicket;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Storage of parking tickets
+ */
+public interface TicketStore {
+
+    /**
+     * Run the writes together, so they are persisted at once
+     */
+    void inTransaction(TransactionWork work) throws SQLException, IOException;
+
+    void addTicket(ParkingTicket ticket) throws SQLException, IOException;
+
+    /**
+     * Save open and closed tickets in one transaction, closed tickets are counted in visitors of their day
+     */
+    void addTickets(List<ParkingTicket> tickets) throws SQLException, IOException;
+
+    /**
+     * Pass every stored ticket to the sink, reading them one by one instead of loading all of them
+     */
+    void exportTickets(TicketSink sink) throws SQLException, IOException;
+
+    /**
+     * Set leave time of the ticket to now
+     *
+     * @return Id of parking lot the ticket belonged to
+     * @throws SQLException Ticket doesn't exist or was already removed
+     */
+    int removeTicket(UUID id) throws SQLException, IOException;
+
+    /**
+     * Set leave time of the ticket to the time the car left, for removals reported later, like the ones of a gate resync
+     *
+     * @return Id of parking lot the ticket belonged to
+     * @throws SQLException Ticket doesn't exist or was already removed
+     */
+    int removeTicket(UUID id, LocalDateTime leaveTime) throws SQLException, IOException;
+
+    /**
+     * @return Map of Parking lot Id -> number of tickets that weren't removed yet, parking lots without them are missing
+     */
+    Map<Integer, Integer> getOpenTicketCounts() throws SQLException;
+
+    /**
+     * Move closed tickets out of the way of open ticket queries
+     *
+     * @param chunkSize Most tickets moved at once
+     * @return Number of moved tickets, 0 if the storage keeps no closed tickets apart
+     */
+    int archiveClosedTickets(int chunkSize) throws SQLException, IOException;
+
+}
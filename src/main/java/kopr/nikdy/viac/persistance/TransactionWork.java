@@ -0,0 +1,14 @@
+package kopr.nikdy.viac.persistance;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Database calls that should be committed together, see {@link Database#inTransaction(TransactionWork)}
+ */
+@FunctionalInterface
+public interface TransactionWork {
+
+    void execute() throws SQLException, IOException;
+
+}
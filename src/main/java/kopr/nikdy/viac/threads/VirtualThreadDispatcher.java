@@ -0,0 +1,221 @@
+package kopr.nikdy.viac.threads;
+
+import kopr.nikdy.viac.actions.*;
+import kopr.nikdy.viac.persistance.LotStore;
+import kopr.nikdy.viac.persistance.Occupancy;
+import kopr.nikdy.viac.persistance.TicketStore;
+import org.eclipse.jetty.http.HttpStatus;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Execution mode without actors, every action runs on its own virtual thread calling the stores directly.
+ * Blocking on the database only parks the virtual thread, so there is no need for lanes or dispatchers.
+ * The writer connection and the journal are guarded by reentrant locks instead of monitors,
+ * so threads waiting for a write don't pin the carrier threads.
+ * Writes are not group committed and usage requests are not coalesced, every action is one store call.
+ * On Java older than 21 actions run on platform threads instead, one per action being processed.
+ */
+public class VirtualThreadDispatcher implements ActionDispatcher {
+
+    private final TicketStore ticketStore;
+
+    private final LotStore lotStore;
+
+    /**
+     * Number of imported tickets saved in one transaction
+     */
+    private final int importChunkSize;
+
+    private final ExecutorService executor = newThreadPerTaskExecutor();
+
+    private final ScheduledExecutorService archiver = Executors.newSingleThreadScheduledExecutor();
+
+    public VirtualThreadDispatcher(TicketStore ticketStore, LotStore lotStore, int importChunkSize,
+                                   int archiveChunkSize, Duration archiveInterval) {
+        this.ticketStore = ticketStore;
+        this.lotStore = lotStore;
+        this.importChunkSize = importChunkSize;
+
+        archiver.scheduleWithFixedDelay(() -> archiveClosedTickets(archiveChunkSize),
+                archiveInterval.toMillis(), archiveInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void dispatch(Action action) {
+        executor.execute(() -> {
+            try {
+                if (!action.dropIfExpired()) {
+                    run(action);
+                }
+
+            } catch (RuntimeException e) {
+                action.setErrorResponse("Failed processing request", e, HttpStatus.Code.INTERNAL_SERVER_ERROR);
+
+            } finally {
+                action.complete();
+            }
+        });
+    }
+
+    private void run(Action action) {
+        if (action instanceof AddTicketAction) {
+            addTicket((AddTicketAction) action);
+
+        } else if (action instanceof RemoveTicketAction) {
+            removeTicket((RemoveTicketAction) action);
+
+        } else if (action instanceof BatchTicketsAction) {
+            writeBatch((BatchTicketsAction) action);
+
+        } else if (action instanceof AddParkingLotAction) {
+            addParkingLot((AddParkingLotAction) action);
+
+        } else if (action instanceof GetParkingLotUsagesInPercentAction) {
+            getUsagesInPercent((GetParkingLotUsagesInPercentAction) action);
+
+        } else if (action instanceof GetParkingLotVisitorsInDayAction) {
+            getVisitorsDuringDay((GetParkingLotVisitorsInDayAction) action);
+
+        } else if (action instanceof ImportTicketsAction) {
+            importTickets((ImportTicketsAction) action);
+
+        } else if (action instanceof ExportTicketsAction) {
+            ((ExportTicketsAction) action).exportFrom(ticketStore);
+        }
+    }
+
+    private void addTicket(AddTicketAction action) {
+        if (!action.claim()) {
+            return;
+        }
+
+        Integer parkingLotId = action.getTicket().getParkingLotId();
+        if (!Occupancy.tryReserve(parkingLotId)) {
+            action.setErrorResponse("Cannot add ticket to a full parking lot", HttpStatus.Code.BAD_REQUEST);
+            return;
+        }
+
+        try {
+            ticketStore.addTicket(action.getTicket());
+            action.setResponseBody(action.getTicket());
+
+        } catch (Exception e) {
+            Occupancy.release(parkingLotId);
+            action.setErrorResponse("Adding ticket", e, HttpStatus.Code.BAD_REQUEST);
+        }
+    }
+
+    private void removeTicket(RemoveTicketAction action) {
+        if (!action.claim()) {
+            return;
+        }
+
+        try {
+            Occupancy.release(ticketStore.removeTicket(action.getTicketId()));
+            action.setResponseBody(action.getTicketId());
+
+        } catch (Exception e) {
+            action.setErrorResponse("Failed removing ticket", e, HttpStatus.Code.BAD_REQUEST);
+        }
+    }
+
+    private void writeBatch(BatchTicketsAction action) {
+        if (!action.claim()) {
+            return;
+        }
+
+        try {
+            action.getItems();
+
+        } catch (InvalidRequestParametersException e) {
+            action.setErrorResponse("Invalid ticket batch", e, HttpStatus.Code.BAD_REQUEST);
+            return;
+        }
+
+        action.reserveSlots();
+        try {
+            ticketStore.inTransaction(() -> action.write(ticketStore));
+
+        } catch (Exception e) {
+            action.failWrites(e);
+        }
+
+        action.releaseSlots();
+        action.setResults();
+    }
+
+    private void addParkingLot(AddParkingLotAction action) {
+        try {
+            lotStore.addParkingLot(action.getParkingLot());
+            Occupancy.addParkingLot(action.getParkingLot());
+            action.setResponseBody(action.getParkingLot());
+
+        } catch (Exception e) {
+            action.setErrorResponse("Failed creating parking lot", e, HttpStatus.Code.BAD_REQUEST);
+        }
+    }
+
+    private void getUsagesInPercent(GetParkingLotUsagesInPercentAction action) {
+        try {
+            action.setResponseBody(lotStore.getUsagesInPercent(action.getIds()));
+
+        } catch (SQLException e) {
+            action.setErrorResponse("Failed getting parking lot usages", e, HttpStatus.Code.BAD_REQUEST);
+        }
+    }
+
+    private void getVisitorsDuringDay(GetParkingLotVisitorsInDayAction action) {
+        try {
+            action.setResponseBody(lotStore.getParkingLotVisitorsDuringDay(action.getParkingLotId(), action.getDay()));
+
+        } catch (SQLException e) {
+            action.setErrorResponse("Failed getting parking lot visitors in a day", e, HttpStatus.Code.BAD_REQUEST);
+        }
+    }
+
+    private void importTickets(ImportTicketsAction action) {
+        action.importInto(ticketStore, importChunkSize, occupied -> occupied.forEach((parkingLotId, count) -> {
+            for (int i = 0; i < count; i++) {
+                Occupancy.occupy(parkingLotId);
+            }
+        }));
+    }
+
+    private void archiveClosedTickets(int chunkSize) {
+        try {
+            while (ticketStore.archiveClosedTickets(chunkSize) == chunkSize) {
+                // keep moving full chunks, each of them is a separate transaction
+            }
+
+        } catch (Exception e) {
+            System.err.println("Archiving closed tickets failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() is looked up at runtime, so the code still compiles for Java 11
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) MethodHandles.publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class))
+                    .invoke();
+
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            System.err.println("Virtual threads need Java 21, actions run on platform threads");
+            return Executors.newCachedThreadPool();
+
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed creating virtual thread executor", e);
+        }
+    }
+
+}
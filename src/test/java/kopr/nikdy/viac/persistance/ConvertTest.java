@@ -0,0 +1,101 @@
+package kopr.nikdy.viac.persistance;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ConvertTest {
+
+    /**
+     * Bytes at the edges of the sign, the ones a signed shift or a missing mask gets wrong
+     */
+    private static final int[] EDGE_BYTES = {0x00, 0x7F, 0x80, 0xFF};
+
+    @Test
+    public void bytesRoundTripWithEdgeBytesAtEveryPosition() throws Exception {
+        for (int filler : EDGE_BYTES) {
+            for (int edge : EDGE_BYTES) {
+                for (int position = 0; position < 16; position++) {
+                    byte[] bytes = new byte[16];
+                    Arrays.fill(bytes, (byte) filler);
+                    bytes[position] = (byte) edge;
+
+                    UUID id = Convert.fromBytes(bytes);
+                    assertArrayEquals(Arrays.toString(bytes), bytes, Convert.toBytes(id));
+                    assertEquals(id, Convert.fromBytes(Convert.toBytes(id)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bytesOrderIdsLikeTheirNumbers() throws Exception {
+        List<UUID> ids = edgeIds();
+
+        List<UUID> byNumbers = new ArrayList<>(ids);
+        byNumbers.sort(Comparator
+                .comparing(UUID::getMostSignificantBits, Long::compareUnsigned)
+                .thenComparing(UUID::getLeastSignificantBits, Long::compareUnsigned));
+
+        List<UUID> byBytes = new ArrayList<>(ids);
+        byBytes.sort((first, second) -> Arrays.compareUnsigned(toBytes(first), toBytes(second)));
+
+        assertEquals(byNumbers, byBytes);
+    }
+
+    /**
+     * Migration 5 reverses IDs stored least significant byte first, the result has to be what is stored now
+     */
+    @Test
+    public void reversedOldIdsAreStoredIds() throws Exception {
+        for (UUID id : edgeIds()) {
+            assertArrayEquals(id.toString(), Convert.toBytes(id), Migrations.reversed(leastSignificantByteFirst(id)));
+        }
+    }
+
+    /**
+     * IDs with every combination of the edge bytes at the first and last byte of both halves
+     */
+    private static List<UUID> edgeIds() {
+        List<UUID> ids = new ArrayList<>();
+        for (int first : EDGE_BYTES) {
+            for (int last : EDGE_BYTES) {
+                for (int secondFirst : EDGE_BYTES) {
+                    for (int secondLast : EDGE_BYTES) {
+                        ids.add(new UUID((long) first << 56 | 0x0123456789AB00L | last,
+                                (long) secondFirst << 56 | 0x0123456789AB00L | secondLast));
+                    }
+                }
+            }
+        }
+
+        return ids;
+    }
+
+    private static byte[] leastSignificantByteFirst(UUID id) {
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < Long.BYTES; i++) {
+            bytes[i] = (byte) (id.getLeastSignificantBits() >>> Convert.BITS_IN_BYTE * i);
+            bytes[Long.BYTES + i] = (byte) (id.getMostSignificantBits() >>> Convert.BITS_IN_BYTE * i);
+        }
+
+        return bytes;
+    }
+
+    private static byte[] toBytes(UUID id) {
+        try {
+            return Convert.toBytes(id);
+
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package kopr.nikdy.viac.persistance;
+
+import kopr.nikdy.viac.entities.ParkingTicket;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+public class TicketEventTest {
+
+    @Test
+    public void addedTicketRoundTrip() {
+        ParkingTicket ticket = ticket(0xFFFFFFFF, "KE-123ŽŠ");
+
+        TicketEvent decoded = TicketEvent.decode(ByteBuffer.wrap(TicketEvent.added(ticket).encode()));
+
+        assertEquals(TicketEvent.Type.ADD, decoded.getType());
+        assertEquals(ticket, decoded.getTicket());
+    }
+
+    @Test
+    public void removedTicketRoundTrip() {
+        UUID id = TicketIds.next(0x80);
+        LocalDateTime leaveTime = LocalDateTime.of(1969, 12, 31, 23, 59, 59, 999_999_999);
+
+        TicketEvent decoded = TicketEvent.decode(ByteBuffer.wrap(TicketEvent.removed(id, leaveTime).encode()));
+
+        assertEquals(TicketEvent.Type.REMOVE, decoded.getType());
+        assertEquals(id, decoded.getTicket().getId());
+        assertEquals(leaveTime, decoded.getTicket().getLeaveTime());
+    }
+
+    /**
+     * Length of the licence plate is an unsigned short, the longest one must not come back negative
+     */
+    @Test
+    public void longestLicencePlateRoundTrip() {
+        ParkingTicket ticket = ticket(1, "A".repeat(TicketEvent.MAX_LICENCE_PLATE_BYTES));
+
+        TicketEvent decoded = TicketEvent.decode(ByteBuffer.wrap(TicketEvent.added(ticket).encode()));
+
+        assertEquals(ticket, decoded.getTicket());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooLongLicencePlateIsRejected() {
+        TicketEvent.added(ticket(1, "A".repeat(TicketEvent.MAX_LICENCE_PLATE_BYTES + 1))).encode();
+    }
+
+    static ParkingTicket ticket(int parkingLotId, String licencePlate) {
+        ParkingTicket ticket = new ParkingTicket();
+        ticket.setId(TicketIds.next(parkingLotId));
+        ticket.setParkingLotId(parkingLotId);
+        ticket.setCarLicencePlate(licencePlate);
+        ticket.setArrivalTime(LocalDateTime.of(2019, 2, 7, 10, 15, 30, 123_456_789));
+
+        return ticket;
+    }
+
+}
@@ -0,0 +1,51 @@
+package kopr.nikdy.viac.persistance;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TicketIdsTest {
+
+    private static final int[] EDGE_PARKING_LOTS = {0x00, 0x7F, 0x80, 0xFF, 0x7FFFFFFF, 0x80000000, 0xFFFFFFFF};
+
+    /**
+     * More IDs than fit in the sequence of one millisecond, so the sequence overflows into the next millisecond too
+     */
+    @Test
+    public void storedIdsSortInGenerationOrder() throws Exception {
+        byte[] previous = Convert.toBytes(TicketIds.next(0xFF));
+        for (int i = 0; i < 20_000; i++) {
+            byte[] next = Convert.toBytes(TicketIds.next(EDGE_PARKING_LOTS[i % EDGE_PARKING_LOTS.length]));
+
+            assertTrue(Arrays.toString(previous) + " before " + Arrays.toString(next), Arrays.compareUnsigned(previous, next) < 0);
+            previous = next;
+        }
+    }
+
+    @Test
+    public void idKeepsParkingLot() throws Exception {
+        for (int parkingLotId : EDGE_PARKING_LOTS) {
+            UUID id = TicketIds.next(parkingLotId);
+
+            assertEquals(parkingLotId, TicketIds.getParkingLotId(id));
+            assertEquals(parkingLotId, TicketIds.getParkingLotId(Convert.fromBytes(Convert.toBytes(id))));
+        }
+
+        assertEquals(0, TicketIds.getParkingLotId(TicketIds.next(null)));
+    }
+
+    @Test
+    public void idIsVersion7() {
+        for (int parkingLotId : EDGE_PARKING_LOTS) {
+            UUID id = TicketIds.next(parkingLotId);
+
+            assertEquals(7, id.version());
+            assertEquals(2, id.variant());
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+package kopr.nikdy.viac.persistance;
+
+import kopr.nikdy.viac.entities.ParkingTicket;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TicketJournalTest {
+
+    /**
+     * Two records of an added ticket with a 4 byte licence plate fit in a segment, the third one starts the next
+     */
+    private static final int SMALL_SEGMENT = 128;
+
+    private static final int LARGE_SEGMENT = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reopenedJournalReplaysAppendedEvents() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<TicketEvent> events = events(3);
+
+        TicketJournal journal = open(directory, LARGE_SEGMENT, 0, new Replay()).journal;
+        long[] first = journal.append(events.subList(0, 2));
+        long[] second = journal.append(events.subList(2, 3));
+        journal.force();
+
+        Replay replay = new Replay();
+        long end = open(directory, LARGE_SEGMENT, 0, replay).end;
+
+        assertEquals(tickets(events), replay.tickets);
+        assertArrayEquals(new long[]{first[0], first[1], second[0]}, replay.positions());
+        assertEquals(second[0], end);
+    }
+
+    @Test
+    public void replayStartsAfterStoredPosition() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<TicketEvent> events = events(3);
+
+        TicketJournal journal = open(directory, LARGE_SEGMENT, 0, new Replay()).journal;
+        long[] positions = journal.append(events);
+        journal.force();
+
+        Replay replay = new Replay();
+        open(directory, LARGE_SEGMENT, positions[1], replay);
+        assertEquals(tickets(events.subList(2, 3)), replay.tickets);
+
+        replay = new Replay();
+        open(directory, LARGE_SEGMENT, positions[2], replay);
+        assertEquals(Collections.emptyList(), replay.tickets);
+    }
+
+    /**
+     * Crash while the last record was written, only its start reached the disk
+     */
+    @Test
+    public void tornRecordAtTheEndIsErased() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<TicketEvent> events = events(3);
+
+        TicketJournal journal = open(directory, LARGE_SEGMENT, 0, new Replay()).journal;
+        long[] positions = journal.append(events.subList(0, 2));
+        journal.force();
+        overwrite(directory, 0, positions[1] - 10, new byte[10]);
+
+        Replay replay = new Replay();
+        OpenedJournal reopened = open(directory, LARGE_SEGMENT, 0, replay);
+        assertEquals(tickets(events.subList(0, 1)), replay.tickets);
+        assertEquals(positions[0], reopened.end);
+
+        // the next record is appended in place of the erased one and nothing of the torn record is replayed after it
+        reopened.journal.append(events.subList(2, 3));
+        reopened.journal.force();
+
+        replay = new Replay();
+        open(directory, LARGE_SEGMENT, 0, replay);
+        assertEquals(tickets(Arrays.asList(events.get(0), events.get(2))), replay.tickets);
+    }
+
+    @Test
+    public void recordWithWrongChecksumAtTheEndIsErased() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<TicketEvent> events = events(2);
+
+        TicketJournal journal = open(directory, LARGE_SEGMENT, 0, new Replay()).journal;
+        long[] positions = journal.append(events);
+        journal.force();
+        flipByte(directory, 0, positions[1] - 1);
+
+        Replay replay = new Replay();
+        assertEquals(positions[0], open(directory, LARGE_SEGMENT, 0, replay).end);
+        assertEquals(tickets(events.subList(0, 1)), replay.tickets);
+
+        // erased for good, the damaged record is gone at the next start too
+        replay = new Replay();
+        open(directory, LARGE_SEGMENT, 0, replay);
+        assertEquals(tickets(events.subList(0, 1)), replay.tickets);
+    }
+
+    @Test
+    public void truncatedSegmentIsReplayedUpToTheCut() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<TicketEvent> events = events(3);
+
+        TicketJournal journal = open(directory, LARGE_SEGMENT, 0, new Replay()).journal;
+        long[] positions = journal.append(events.subList(0, 2));
+        journal.force();
+        try (FileChannel channel = FileChannel.open(segmentPath(directory, 0), StandardOpenOption.WRITE)) {
+            channel.truncate(positions[1] - 5);
+        }
+
+        Replay replay = new Replay();
+        OpenedJournal reopened = open(directory, LARGE_SEGMENT, 0, replay);
+        assertEquals(tickets(events.subList(0, 1)), replay.tickets);
+
+        // the shortened segment has no room left, the next record starts a new one
+        long[] appended = reopened.journal.append(events.subList(2, 3));
+        reopened.journal.force();
+        assertTrue(appended[0] > positions[1] - 5);
+
+        replay = new Replay();
+        open(directory, LARGE_SEGMENT, 0, replay);
+        assertEquals(tickets(Arrays.asList(events.get(0), events.get(2))), replay.tickets);
+    }
+
+    @Test
+    public void damagedRecordBeforeTheLastSegmentFailsTheOpen() throws Exception {
+        Path directory = folder.getRoot().toPath();
+
+        TicketJournal journal = open(directory, SMALL_SEGMENT, 0, new Replay()).journal;
+        long[] positions = new long[3];
+        for (int i = 0; i < 3; i++) {
+            positions[i] = journal.append(events(1))[0];
+        }
+        journal.force();
+        assertTrue(positions[2] > SMALL_SEGMENT);
+        flipByte(directory, 0, positions[1] - 1);
+
+        try {
+            open(directory, SMALL_SEGMENT, 0, new Replay());
+            fail("Damaged segment before the last one was replayed");
+
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("corrupted"));
+        }
+    }
+
+    @Test
+    public void eventsRotateToNewSegments() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<TicketEvent> events = events(5);
+
+        TicketJournal journal = open(directory, SMALL_SEGMENT, 0, new Replay()).journal;
+        long[] positions = new long[events.size()];
+        for (int i = 0; i < events.size(); i++) {
+            positions[i] = journal.append(events.subList(i, i + 1))[0];
+        }
+        journal.force();
+        assertEquals(3, segmentCount(directory));
+
+        Replay replay = new Replay();
+        open(directory, SMALL_SEGMENT, 0, replay);
+        assertEquals(tickets(events), replay.tickets);
+        assertArrayEquals(positions, replay.positions());
+
+        // the first segment holds only events before the position, the second one the event at it
+        journal.deleteBefore(positions[2]);
+        assertEquals(2, segmentCount(directory));
+        assertFalse(Files.exists(segmentPath(directory, 0)));
+
+        replay = new Replay();
+        open(directory, SMALL_SEGMENT, positions[2], replay);
+        assertEquals(tickets(events.subList(3, 5)), replay.tickets);
+    }
+
+    @Test(expected = IOException.class)
+    public void eventsLargerThanSegmentAreRejected() throws Exception {
+        TicketJournal journal = open(folder.getRoot().toPath(), SMALL_SEGMENT, 0, new Replay()).journal;
+        journal.append(events(3));
+    }
+
+    private static List<TicketEvent> events(int count) {
+        List<TicketEvent> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(TicketEvent.added(TicketEventTest.ticket(i + 1, "KE-" + i)));
+        }
+
+        return events;
+    }
+
+    private static List<ParkingTicket> tickets(List<TicketEvent> events) {
+        return events.stream().map(TicketEvent::getTicket).collect(Collectors.toList());
+    }
+
+    private static OpenedJournal open(Path directory, int segmentSize, long fromPosition, Replay replay) throws IOException, SQLException {
+        TicketJournal journal = new TicketJournal(directory, segmentSize);
+        return new OpenedJournal(journal, journal.open(fromPosition, replay));
+    }
+
+    private static void flipByte(Path directory, long segmentBase, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(directory, segmentBase), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            channel.read(buffer, position - segmentBase);
+            buffer.put(0, (byte) ~buffer.get(0));
+            buffer.rewind();
+            channel.write(buffer, position - segmentBase);
+        }
+    }
+
+    private static void overwrite(Path directory, long segmentBase, long position, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(directory, segmentBase), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), position - segmentBase);
+        }
+    }
+
+    private static Path segmentPath(Path directory, long segmentBase) {
+        return directory.resolve(String.format("%020d.journal", segmentBase));
+    }
+
+    private static long segmentCount(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    /**
+     * Tickets of the events passed to the consumer by {@link TicketJournal#open(long, TicketJournal.EventConsumer)} with their positions
+     */
+    private static class Replay implements TicketJournal.EventConsumer {
+
+        private final List<ParkingTicket> tickets = new ArrayList<>();
+
+        private final List<Long> positions = new ArrayList<>();
+
+        @Override
+        public void accept(TicketEvent event, long position) {
+            tickets.add(event.getTicket());
+            positions.add(position);
+        }
+
+        private long[] positions() {
+            return positions.stream().mapToLong(Long::longValue).toArray();
+        }
+
+    }
+
+    private static class OpenedJournal {
+
+        private final TicketJournal journal;
+
+        /**
+         * Position of the end of the journal returned by the open
+         */
+        private final long end;
+
+        private OpenedJournal(TicketJournal journal, long end) {
+            this.journal = journal;
+            this.end = end;
+        }
+
+    }
+
+}